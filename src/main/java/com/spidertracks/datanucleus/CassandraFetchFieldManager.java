@@ -20,6 +20,8 @@ package com.spidertracks.datanucleus;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnName;
 
 import java.lang.reflect.Array;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -39,12 +41,19 @@ import org.datanucleus.store.ObjectProvider;
 import org.datanucleus.store.fieldmanager.AbstractFieldManager;
 import org.datanucleus.store.types.sco.SCOUtils;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Selector;
 
+import com.spidertracks.datanucleus.client.RowPool;
 import com.spidertracks.datanucleus.collection.CassEntry;
+import com.spidertracks.datanucleus.collection.LazyCollection;
+import com.spidertracks.datanucleus.collection.LazyMap;
+import com.spidertracks.datanucleus.collection.LazySet;
 import com.spidertracks.datanucleus.collection.ReadCollection;
 import com.spidertracks.datanucleus.collection.ReadMap;
+import com.spidertracks.datanucleus.collection.ReadRelationship;
+import com.spidertracks.datanucleus.collection.RelationshipSnapshot;
+import com.spidertracks.datanucleus.collection.RelationshipSnapshots;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.fetch.BulkFetcher;
 
 /**
  * @author Todd Nine
@@ -52,6 +61,14 @@ import com.spidertracks.datanucleus.convert.ByteConverterContext;
  */
 public class CassandraFetchFieldManager extends AbstractFieldManager {
 
+	/**
+	 * Set to true on a collection, set or map field to read its columns as
+	 * the field is used instead of when the object is loaded
+	 */
+	public static final String LAZY_EXTENSION = "com.spidertracks.cassandra.lazy";
+
+	private static final int DEFAULT_PAGE_SIZE = 1000;
+
 	private Map<Bytes, Bytes> columns;
 	private AbstractClassMetaData metaData;
 	private ObjectProvider objectProvider;
@@ -60,14 +77,32 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 	private ClassLoaderResolver clr;
 	private String columnFamily;
 	private Bytes rowKey;
-	private Selector selector;
+	private RowPool pool;
+	private RelationshipSnapshots snapshots;
+	private List<Column> row;
+	private int depth;
 
 	/**
 	 * @param columns
 	 * @param metaData
 	 */
 	public CassandraFetchFieldManager(List<Column> columns, ObjectProvider op,
-			String columnFamily, Bytes rowKey, Selector selector) {
+			String columnFamily, Bytes rowKey, RowPool pool) {
+		this(toMap(columns), op, columnFamily, rowKey, pool);
+	}
+
+	/**
+	 * @param columns
+	 *            The column values already read, keyed by column name
+	 * @param op
+	 * @param columnFamily
+	 * @param rowKey
+	 * @param pool
+	 *            The pool to read the relationship columns from
+	 */
+	public CassandraFetchFieldManager(Map<Bytes, Bytes> columns,
+			ObjectProvider op, String columnFamily, Bytes rowKey,
+			RowPool pool) {
 		super();
 
 		this.objectProvider = op;
@@ -76,20 +111,32 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 		this.clr = this.context.getClassLoaderResolver();
 		this.byteContext = ((CassandraStoreManager) context.getStoreManager())
 				.getByteConverterContext();
+		this.snapshots = ((CassandraStoreManager) context.getStoreManager())
+				.getRelationshipSnapshots();
 		this.columnFamily = columnFamily;
 		this.rowKey = rowKey;
-		this.selector = selector;
+		this.pool = pool;
+		this.columns = columns;
+
+	}
 
-		// rather than iterate over every field call for O(n) it's faster to
-		// take our O(n) hit up front then perform an O(1) lookup. Sorting and
-		// searching is O(n log (n)) sort plus log n search
-		this.columns = new HashMap<Bytes, Bytes>();
+	/**
+	 * Rather than iterate over every field call for O(n) it's faster to take
+	 * our O(n) hit up front then perform an O(1) lookup. Sorting and searching
+	 * is O(n log (n)) sort plus log n search
+	 * 
+	 * @param columns
+	 * @return
+	 */
+	private static Map<Bytes, Bytes> toMap(List<Column> columns) {
+		Map<Bytes, Bytes> values = new HashMap<Bytes, Bytes>();
 
 		for (Column column : columns) {
-			this.columns.put(Bytes.fromBytes(column.getName()),
+			values.put(Bytes.fromBytes(column.getName()),
 					Bytes.fromBytes(column.getValue()));
 		}
 
+		return values;
 	}
 
 	@Override
@@ -241,10 +288,31 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 
 				if (Collection.class.isAssignableFrom(fieldMetaData.getType())) {
 
-					Collection<Object> coll;
 					Class<?> elementClass = clr.classForName(fieldMetaData
 							.getCollection().getElementType());
 
+					// read the columns as the field is used instead of now
+					if (isLazy(fieldMetaData)) {
+						// the stored columns are read if the field is written
+						snapshots.remove(objectProvider, fieldNumber);
+
+						if (fieldMetaData.getType().isAssignableFrom(
+								LazySet.class)) {
+							return new LazySet(byteContext, columnFamily,
+									rowKey, columnName, context, elementClass,
+									pool, getPageSize());
+						}
+
+						if (fieldMetaData.getType().isAssignableFrom(
+								LazyCollection.class)) {
+							return new LazyCollection(byteContext,
+									columnFamily, rowKey, columnName, context,
+									elementClass, pool, getPageSize());
+						}
+					}
+
+					Collection<Object> coll;
+
 					try {
 						Class<?> instanceType = SCOUtils
 								.getContainerInstanceType(
@@ -263,22 +331,27 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 							byteContext, columnFamily, rowKey, columnName,
 							context, elementClass);
 
-					// TODO use context.getFetchPlan().getFetchSize()
-					columnFetcher.fetchColumns(100, null, selector);
+					read(columnFetcher);
 
-					for (Object key : columnFetcher) {
+					List<Object> ids = new ArrayList<Object>();
 
-						try {
-							Object element = context.findObject(key, false,
-									true, fieldMetaData.getTypeName());
+					for (Object key : columnFetcher) {
+						ids.add(key);
+					}
 
+					for (Object element : resolveAll(ids, elementClass)) {
+						// the element was removed. TODO remove the lazy
+						// reference if record is over tombstone time
+						if (element != null) {
 							coll.add(element);
-						} catch (NucleusObjectNotFoundException nonfe) {
-							// swallow. TODO remove the lazy reference if record
-							// is over tombstone time
 						}
 					}
 
+					// remember what is stored so writes only send the changes
+					snapshots.put(objectProvider, fieldNumber,
+							new RelationshipSnapshot(columnFetcher.getSnapshot(),
+									columnFetcher.getElementColumns()));
+
 					if (coll.size() == 0) {
 						return null;
 					}
@@ -327,49 +400,57 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 										clr, context.getMetaDataManager()));
 					}
 
-					// TODO use context.getFetchPlan().getFetchSize()
+					// read the columns as the field is used instead of now
+					if (isLazy(fieldMetaData)
+							&& fieldMetaData.getType().isAssignableFrom(
+									LazyMap.class)) {
+						// the stored columns are read if the field is written
+						snapshots.remove(objectProvider, fieldNumber);
+
+						return new LazyMap(byteContext, columnFamily, rowKey,
+								columnName, context, keyClass, valueClass,
+								storedKeyClass, storedValueClass,
+								pool, getPageSize());
+					}
+
 					ReadMap mapReader = new ReadMap(byteContext, columnFamily,
 							rowKey, columnName, storedKeyClass,
 							storedValueClass);
-					mapReader.fetchColumns(100, null, selector);
-
-					for (CassEntry entry : mapReader) {
-
-						try {
-							Object key = null;
-
-							if (pcKey) {
-
-								key = context.findObject(
-										context.newObjectId(keyClass,
-												entry.getKey()), false, true,
+					read(mapReader);
 
-										fieldMetaData.getTypeName());
-							} else {
-								key = entry.getKey();
-							}
+					List<Object> keys = new ArrayList<Object>();
+					List<Object> values = new ArrayList<Object>();
 
-							Object value = null;
+					for (CassEntry entry : mapReader) {
+						keys.add(pcKey ? context.newObjectId(keyClass,
+								entry.getKey()) : entry.getKey());
+						values.add(pcValue ? context.newObjectId(valueClass,
+								entry.getValue()) : entry.getValue());
+					}
 
-							if (pcValue) {
-								value = context.findObject(
-										context.newObjectId(valueClass,
-												entry.getValue()), false, true,
+					if (pcKey) {
+						keys = resolveAll(keys, keyClass);
+					}
 
-										fieldMetaData.getTypeName());
-							} else {
-								value = entry.getValue();
-							}
+					if (pcValue) {
+						values = resolveAll(values, valueClass);
+					}
 
-							map.put(key, value);
-						} catch (NucleusObjectNotFoundException nonfe) {
-							// swallow. TODO remove the lazy reference if record
-							// is over
-							// tombstone time
+					for (int i = 0; i < keys.size(); i++) {
+						// the key or value was removed. TODO remove the lazy
+						// reference if record is over tombstone time
+						if (keys.get(i) == null
+								|| (pcValue && values.get(i) == null)) {
+							continue;
 						}
 
+						map.put(keys.get(i), values.get(i));
 					}
 
+					snapshots.put(objectProvider, fieldNumber,
+							new RelationshipSnapshot(mapReader.getSnapshot(),
+									null));
+
 					if (map.size() == 0) {
 						return null;
 					}
@@ -382,27 +463,36 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 					ReadMap mapReader = new ReadMap(byteContext, columnFamily,
 							rowKey, columnName, Integer.class,
 							byteContext.getKeyClass(context, metaData));
-					mapReader.fetchColumns(100, null, selector);
+					read(mapReader);
 
-					int columns = mapReader.getColumnCount();
+					List<CassEntry> entries = new ArrayList<CassEntry>();
+
+					for (CassEntry entry : mapReader) {
+						entries.add(entry);
+					}
+
+					snapshots.put(objectProvider, fieldNumber,
+							new RelationshipSnapshot(mapReader.getSnapshot(),
+									null));
 
-					// TODO make this size more
 					Object array = Array.newInstance(fieldMetaData.getType()
-							.getComponentType(), columns);
+							.getComponentType(), entries.size());
 
 					Class<?> elementClass = clr.classForName(fieldMetaData
 							.getArray().getElementType());
 
-					for (int i = 0; mapReader.hasNext(); i++) {
+					List<Object> ids = new ArrayList<Object>(entries.size());
 
-						CassEntry entry = mapReader.next();
-
-						Object id = context.newObjectId(elementClass,
-								entry.getValue());
+					for (CassEntry entry : entries) {
+						ids.add(context.newObjectId(elementClass,
+								entry.getValue()));
+					}
 
-						Object element = context.findObject(id, false, true, fieldMetaData.getTypeName());
+					List<Object> elements = resolveAll(ids, elementClass);
 
-						Array.set(array, (Integer) entry.getKey(), element);
+					for (int i = 0; i < entries.size(); i++) {
+						Array.set(array, (Integer) entries.get(i).getKey(),
+								elements.get(i));
 					}
 
 					return objectProvider.wrapSCOField(fieldNumber, array,
@@ -423,6 +513,160 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 		}
 	}
 
+	/**
+	 * Load the objects of the identities. Objects that are not in the
+	 * execution context are read with chunked multiget_slice calls rather than
+	 * a get_slice each. When the class has subclasses the concrete class of
+	 * each element is unknown, so each element is found individually.
+	 * 
+	 * @param ids
+	 * @param elementClass
+	 * @return The objects in the same order as the identities. Objects that
+	 *         no longer exist are null
+	 */
+	private List<Object> resolveAll(List<Object> ids, Class<?> elementClass) {
+		List<Object> elements = new ArrayList<Object>(ids.size());
+
+		// past the max fetch depth the elements are left hollow, the same as
+		// when they are found individually, and are read when they're used
+		if (!isWithinFetchDepth() || !isBulkLoadable(elementClass)) {
+			for (Object id : ids) {
+				try {
+					elements.add(context.findObject(id, false, true, null));
+				} catch (NucleusObjectNotFoundException nonfe) {
+					elements.add(null);
+				}
+			}
+
+			return elements;
+		}
+
+		BulkFetcher fetcher = new BulkFetcher(context,
+				BulkFetcher.DEFAULT_CHUNK_SIZE, false);
+
+		fetcher.setDepth(depth + 1);
+
+		Map<Object, Object> found = new HashMap<Object, Object>();
+
+		boolean pending = false;
+
+		for (Object id : ids) {
+			// don't read objects we already have
+			Object cached = context.getObjectFromCache(id);
+
+			if (cached != null) {
+				found.put(id, cached);
+			} else {
+				fetcher.add(id, elementClass);
+				pending = true;
+			}
+		}
+
+		if (pending) {
+			ApiAdapter adapter = context.getApiAdapter();
+
+			for (Object loaded : fetcher.execute()) {
+				found.put(adapter.getIdForObject(loaded), loaded);
+			}
+		}
+
+		for (Object id : ids) {
+			elements.add(found.get(id));
+		}
+
+		return elements;
+	}
+
+	/**
+	 * True if the elements of this object are within the max fetch depth of
+	 * the fetch plan. A negative max fetch depth has no limit
+	 * 
+	 * @return
+	 */
+	private boolean isWithinFetchDepth() {
+		int maxDepth = context.getFetchPlan().getMaxFetchDepth();
+
+		return maxDepth < 0 || depth < maxDepth;
+	}
+
+	/**
+	 * True if every instance of the class is stored as that class, so its
+	 * rows can be read without resolving the class first
+	 * 
+	 * @param elementClass
+	 * @return
+	 */
+	private boolean isBulkLoadable(Class<?> elementClass) {
+		if (Modifier.isAbstract(elementClass.getModifiers())) {
+			return false;
+		}
+
+		String[] subclasses = context.getMetaDataManager()
+				.getSubclassesForClass(elementClass.getName(), true);
+
+		return subclasses == null || subclasses.length == 0;
+	}
+
+	/**
+	 * Use every column of the row for the relationship fields instead of
+	 * reading each field
+	 * 
+	 * @param row
+	 *            Every column of the row
+	 */
+	public void setRow(List<Column> row) {
+		this.row = row;
+	}
+
+	/**
+	 * Set the number of relationships between this object and the object the
+	 * fetch started from. Elements are only loaded in full while they're
+	 * within the max fetch depth
+	 * 
+	 * @param depth
+	 */
+	public void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	/**
+	 * Read the columns of the relationship field, from the row when it has
+	 * already been read
+	 * 
+	 * @param reader
+	 */
+	private void read(ReadRelationship<?> reader) {
+		if (row != null) {
+			reader.readColumns(row);
+			return;
+		}
+
+		reader.fetchColumns(getPageSize(), null, pool);
+	}
+
+	/**
+	 * True if the field is marked with the lazy extension
+	 * 
+	 * @param fieldMetaData
+	 * @return
+	 */
+	static boolean isLazy(AbstractMemberMetaData fieldMetaData) {
+		return Boolean.parseBoolean(fieldMetaData
+				.getValueForExtension(LAZY_EXTENSION));
+	}
+
+	/**
+	 * The number of relationship columns to read per call. Uses the fetch
+	 * size of the fetch plan when one is set
+	 * 
+	 * @return
+	 */
+	private int getPageSize() {
+		int fetchSize = context.getFetchPlan().getFetchSize();
+
+		return fetchSize > 0 ? fetchSize : DEFAULT_PAGE_SIZE;
+	}
+
 	@Override
 	public short fetchShortField(int fieldNumber) {
 		try {
@@ -35,11 +35,18 @@ import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
 import org.datanucleus.store.fieldmanager.AbstractFieldManager;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 
+import com.spidertracks.datanucleus.client.RowPool;
+import com.spidertracks.datanucleus.collection.LazyRelationship;
+import com.spidertracks.datanucleus.collection.RelationshipSnapshot;
+import com.spidertracks.datanucleus.collection.RelationshipSnapshots;
+import com.spidertracks.datanucleus.collection.StoredColumns;
 import com.spidertracks.datanucleus.collection.WriteCollection;
 import com.spidertracks.datanucleus.collection.WriteMap;
+import com.spidertracks.datanucleus.collection.WriteRelationship;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.BatchMutationManager;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
 
 /**
  * @author Todd Nine
@@ -48,29 +55,48 @@ import com.spidertracks.datanucleus.convert.ByteConverterContext;
 public class CassandraInsertFieldManager extends AbstractFieldManager {
 
 	private ExecutionContext context;
-	private Mutator mutator;
+	private BatchMutator mutator;
+	private BatchMutationManager batchManager;
 	private AbstractClassMetaData metaData;
 	private ObjectProvider objectProvider;
 	private String columnFamily;
 	private ByteConverterContext byteContext;
+	private RelationshipSnapshots snapshots;
 	private Bytes key;
+	private boolean insert;
+
+	// false if the object is new, unless its key belongs to a stored row
+	private boolean deleteNulls;
 
 	/**
-	 * @param columns
-	 * @param metaData
+	 * @param mutator
+	 * @param batchManager
+	 *            The manager of the batches already sent
+	 * @param op
+	 * @param columnFamily
+	 * @param key
+	 * @param insert
+	 *            True if the object is new. Null fields of a new object have
+	 *            no column to delete, so no tombstones are written
 	 */
-	public CassandraInsertFieldManager(Mutator mutator, ObjectProvider op,
-			String columnFamily, Bytes key) {
+	public CassandraInsertFieldManager(BatchMutator mutator,
+			BatchMutationManager batchManager, ObjectProvider op,
+			String columnFamily, Bytes key, boolean insert) {
 		super();
 
 		this.mutator = mutator;
+		this.batchManager = batchManager;
 		this.objectProvider = op;
 		this.metaData = op.getClassMetaData();
 		this.context = op.getExecutionContext();
 		this.byteContext = ((CassandraStoreManager) context.getStoreManager())
 				.getByteConverterContext();
+		this.snapshots = ((CassandraStoreManager) context.getStoreManager())
+				.getRelationshipSnapshots();
 		this.columnFamily = columnFamily;
 		this.key = key;
+		this.insert = insert;
+		this.deleteNulls = !insert;
 
 	}
 
@@ -183,6 +209,11 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 
 			Bytes columnName = getColumnName(metaData, fieldNumber);
 
+			// nothing is stored for a new row
+			if (value == null && !deleteNulls) {
+				return;
+			}
+
 			// delete operation
 			if (value == null) {
 				// TODO TN we need a way to update secondary indexing if this
@@ -192,6 +223,25 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 				// then removing will work
 				this.mutator.deleteColumn(columnFamily, key, columnName);
 
+				// remove any relationship columns we know are stored
+				RelationshipSnapshot snapshot = snapshots.remove(
+						objectProvider, fieldNumber);
+
+				Map<Bytes, Bytes> stored = snapshot == null ? null : snapshot
+						.getColumns();
+
+				// the columns of a field without a snapshot are read so none
+				// are left behind
+				if (stored == null && !insert && isRelationship(fieldNumber)) {
+					stored = readStored(columnName);
+				}
+
+				if (stored != null) {
+					for (Bytes storedColumn : stored.keySet()) {
+						mutator.deleteColumn(columnFamily, key, storedColumn);
+					}
+				}
+
 				return;
 
 			}
@@ -237,6 +287,15 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 					|| relationType == Relation.ONE_TO_MANY_UNI) {
 				// Collection/Map/Array
 
+				// a lazy field written back to the columns it reads is
+				// unchanged. One assigned elsewhere is written element by
+				// element
+				if (value instanceof LazyRelationship
+						&& ((LazyRelationship) value).isStoredIn(columnFamily,
+								key, columnName)) {
+					return;
+				}
+
 				if (fieldMetaData.hasCollection()) {
 
 					Object persisted = null;
@@ -245,17 +304,37 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 					WriteCollection collectionWriter = new WriteCollection(
 							byteContext, columnFamily, key, columnName);
 
+					RelationshipSnapshot snapshot = snapshots.get(
+							objectProvider, fieldNumber);
+
 					for (Object element : (Collection<?>) value) {
+						objectPk = getManagedId(element);
+
+						// an element that is already stored keeps its column
+						Bytes stored = objectPk == null || snapshot == null ? null
+								: snapshot.getElementColumn(objectPk);
+
+						if (stored != null) {
+							collectionWriter.retain(objectPk, stored,
+									snapshot.getColumns().get(stored));
+							continue;
+						}
+
 						// persist the object
-						persisted = context.persistObjectInternal(element,
-								objectProvider, fieldNumber, StateManager.PC);
+						if (objectPk == null) {
+							persisted = context.persistObjectInternal(element,
+									objectProvider, fieldNumber,
+									StateManager.PC);
 
-						objectPk = context.getApiAdapter().getIdForObject(
-								persisted);
+							objectPk = context.getApiAdapter().getIdForObject(
+									persisted);
+						}
 
-						collectionWriter.writeRelationship(mutator, objectPk);
+						collectionWriter.addRelationship(objectPk);
 					}
 
+					writeChanges(collectionWriter, fieldNumber, columnName);
+
 					return;
 
 				} else if (fieldMetaData.hasMap()) {
@@ -286,12 +365,16 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 						// itself
 						if (adapter.isPersistable(mapKey)) {
 
-							persisted = context.persistObjectInternal(mapKey,
-									objectProvider, fieldNumber,
-									StateManager.PC);
+							serializedKey = getManagedId(mapKey);
+
+							if (serializedKey == null) {
+								persisted = context.persistObjectInternal(
+										mapKey, objectProvider, fieldNumber,
+										StateManager.PC);
 
-							serializedKey = context.getApiAdapter()
-									.getIdForObject(persisted);
+								serializedKey = context.getApiAdapter()
+										.getIdForObject(persisted);
+							}
 						} else {
 							serializedKey = mapKey;
 						}
@@ -299,22 +382,28 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 						// persist the value if it can be persisted
 						if (adapter.isPersistable(mapValue)) {
 
-							persisted = context.persistObjectInternal(mapValue,
-									objectProvider, fieldNumber,
-									StateManager.PC);
+							serializedValue = getManagedId(mapValue);
 
-							serializedValue = context.getApiAdapter()
-									.getIdForObject(persisted);
+							if (serializedValue == null) {
+								persisted = context.persistObjectInternal(
+										mapValue, objectProvider, fieldNumber,
+										StateManager.PC);
+
+								serializedValue = context.getApiAdapter()
+										.getIdForObject(persisted);
+							}
 
 						} else {
 							serializedValue = mapValue;
 						}
 
-						mapWriter.writeRelationship(mutator, serializedKey,
+						mapWriter.addRelationship(serializedKey,
 								serializedValue);
 
 					}
 
+					writeChanges(mapWriter, fieldNumber, columnName);
+
 					return;
 
 				} else if (fieldMetaData.hasArray()) {
@@ -326,17 +415,24 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 							columnFamily, key, columnName);
 
 					for (int i = 0; i < Array.getLength(value); i++) {
+						Object element = Array.get(value, i);
+
+						objectPk = getManagedId(element);
 
 						// persist the object
-						persisted = context.persistObjectInternal(
-								Array.get(value, i), objectProvider,
-								fieldNumber, StateManager.PC);
+						if (objectPk == null) {
+							persisted = context.persistObjectInternal(element,
+									objectProvider, fieldNumber,
+									StateManager.PC);
 
-						objectPk = context.getApiAdapter().getIdForObject(
-								persisted);
+							objectPk = context.getApiAdapter().getIdForObject(
+									persisted);
+						}
 
-						mapWriter.writeRelationship(mutator, i, objectPk);
+						mapWriter.addRelationship(i, objectPk);
 					}
+
+					writeChanges(mapWriter, fieldNumber, columnName);
 				}
 
 				return;
@@ -352,12 +448,126 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 		}
 	}
 
+	/**
+	 * Write the relationship columns that differ from the stored columns, and
+	 * keep the columns written as the snapshot once the batch is sent. Without
+	 * a snapshot the stored columns are read, unless the object is new and
+	 * every column is written
+	 * 
+	 * @param writer
+	 * @param fieldNumber
+	 * @param columnName
+	 */
+	private void writeChanges(WriteRelationship writer,
+			final int fieldNumber, Bytes columnName) {
+		RelationshipSnapshot snapshot = snapshots.get(objectProvider,
+				fieldNumber);
+
+		Map<Bytes, Bytes> stored = snapshot == null ? null : snapshot
+				.getColumns();
+
+		// a stored object may have columns the new value doesn't overwrite
+		if (stored == null && !insert) {
+			stored = readStored(columnName);
+		}
+
+		writer.writeChanges(mutator, stored);
+
+		// a later write reads the columns until this batch is sent, or if it
+		// fails
+		final Object mark = snapshots.markUnread(objectProvider, fieldNumber);
+
+		// outside of a transaction nothing is remembered
+		if (mark == null) {
+			return;
+		}
+
+		final RelationshipSnapshot written = writer.getSnapshot();
+
+		mutator.onWritten(new Runnable() {
+
+			@Override
+			public void run() {
+				snapshots.replace(objectProvider, fieldNumber, mark,
+						written);
+			}
+
+		});
+	}
+
+	/**
+	 * True if the field is a collection, map or array stored as relationship
+	 * columns
+	 * 
+	 * @param fieldNumber
+	 * @return
+	 */
+	private boolean isRelationship(int fieldNumber) {
+		int relationType = metaData
+				.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber)
+				.getRelationType(context.getClassLoaderResolver());
+
+		return relationType == Relation.MANY_TO_MANY_BI
+				|| relationType == Relation.ONE_TO_MANY_BI
+				|| relationType == Relation.ONE_TO_MANY_UNI;
+	}
+
+	/**
+	 * Read the relationship columns of the field as they will be once the
+	 * batch being built is written. Batches the context has already sent are
+	 * waited for first, so the read sees them
+	 * 
+	 * @param columnName
+	 * @return
+	 */
+	private Map<Bytes, Bytes> readStored(Bytes columnName) {
+		batchManager.awaitWrites(context);
+
+		RowPool pool = ((CassandraStoreManager) context.getStoreManager())
+				.getRowPool(key);
+
+		return new StoredColumns(byteContext, columnFamily, key, columnName)
+				.read(pool, mutator);
+	}
+
+	/**
+	 * Delete the columns of null fields even though the object is new,
+	 * because its key belongs to a stored row
+	 */
+	public void setOverwrite() {
+		deleteNulls = true;
+	}
+
+	/**
+	 * Get the identity of a persistent object this context already manages.
+	 * Such an object is flushed by the context itself, so it isn't persisted
+	 * again
+	 * 
+	 * @param value
+	 * @return The identity, or null if the object must be persisted
+	 */
+	private Object getManagedId(Object value) {
+		ApiAdapter adapter = context.getApiAdapter();
+
+		if (value == null || !adapter.isPersistent(value)
+				|| context.findObjectProvider(value) == null) {
+			return null;
+		}
+
+		return adapter.getIdForObject(value);
+	}
+
 	@Override
 	public void storeStringField(int fieldNumber, String value) {
 		try {
 			
 			if(value == null)
 			{
+				// nothing is stored for a new row
+				if (!deleteNulls) {
+					return;
+				}
+				
 				mutator.deleteColumn(columnFamily, key, getColumnName(metaData, fieldNumber));
 				return;
 			}
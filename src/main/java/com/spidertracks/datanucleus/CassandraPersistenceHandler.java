@@ -18,15 +18,22 @@ Contributors : Pedro Gomes and Universidade do Minho.
 package com.spidertracks.datanucleus;
 
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnFamily;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnNames;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDiscriminatorColumnName;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getFetchColumnList;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getFetchPlanFields;
 
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.api.ApiAdapter;
 import org.datanucleus.exceptions.NucleusDataStoreException;
@@ -35,18 +42,22 @@ import org.datanucleus.exceptions.NucleusObjectNotFoundException;
 import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.metadata.AbstractMemberMetaData;
 import org.datanucleus.metadata.DiscriminatorMetaData;
+import org.datanucleus.metadata.IdentityType;
 import org.datanucleus.metadata.Relation;
 import org.datanucleus.store.AbstractPersistenceHandler;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Pelops;
-import org.scale7.cassandra.pelops.Selector;
 
+import com.spidertracks.datanucleus.cache.PrefetchedRows;
+import com.spidertracks.datanucleus.cache.RowCache;
 import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.client.RowPool;
+import com.spidertracks.datanucleus.client.RowPool.Read;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
 import com.spidertracks.datanucleus.mutate.BatchMutationManager;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
 import com.spidertracks.datanucleus.mutate.ExecutionContextDelete;
 
 /**
@@ -69,7 +80,17 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler {
 
 	@Override
 	public void close() {
+		batchManager.close();
+	}
 
+	/**
+	 * Wait for the asynchronous writes the context has sent, so a read of
+	 * their rows sees them
+	 * 
+	 * @param ec
+	 */
+	public void awaitWrites(ExecutionContext ec) {
+		batchManager.awaitWrites(ec);
 	}
 
 	@Override
@@ -88,6 +109,13 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler {
 			return;
 		}
 
+		// the row key may be reused by an object of another class
+		manager.removeClassName(key, op.getClassMetaData());
+
+		manager.getRelationshipSnapshots().release(op);
+
+		invalidatePrefetched(ec, columnFamily, key);
+
 		// delete our dependent objects as well.
 		AbstractClassMetaData metaData = op.getClassMetaData();
 
@@ -188,20 +216,105 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler {
 		}
 	}
 
+	/**
+	 * Delete the rows without loading their objects. Used for bulk deletes
+	 * when no dependent objects need to be removed
+	 * 
+	 * @param ec
+	 * @param columnFamily
+	 * @param rows
+	 *            The row keys with the meta data of the class stored in each
+	 */
+	public void deleteRows(ExecutionContext ec, String columnFamily,
+			Map<Bytes, AbstractClassMetaData> rows) {
+
+		ExecutionContextDelete delete = this.batchManager.beginDelete(ec, null);
+
+		for (Entry<Bytes, AbstractClassMetaData> row : rows.entrySet()) {
+			delete.addDeletion(row.getKey(), columnFamily);
+
+			manager.removeClassName(row.getKey(), row.getValue());
+
+			invalidatePrefetched(ec, columnFamily, row.getKey());
+		}
+
+		try {
+			this.batchManager.endDelete(ec);
+		} catch (NucleusException ne) {
+			throw ne;
+		} catch (Exception e) {
+			throw new NucleusDataStoreException(e.getMessage(), e);
+		}
+	}
+
 	@Override
 	public void fetchObject(ObjectProvider op, int[] fieldNumbers) {
+		// the row may be written by a batch still being sent
+		batchManager.awaitWrites(op.getExecutionContext());
+
 		AbstractClassMetaData metaData = op.getClassMetaData();
 
 		Bytes key = byteContext.getRowKey(op);
 		String columnFamily = getColumnFamily(metaData);
 
-		Selector selector = Pelops.createSelector(manager.getPoolName());
+		RowPool pool = manager.getRowPool(key);
+
+		List<Bytes> names = getColumnNames(metaData, fieldNumbers);
 
-		List<Column> columns = selector.getColumnsFromRow(columnFamily, key,
-				getFetchColumnList(metaData, fieldNumbers), Consistency.get());
+		PrefetchedRows prefetched = manager.getPrefetchedRows();
+
+		Map<Bytes, Bytes> cached = null;
+
+		// the columns read with the descriminator when the object was located
+		if (prefetched != null) {
+			cached = prefetched.take(op.getExecutionContext(), columnFamily,
+					key, names);
+		}
+
+		RowCache cache = manager.getRowCache();
+
+		if (cached == null && cache != null) {
+			cached = cache.get(columnFamily, key, names);
+		}
+
+		CassandraFetchFieldManager fieldManager = null;
+
+		// the columns are already in memory, don't read the row
+		if (cached != null) {
+			if (cached.size() > 0) {
+				fieldManager = new CassandraFetchFieldManager(cached, op,
+						columnFamily, key, pool);
+			}
+		} else {
+			List<Column> row = readRow(op, fieldNumbers, columnFamily, key,
+					pool);
+
+			List<Column> columns = row;
+
+			if (row == null) {
+				long stamp = cache == null ? 0 : cache.getStamp();
+
+				columns = readColumns(pool, columnFamily, key,
+						getFetchColumnList(metaData, fieldNumbers));
+
+				if (cache != null) {
+					cache.put(columnFamily, key, names, columns, stamp);
+				}
+			}
+
+			if (columns != null && columns.size() > 0) {
+				fieldManager = new CassandraFetchFieldManager(columns, op,
+						columnFamily, key, pool);
+
+				// the relationship fields are in the row we've read
+				if (row != null) {
+					fieldManager.setRow(row);
+				}
+			}
+		}
 
 		// nothing to do
-		if (columns == null || columns.size() == 0) {
+		if (fieldManager == null) {
 			// check if the pk field was requested. If so, throw an
 			// exception b/c the object doesn't exist
 			pksearched(metaData, fieldNumbers);
@@ -213,11 +326,167 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler {
 
 		}
 
-		CassandraFetchFieldManager manager = new CassandraFetchFieldManager(
-				columns, op, columnFamily, key, selector);
+		op.replaceFields(fieldNumbers, fieldManager);
+
+	}
+
+	/**
+	 * Read the entire row with a single call when the fields include
+	 * collection, map or array fields, which would otherwise each be read
+	 * with their own call. Only enabled when the wide row read limit is set
+	 * 
+	 * @param op
+	 * @param fieldNumbers
+	 * @param columnFamily
+	 * @param key
+	 * @param pool
+	 * @return Every column of the row, or null if the row was not read
+	 *         because it's disabled, not needed or the row has more columns
+	 *         than the limit
+	 */
+	private List<Column> readRow(ObjectProvider op, int[] fieldNumbers,
+			String columnFamily, Bytes key, RowPool pool) {
+
+		int limit = manager.getWideRowRead();
+
+		if (limit == 0 || !hasRelationshipFields(op, fieldNumbers)) {
+			return null;
+		}
+
+		// read one more column than the limit to tell if the row is complete
+		SliceRange range = new SliceRange(ByteBuffer.wrap(new byte[0]),
+				ByteBuffer.wrap(new byte[0]), false, limit + 1);
+
+		SlicePredicate predicate = new SlicePredicate();
+		predicate.setSlice_range(range);
+
+		List<Column> row = readColumns(pool, columnFamily, key, predicate);
+
+		if (row != null && row.size() > limit) {
+			return null;
+		}
+
+		return row;
+	}
+
+	/**
+	 * Read columns of the row from the node that owns it, or the default pool
+	 * if that fails
+	 * 
+	 * @param pool
+	 * @param columnFamily
+	 * @param key
+	 * @param predicate
+	 * @return
+	 */
+	private List<Column> readColumns(RowPool pool, final String columnFamily,
+			final Bytes key, final SlicePredicate predicate) {
+
+		final ConsistencyLevel consistency = Consistency.get();
+
+		return pool.read(new Read<List<Column>>() {
+
+			@Override
+			public List<Column> execute(String poolName) {
+				return Pelops.createSelector(poolName).getColumnsFromRow(
+						columnFamily, key, predicate, consistency);
+			}
+		});
+	}
+
+	/**
+	 * True if any of the fields are collection, map or array fields that are
+	 * read when the object is loaded
+	 * 
+	 * @param op
+	 * @param fieldNumbers
+	 * @return
+	 */
+	private boolean hasRelationshipFields(ObjectProvider op,
+			int[] fieldNumbers) {
+		AbstractClassMetaData metaData = op.getClassMetaData();
+
+		ClassLoaderResolver clr = op.getExecutionContext()
+				.getClassLoaderResolver();
 
-		op.replaceFields(fieldNumbers, manager);
+		for (int fieldNumber : fieldNumbers) {
+			AbstractMemberMetaData fieldMetaData = metaData
+					.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber);
+
+			int relationType = fieldMetaData.getRelationType(clr);
 
+			if ((relationType == Relation.MANY_TO_MANY_BI
+					|| relationType == Relation.ONE_TO_MANY_BI || relationType == Relation.ONE_TO_MANY_UNI)
+					&& !CassandraFetchFieldManager.isLazy(fieldMetaData)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * True if insert overwrite is enabled and the row of a new object whose
+	 * key the application supplied is already stored. A generated key can't
+	 * belong to a stored row, so its row isn't read
+	 * 
+	 * @param op
+	 * @param columnFamily
+	 * @param key
+	 * @return
+	 */
+	private boolean isStored(ObjectProvider op, String columnFamily,
+			Bytes key) {
+		if (!manager.isInsertOverwrite()) {
+			return false;
+		}
+
+		AbstractClassMetaData metaData = op.getClassMetaData();
+
+		if (metaData.getIdentityType() != IdentityType.APPLICATION) {
+			return false;
+		}
+
+		boolean generated = true;
+
+		for (int pkPosition : metaData.getPKMemberPositions()) {
+			if (metaData.getMetaDataForManagedMemberAtAbsolutePosition(
+					pkPosition).getValueStrategy() == null) {
+				generated = false;
+			}
+		}
+
+		if (generated) {
+			return false;
+		}
+
+		SliceRange range = new SliceRange(ByteBuffer.wrap(new byte[0]),
+				ByteBuffer.wrap(new byte[0]), false, 1);
+
+		SlicePredicate predicate = new SlicePredicate();
+		predicate.setSlice_range(range);
+
+		List<Column> columns = readColumns(manager.getRowPool(key),
+				columnFamily, key, predicate);
+
+		return columns != null && columns.size() > 0;
+	}
+
+	/**
+	 * Drop the columns the context read with the descriminator of the row,
+	 * since it's about to write the row
+	 * 
+	 * @param ec
+	 * @param columnFamily
+	 * @param key
+	 */
+	private void invalidatePrefetched(ExecutionContext ec,
+			String columnFamily, Bytes key) {
+		PrefetchedRows prefetched = manager.getPrefetchedRows();
+
+		if (prefetched != null) {
+			prefetched.invalidate(ec, columnFamily, key);
+		}
 	}
 
 	/**
@@ -251,19 +520,41 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler {
 
 	@Override
 	public void insertObject(ObjectProvider op) {
-		// just delegate to update. They both perform the same logic
-		updateObject(op, op.getClassMetaData().getAllMemberPositions());
+		// an insert writes the entire row
+		writeObject(op, op.getClassMetaData().getAllMemberPositions(), true);
 
 	}
 
 	@Override
 	public void locateObject(ObjectProvider op) {
-		fetchObject(op, op.getClassMetaData().getAllMemberPositions());
+		// only load the fields in the fetch plan. Relationship fields outside
+		// of it are left unloaded and are read by fetchObject on first access
+		fetchObject(op,
+				getFetchPlanFields(op.getExecutionContext(),
+						op.getClassMetaData()));
 
 	}
 
 	@Override
 	public void updateObject(ObjectProvider op, int[] fieldNumbers) {
+		// only the dirty fields need to be written
+		writeObject(op, fieldNumbers, false);
+	}
+
+	/**
+	 * Write the columns of the given fields
+	 * 
+	 * @param op
+	 * @param fieldNumbers
+	 *            The fields to write
+	 * @param insert
+	 *            True if this is a new object. The discriminator is only
+	 *            written on insert since it never changes, and null fields
+	 *            are only deleted on update or when insert overwrite finds
+	 *            a stored row
+	 */
+	private void writeObject(ObjectProvider op, int[] fieldNumbers,
+			boolean insert) {
 		this.manager.assertReadOnlyForUpdateOfObject(op);
 
 		AbstractClassMetaData metaData = op.getClassMetaData();
@@ -271,19 +562,26 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler {
 		ExecutionContext ec = op.getExecutionContext();
 
 		// signal a write is about to start
-		Mutator mutator = this.batchManager.beginWrite(ec).getMutator();
+		BatchMutator mutator = this.batchManager.beginWrite(ec).getMutator();
 
 		Bytes key = byteContext.getRowKey(op);
 		String columnFamily = getColumnFamily(metaData);
 
+		invalidatePrefetched(ec, columnFamily, key);
+
 		// Write our all our primary object data
 		CassandraInsertFieldManager manager = new CassandraInsertFieldManager(
-				mutator, op, columnFamily, key);
+				mutator, batchManager, op, columnFamily, key, insert);
+
+		// a new object may take the key of a stored row, which it replaces
+		if (insert && isStored(op, columnFamily, key)) {
+			manager.setOverwrite();
+		}
 
-		op.provideFields(metaData.getAllMemberPositions(), manager);
+		op.provideFields(fieldNumbers, manager);
 
 		// if we have a discriminator, write the value
-		if (metaData.hasDiscriminatorStrategy()) {
+		if (insert && metaData.hasDiscriminatorStrategy()) {
 			DiscriminatorMetaData discriminator = metaData
 					.getDiscriminatorMetaData();
 
@@ -20,13 +20,27 @@ package com.spidertracks.datanucleus;
 
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnFamily;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDescriminatorColumn;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDiscriminatorColumnName;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getFetchPlanColumns;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.thrift.SlicePredicate;
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.OMFContext;
@@ -41,8 +55,18 @@ import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Pelops;
 import org.scale7.cassandra.pelops.Selector;
 
+import com.spidertracks.datanucleus.cache.ClassNameCache;
+import com.spidertracks.datanucleus.cache.IndexEstimates;
+import com.spidertracks.datanucleus.cache.PrefetchedRows;
+import com.spidertracks.datanucleus.cache.RowCache;
 import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.client.RowPool;
+import com.spidertracks.datanucleus.client.RowPool.Read;
+import com.spidertracks.datanucleus.client.TokenRouter;
+import com.spidertracks.datanucleus.collection.RelationshipSnapshots;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.BatchLimits;
+import com.spidertracks.datanucleus.mutate.WriteFailureListener;
 import com.spidertracks.datanucleus.serialization.JavaSerializer;
 import com.spidertracks.datanucleus.serialization.Serializer;
 
@@ -58,6 +82,26 @@ public class CassandraStoreManager extends AbstractStoreManager {
 	private static final String SERIALIZER = "com.spidertracks.cassandra.serializer";
 	private static final String BYTEMAPPER = "com.spidertracks.cassandra.bytemapper";
 	private static final String CHECKSLEEPTIME = "com.spidertracks.cassandra.checksleep";
+	private static final String QUERYTHREADS = "com.spidertracks.cassandra.querythreads";
+	private static final String WRITEBEHIND = "com.spidertracks.cassandra.writebehind";
+	private static final String BATCHSIZE = "com.spidertracks.cassandra.batchsize";
+	private static final String BATCHBYTES = "com.spidertracks.cassandra.batchbytes";
+	private static final String BATCHROWS = "com.spidertracks.cassandra.batchrows";
+	private static final String BATCHTHREADS = "com.spidertracks.cassandra.batchthreads";
+	private static final String ASYNCWRITES = "com.spidertracks.cassandra.asyncwrites";
+	private static final String WRITETHREADS = "com.spidertracks.cassandra.writethreads";
+	private static final String WRITEQUEUE = "com.spidertracks.cassandra.writequeue";
+	private static final String WRITEFAILURELISTENER = "com.spidertracks.cassandra.writefailurelistener";
+	private static final String TOKENAWARE = "com.spidertracks.cassandra.tokenaware";
+	private static final String RINGREFRESH = "com.spidertracks.cassandra.ringrefresh";
+	private static final String WIDEROWREAD = "com.spidertracks.cassandra.widerowread";
+	private static final String INSERTOVERWRITE = "com.spidertracks.cassandra.insertoverwrite";
+	private static final String ROWCACHE = "com.spidertracks.cassandra.rowcache";
+	private static final String ROWCACHEBYTES = "com.spidertracks.cassandra.rowcachebytes";
+	private static final String ROWCACHETTL = "com.spidertracks.cassandra.rowcachettl";
+	private static final String CLASSCACHE = "com.spidertracks.cassandra.classcache";
+	private static final String CLASSCACHETTL = "com.spidertracks.cassandra.classcachettl";
+	private static final String PREFETCH = "com.spidertracks.cassandra.prefetch";
 	
 	
 	private boolean autoCreateSchema = false;
@@ -67,11 +111,29 @@ public class CassandraStoreManager extends AbstractStoreManager {
 	private int poolTimeBetweenEvictionRunsMillis;
 	private int poolMinEvictableIdleTimeMillis;
 	private long checkSleepTime;
+	private int queryThreads;
+	private boolean writeBehind;
+	private BatchLimits batchLimits;
+	private boolean asyncWrites;
+	private int writeThreads;
+	private int writeQueue;
+	private WriteFailureListener writeFailureListener;
+	private int wideRowRead;
+	private boolean insertOverwrite;
+	private RowCache rowCache;
+	private ClassNameCache classNameCache;
+	// the most recent 1000 index estimates, kept for a minute
+	private IndexEstimates indexEstimates = new IndexEstimates(1000, 60000);
+	private PrefetchedRows prefetchedRows;
+
+	private ExecutorService queryExecutor;
 
 	private ConnectionFactoryImpl connectionFactory;
 
 	private ByteConverterContext byteConverterContext;
 
+	private RelationshipSnapshots relationshipSnapshots = new RelationshipSnapshots();
+
 	/**
 	 * Constructor.
 	 * 
@@ -113,6 +175,127 @@ public class CassandraStoreManager extends AbstractStoreManager {
 		
 		checkSleepTime = conf.getLongProperty(CHECKSLEEPTIME);
 		
+		// how many threads may run operands of a query concurrently
+		queryThreads = conf.getIntProperty(QUERYTHREADS);
+		
+		if (queryThreads == 0) {
+			queryThreads = Runtime.getRuntime().availableProcessors() * 4;
+		}
+		
+		queryExecutor = createExecutor("cassandra-query-", queryThreads);
+		
+		// buffer all writes until the transaction commits or flushes
+		writeBehind = conf.getBooleanProperty(WRITEBEHIND);
+		
+		// limits of a single batch_mutate, larger batches are split and the
+		// calls sent concurrently
+		int batchSize = conf.getIntProperty(BATCHSIZE);
+		
+		if (batchSize == 0) {
+			batchSize = 1000;
+		}
+		
+		long batchBytes = conf.getLongProperty(BATCHBYTES);
+		
+		if (batchBytes == 0) {
+			batchBytes = 2 * 1024 * 1024;
+		}
+		
+		int batchRows = conf.getIntProperty(BATCHROWS);
+		
+		if (batchRows == 0) {
+			batchRows = 500;
+		}
+		
+		int batchThreads = conf.getIntProperty(BATCHTHREADS);
+		
+		if (batchThreads == 0) {
+			batchThreads = Runtime.getRuntime().availableProcessors() * 2;
+		}
+		
+		batchLimits = new BatchLimits(batchSize, batchBytes, batchRows,
+				createExecutor("cassandra-batch-", batchThreads));
+		
+		// send batches on writer threads instead of the caller
+		asyncWrites = conf.getBooleanProperty(ASYNCWRITES);
+		
+		writeThreads = conf.getIntProperty(WRITETHREADS);
+		
+		if (writeThreads == 0) {
+			writeThreads = Runtime.getRuntime().availableProcessors();
+		}
+		
+		// how many batches may be queued or writing before callers block
+		writeQueue = conf.getIntProperty(WRITEQUEUE);
+		
+		if (writeQueue == 0) {
+			writeQueue = writeThreads * 4;
+		}
+		
+		// told of failed writes made outside of a transaction
+		String failureListenerClass = conf
+				.getStringProperty(WRITEFAILURELISTENER);
+		
+		if (failureListenerClass != null) {
+			try {
+				writeFailureListener = (WriteFailureListener) Class.forName(
+						failureListenerClass).newInstance();
+			} catch (Exception e) {
+				throw new NucleusDataStoreException(String.format(
+						"Could not create write failure listener for class name %s",
+						failureListenerClass));
+			}
+		}
+		
+		// the most columns to read when loading an object with one call, 0
+		// reads relationship fields separately
+		wideRowRead = conf.getIntProperty(WIDEROWREAD);
+		
+		// check if a new object's application key belongs to a stored row
+		insertOverwrite = conf.getBooleanProperty(INSERTOVERWRITE);
+		
+		// the most rows to cache, 0 disables the row cache
+		int rowCacheRows = conf.getIntProperty(ROWCACHE);
+		
+		if (rowCacheRows > 0) {
+			long rowCacheBytes = conf.getLongProperty(ROWCACHEBYTES);
+			
+			if (rowCacheBytes == 0) {
+				rowCacheBytes = 64 * 1024 * 1024;
+			}
+			
+			long rowCacheTtl = conf.getLongProperty(ROWCACHETTL);
+			
+			if (rowCacheTtl == 0) {
+				rowCacheTtl = 60000;
+			}
+			
+			rowCache = new RowCache(rowCacheRows, rowCacheBytes, rowCacheTtl);
+		}
+		
+		// the most row classes to remember when resolving descriminators, 0
+		// or less disables the class cache
+		String classCache = conf.getStringProperty(CLASSCACHE);
+		
+		int classCacheSize = classCache == null ? 10000 : Integer
+				.parseInt(classCache.trim());
+		
+		if (classCacheSize > 0) {
+			long classCacheTtl = conf.getLongProperty(CLASSCACHETTL);
+			
+			if (classCacheTtl == 0) {
+				classCacheTtl = 60000;
+			}
+			
+			classNameCache = new ClassNameCache(classCacheSize, classCacheTtl);
+		}
+		
+		// read the fetch plan columns with the descriminator, on by default
+		String prefetch = conf.getStringProperty(PREFETCH);
+		
+		if (prefetch == null || Boolean.parseBoolean(prefetch.trim())) {
+			prefetchedRows = new PrefetchedRows();
+		}
 		
 
 		if (autoCreateSchema) {
@@ -144,6 +327,18 @@ public class CassandraStoreManager extends AbstractStoreManager {
 
 		connectionFactory.keyspaceComplete(autoCreateSchema);
 
+		// send single row operations to a node that owns the row
+		if (conf.getBooleanProperty(TOKENAWARE)) {
+			// how often to read the ring, 0 or less only reads it when a node
+			// fails
+			String ringRefresh = conf.getStringProperty(RINGREFRESH);
+
+			long ringRefreshInterval = ringRefresh == null ? 60000 : Long
+					.parseLong(ringRefresh.trim());
+
+			connectionFactory.enableTokenAwareRouting(ringRefreshInterval);
+		}
+
 		if (autoCreateTables || autoCreateColumns) {
 			connectionFactory.cfComplete(autoCreateTables, autoCreateColumns);
 		}
@@ -169,9 +364,42 @@ public class CassandraStoreManager extends AbstractStoreManager {
 	 */
 	public void close() {
 		// omfContext.getMetaDataManager().deregisterListener(metadataListener);
+		queryExecutor.shutdown();
+		batchLimits.getExecutor().shutdown();
+		connectionFactory.disableTokenAwareRouting();
 		super.close();
 	}
 
+	/**
+	 * Create an executor used to run query operands or batch calls. Tasks are
+	 * never queued, when all threads are busy the submitting thread runs the
+	 * task itself. This way a task waiting on its children can never starve
+	 * them.
+	 * 
+	 * @param name
+	 *            The prefix of the thread names
+	 * @param threads
+	 * @return
+	 */
+	private ExecutorService createExecutor(final String name, int threads) {
+		final AtomicInteger count = new AtomicInteger();
+
+		ThreadFactory factory = new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		};
+
+		return new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), factory,
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
 	public NucleusConnection getNucleusConnection(ExecutionContext om) {
 		throw new UnsupportedOperationException();
 	}
@@ -220,6 +448,26 @@ public class CassandraStoreManager extends AbstractStoreManager {
 		return connectionFactory.getPoolName();
 	}
 
+	/**
+	 * Get the pool for reads of a single row
+	 * 
+	 * @param key
+	 *            The row key
+	 * @return The pool of a node that owns the row when token aware routing
+	 *         is enabled, otherwise the default pool
+	 */
+	public RowPool getRowPool(Bytes key) {
+		return connectionFactory.getRowPool(key);
+	}
+
+	/**
+	 * @return the router of rows to nodes, or null if token aware routing is
+	 *         disabled
+	 */
+	public TokenRouter getTokenRouter() {
+		return connectionFactory.getTokenRouter();
+	}
+
 	/**
 	 * @return the pauseOnCreateTime
 	 */
@@ -227,6 +475,80 @@ public class CassandraStoreManager extends AbstractStoreManager {
 		return checkSleepTime;
 	}
 
+	/**
+	 * @return the executor used to run query operands concurrently
+	 */
+	public ExecutorService getQueryExecutor() {
+		return queryExecutor;
+	}
+
+	/**
+	 * @return true if writes are buffered until the transaction commits
+	 */
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * @return the limits of a single batch_mutate
+	 */
+	public BatchLimits getBatchLimits() {
+		return batchLimits;
+	}
+
+	/**
+	 * @return true if batches are sent on writer threads
+	 */
+	public boolean isAsyncWrites() {
+		return asyncWrites;
+	}
+
+	/**
+	 * @return the number of writer threads
+	 */
+	public int getWriteThreads() {
+		return writeThreads;
+	}
+
+	/**
+	 * @return the maximum number of batches in flight
+	 */
+	public int getWriteQueue() {
+		return writeQueue;
+	}
+
+	/**
+	 * @return the listener told of failed asynchronous writes made outside of
+	 *         a transaction, null if none is set
+	 */
+	public WriteFailureListener getWriteFailureListener() {
+		return writeFailureListener;
+	}
+
+	/**
+	 * @return the most columns to read when an object and its relationship
+	 *         fields are loaded with a single call, 0 if disabled
+	 */
+	public int getWideRowRead() {
+		return wideRowRead;
+	}
+
+	/**
+	 * @return true if a new object with the key of a stored row deletes the
+	 *         columns of its null fields
+	 */
+	public boolean isInsertOverwrite() {
+		return insertOverwrite;
+	}
+
+	/**
+	 * @return the cache of rows shared by every PersistenceManager, null if
+	 *         disabled
+	 */
+	public RowCache getRowCache() {
+		return rowCache;
+	}
+
 
 
 	/**
@@ -248,6 +570,13 @@ public class CassandraStoreManager extends AbstractStoreManager {
 	public ByteConverterContext getByteConverterContext() {
 		return byteConverterContext;
 	}
+
+	/**
+	 * @return the stored relationship columns of loaded objects
+	 */
+	public RelationshipSnapshots getRelationshipSnapshots() {
+		return relationshipSnapshots;
+	}
 	
 	/*
 	 * (non-Javadoc)
@@ -276,82 +605,329 @@ public class CassandraStoreManager extends AbstractStoreManager {
 
 		Bytes key = byteConverterContext.getRowKeyForId(id);
 
-		return findObject(key, metaData, clr, ec, id);
+		String className = classNameCache == null ? null : classNameCache
+				.get(pcClassName, key);
+
+		if (className != null) {
+			return className;
+		}
+
+		// the row may be written by a batch still being sent
+		((CassandraPersistenceHandler) getPersistenceHandler())
+				.awaitWrites(ec);
+
+		className = findObject(key, metaData, clr, ec);
+
+		if (className != null && classNameCache != null) {
+			classNameCache.put(pcClassName, key, className);
+		}
+
+		return className;
 
 	}
 
-	private String findObject(Bytes key, AbstractClassMetaData metaData,
-			ClassLoaderResolver clr, ExecutionContext ec, Object id) {
+	/**
+	 * @return The estimated rows of the index clauses queried
+	 */
+	public IndexEstimates getIndexEstimates() {
+		return indexEstimates;
+	}
 
-		Selector selector = Pelops.createSelector(getPoolName());
+	/**
+	 * Remove the cached class of a deleted object for the class and all its
+	 * superclasses it may have been requested as
+	 * 
+	 * @param key
+	 * @param metaData
+	 */
+	public void removeClassName(Bytes key, AbstractClassMetaData metaData) {
+		if (classNameCache == null) {
+			return;
+		}
 
-		// if we have a discriminator, fetch the discriminator column only
-		// and see if it's equal
-		// to the class provided by the op
+		for (AbstractClassMetaData current = metaData; current != null; current = current
+				.getSuperAbstractClassMetaData()) {
+			classNameCache.remove(current.getFullClassName(), key);
+		}
+	}
 
-		List<Column> columns = null;
+	/**
+	 * @return the classes of the rows found when resolving descriminators, or
+	 *         null if the class cache is disabled
+	 */
+	public ClassNameCache getClassNameCache() {
+		return classNameCache;
+	}
 
-		try {
+	/**
+	 * @return the columns read with the discriminator of rows, waiting to be
+	 *         fetched, or null if prefetching is disabled
+	 */
+	public PrefetchedRows getPrefetchedRows() {
+		return prefetchedRows;
+	}
 
-			columns = selector.getColumnsFromRow(getColumnFamily(metaData),
-					key, getDescriminatorColumn(metaData), Consistency.get());
+	/**
+	 * Find the class of the object stored in the row. If the row of the class
+	 * has no discriminator every descendant with its own column family is
+	 * read concurrently
+	 * 
+	 * @param key
+	 * @param metaData
+	 * @param clr
+	 * @param ec
+	 * @return The class name, or null if the object doesn't exist
+	 */
+	private String findObject(final Bytes key, AbstractClassMetaData metaData,
+			ClassLoaderResolver clr, final ExecutionContext ec) {
 
-		} catch (Exception e) {
-			throw new NucleusDataStoreException(e.getMessage(), e);
+		final ConsistencyLevel consistency = Consistency.get();
+
+		Set<Bytes> names = getPrefetchColumns(metaData, clr, ec);
+
+		List<Column> columns = readDescriminator(key, metaData, names,
+				consistency);
+
+		if (columns != null) {
+			return getClassName(key, metaData, names, columns, ec);
 		}
 
-		// what do we do if no descriminator is found and one should be
-		// present?
-		if (columns == null || columns.size() != 1) {
+		List<AbstractClassMetaData> decendents = getDecendentTables(metaData,
+				clr, ec);
+
+		if (decendents.size() == 0) {
+			return null;
+		}
+
+		List<Set<Bytes>> decendentNames = new ArrayList<Set<Bytes>>();
+		List<Future<List<Column>>> results = new ArrayList<Future<List<Column>>>();
+
+		// the fetch plan is not thread safe, find the columns on this thread
+		for (final AbstractClassMetaData decendent : decendents) {
+			final Set<Bytes> decendentColumns = getPrefetchColumns(decendent,
+					clr, ec);
+
+			decendentNames.add(decendentColumns);
 
-			// now check if we have subclasses from the given metaData, if we do
-			// recurse to a child class and search for the object
-			String[] decendents = ec.getMetaDataManager()
-					.getSubclassesForClass(metaData.getFullClassName(), true);
+			results.add(queryExecutor.submit(new Callable<List<Column>>() {
 
-			// it has decendents, only recurse to them if their inheritance
-			// strategy is a new table
-			if (decendents == null || decendents.length == 0) {
-				return null;
+				@Override
+				public List<Column> call() throws Exception {
+					return readDescriminator(key, decendent,
+							decendentColumns, consistency);
+				}
+
+			}));
+		}
+
+		// take the first subclass in hierarchy order that has the
+		// descriminator stored
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				columns = results.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new NucleusDataStoreException(e.getMessage(), e);
+			} catch (ExecutionException e) {
+				throw new NucleusDataStoreException(e.getCause().getMessage(),
+						e.getCause());
 			}
 
-			AbstractClassMetaData decendentMetaData = null;
+			if (columns != null) {
+				return getClassName(key, decendents.get(i),
+						decendentNames.get(i), columns, ec);
+			}
+		}
 
-			for (String decendent : decendents) {
-				decendentMetaData = ec.getMetaDataManager()
-						.getMetaDataForClass(decendent, clr);
+		// nothing found in this class or it's children return null
+		return null;
+	}
 
-				InheritanceStrategy strategy = decendentMetaData
-						.getInheritanceMetaData().getStrategy();
+	/**
+	 * Get every descendant of the class with a descriminator that is stored
+	 * in its own column family, once per column family
+	 * 
+	 * @param metaData
+	 * @param clr
+	 * @param ec
+	 * @return
+	 */
+	private List<AbstractClassMetaData> getDecendentTables(
+			AbstractClassMetaData metaData, ClassLoaderResolver clr,
+			ExecutionContext ec) {
 
-				// either the subclass has it's own table, or one if it's
-				// children may, recurse to find the object
-				if (InheritanceStrategy.NEW_TABLE.equals(strategy)
-						|| InheritanceStrategy.SUBCLASS_TABLE.equals(strategy)) {
-					String result = findObject(key, decendentMetaData, clr, ec,
-							id);
+		List<AbstractClassMetaData> tables = new ArrayList<AbstractClassMetaData>();
 
-					// we found a subclass with the descriminator stored, return
-					// it
-					if (result != null) {
-						return result;
-					}
-				}
+		// all descendants, not only the direct subclasses
+		String[] decendents = ec.getMetaDataManager().getSubclassesForClass(
+				metaData.getFullClassName(), true);
+
+		if (decendents == null) {
+			return tables;
+		}
+
+		Set<String> columnFamilies = new HashSet<String>();
+		columnFamilies.add(getColumnFamily(metaData));
+
+		for (String decendent : decendents) {
+			AbstractClassMetaData decendentMetaData = ec.getMetaDataManager()
+					.getMetaDataForClass(decendent, clr);
+
+			InheritanceStrategy strategy = decendentMetaData
+					.getInheritanceMetaData().getStrategy();
+
+			// only the subclasses with their own table, or whose children
+			// may have one
+			if (!InheritanceStrategy.NEW_TABLE.equals(strategy)
+					&& !InheritanceStrategy.SUBCLASS_TABLE.equals(strategy)) {
+				continue;
 			}
 
-			// nothing found in this class or it's children return null
+			if (decendentMetaData.getDiscriminatorMetaData() != null
+					&& columnFamilies.add(getColumnFamily(decendentMetaData))) {
+				tables.add(decendentMetaData);
+			}
+		}
+
+		return tables;
+	}
+
+	/**
+	 * Get the columns to read with the descriminator. These are the
+	 * descriminator and the fetch plan columns of the class and the
+	 * subclasses that share its column family, so the object can be fetched
+	 * without reading the row again. Only the descriminator is read when
+	 * prefetching is disabled
+	 * 
+	 * @param metaData
+	 * @param clr
+	 * @param ec
+	 * @return
+	 */
+	private Set<Bytes> getPrefetchColumns(AbstractClassMetaData metaData,
+			ClassLoaderResolver clr, ExecutionContext ec) {
+
+		Set<Bytes> names = new LinkedHashSet<Bytes>();
+		names.add(getDiscriminatorColumnName(metaData));
+
+		if (prefetchedRows != null) {
+			names.addAll(getFetchPlanColumns(ec, metaData, clr));
+		}
+
+		return names;
+	}
+
+	/**
+	 * Read the descriminator of the row in the column family of the class
+	 * along with the other columns. Safe to call from any thread
+	 * 
+	 * @param key
+	 * @param metaData
+	 * @param names
+	 *            The descriminator and the columns to read with it
+	 * @param consistency
+	 * @return The columns read, or null if there is no descriminator
+	 */
+	private List<Column> readDescriminator(final Bytes key,
+			AbstractClassMetaData metaData, Set<Bytes> names,
+			final ConsistencyLevel consistency) {
+
+		final String columnFamily = getColumnFamily(metaData);
+
+		Bytes descriminatorColumn = getDiscriminatorColumnName(metaData);
+
+		final SlicePredicate predicate = Selector.newColumnsPredicate(names
+				.toArray(new Bytes[names.size()]));
+
+		long stamp = rowCache == null ? 0 : rowCache.getStamp();
+
+		List<Column> columns = null;
+
+		try {
+
+			columns = getRowPool(key).read(new Read<List<Column>>() {
+
+				@Override
+				public List<Column> execute(String poolName) {
+					return Pelops.createSelector(poolName).getColumnsFromRow(
+							columnFamily, key, predicate, consistency);
+				}
+			});
+
+		} catch (Exception e) {
+			throw new NucleusDataStoreException(e.getMessage(), e);
+		}
+
+		if (columns == null) {
 			return null;
+		}
+
+		for (Column column : columns) {
+			if (descriminatorColumn.equals(Bytes.fromBytes(column.getName()))) {
+
+				if (rowCache != null) {
+					rowCache.put(columnFamily, key, names, columns, stamp);
+				}
 
+				return columns;
+			}
 		}
 
-		String descriminatorValue = Bytes.toUTF8(columns.get(0).getValue());
+		// what do we do if no descriminator is found and one should be
+		// present?
+		return null;
+	}
 
-		String className = org.datanucleus.metadata.MetaDataUtils
-				.getClassNameFromDiscriminatorValue(descriminatorValue,
-						metaData.getDiscriminatorMetaData(), ec);
+	/**
+	 * Get the class name from the descriminator in the columns read, and keep
+	 * the columns for the fetch of the object by the context. Called on the
+	 * thread of the context
+	 * 
+	 * @param key
+	 * @param metaData
+	 *            The class the descriminator was read for
+	 * @param names
+	 *            The names of the columns that were requested
+	 * @param columns
+	 *            The columns read, including the descriminator
+	 * @param ec
+	 * @return
+	 */
+	private String getClassName(Bytes key, AbstractClassMetaData metaData,
+			Set<Bytes> names, List<Column> columns, ExecutionContext ec) {
+
+		if (prefetchedRows != null) {
+			prefetchedRows.put(ec, getColumnFamily(metaData), key, names,
+					columns);
+		}
 
-		// now recursively load the search for our class
+		Bytes descriminatorColumn = getDiscriminatorColumnName(metaData);
 
-		return className;
+		String descriminator = null;
+
+		for (Column column : columns) {
+			if (descriminatorColumn.equals(Bytes.fromBytes(column.getName()))) {
+				descriminator = Bytes.toUTF8(column.getValue());
+				break;
+			}
+		}
+
+		return getClassName(descriminator, metaData, ec);
+	}
+
+	/**
+	 * Get the class name for the descriminator value
+	 * 
+	 * @param descriminator
+	 * @param metaData
+	 *            The class the descriminator was read for
+	 * @param ec
+	 * @return
+	 */
+	private String getClassName(String descriminator,
+			AbstractClassMetaData metaData, ExecutionContext ec) {
+		return org.datanucleus.metadata.MetaDataUtils
+				.getClassNameFromDiscriminatorValue(descriminator,
+						metaData.getDiscriminatorMetaData(), ec);
 	}
 }
@@ -29,6 +29,7 @@ import org.datanucleus.OMFContext;
 import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.store.connection.AbstractConnectionFactory;
 import org.datanucleus.store.connection.ManagedConnection;
+import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Cluster;
 import org.scale7.cassandra.pelops.IConnection.Config;
 import org.scale7.cassandra.pelops.KeyspaceManager;
@@ -36,6 +37,8 @@ import org.scale7.cassandra.pelops.OperandPolicy;
 import org.scale7.cassandra.pelops.Pelops;
 import org.scale7.cassandra.pelops.pool.CommonsBackedPool.Policy;
 
+import com.spidertracks.datanucleus.client.RowPool;
+import com.spidertracks.datanucleus.client.TokenRouter;
 import com.spidertracks.datanucleus.utils.ClusterUtils;
 
 /**
@@ -55,6 +58,10 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory {
 
 	private String poolName;
 
+	private Config config;
+
+	private TokenRouter router;
+
 	private CassandraStoreManager manager;
 
 	/**
@@ -102,7 +109,7 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory {
 		// by default we won't discover other nodes we're not explicitly
 		// connected to. May change in future
 
-		Config config = new Config(defaultPort, framed, timeout);
+		config = new Config(defaultPort, framed, timeout);
 
 		cluster = new Cluster(hosts, config, discover);
 
@@ -155,16 +162,63 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory {
 		}
 
 		if (Pelops.getDbConnPool(poolName) == null) {
-			OperandPolicy opPolicy = new OperandPolicy();
-			opPolicy.setMaxOpRetries(3);
-			opPolicy.setDeleteIfNull(true);
-			
-			Policy policy = new Policy();
-			
-			Pelops.addPool(poolName, cluster, keyspace, policy, opPolicy);
+			Pelops.addPool(poolName, cluster, keyspace, new Policy(),
+					newOperandPolicy());
 		}
 	}
 
+	/**
+	 * Load the ring and create a pool for each node so rows can be sent to the
+	 * node that owns them
+	 * 
+	 * @param refreshInterval
+	 *            The milliseconds between reads of the ring
+	 */
+	public void enableTokenAwareRouting(long refreshInterval) {
+		router = TokenRouter.create(poolName, keyspace, config, new Policy(),
+				newOperandPolicy(), refreshInterval);
+	}
+
+	/**
+	 * Shut down the pools of the nodes in the ring
+	 */
+	public void disableTokenAwareRouting() {
+		if (router != null) {
+			router.close();
+			router = null;
+		}
+	}
+
+	/**
+	 * Get the pool to use for reads of a single row
+	 * 
+	 * @param key
+	 *            The row key
+	 * @return The pool of a node that owns the row, or the default pool when
+	 *         token aware routing is disabled
+	 */
+	public RowPool getRowPool(Bytes key) {
+		return new RowPool(router, poolName, key);
+	}
+
+	/**
+	 * @return The router, or null if token aware routing is disabled
+	 */
+	public TokenRouter getTokenRouter() {
+		return router;
+	}
+
+	/**
+	 * @return The operand policy of every pool
+	 */
+	private OperandPolicy newOperandPolicy() {
+		OperandPolicy opPolicy = new OperandPolicy();
+		opPolicy.setMaxOpRetries(3);
+		opPolicy.setDeleteIfNull(true);
+
+		return opPolicy;
+	}
+
 	/**
 	 * Setup the keyspace if the schema should be created
 	 * 
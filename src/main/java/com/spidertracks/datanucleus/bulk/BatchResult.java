@@ -0,0 +1,104 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.bulk;
+
+/**
+ * The outcome of a single batch written by the {@link BulkLoader}
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class BatchResult {
+
+	private int number;
+
+	private int objects;
+
+	private int mutations;
+
+	private long elapsedNanos;
+
+	private Throwable failure;
+
+	BatchResult(int number, int objects, int mutations, long elapsedNanos,
+			Throwable failure) {
+		this.number = number;
+		this.objects = objects;
+		this.mutations = mutations;
+		this.elapsedNanos = elapsedNanos;
+		this.failure = failure;
+	}
+
+	/**
+	 * @return The position of the batch in the stream, starting at 0
+	 */
+	public int getNumber() {
+		return number;
+	}
+
+	/**
+	 * @return The number of objects in the batch
+	 */
+	public int getObjects() {
+		return objects;
+	}
+
+	/**
+	 * @return The number of mutations written, 0 if encoding failed
+	 */
+	public int getMutations() {
+		return mutations;
+	}
+
+	/**
+	 * @return The time taken to encode and write the batch in milliseconds
+	 */
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000;
+	}
+
+	/**
+	 * @return The objects written per second
+	 */
+	public double getObjectsPerSecond() {
+		return elapsedNanos == 0 ? 0 : objects * 1000000000d / elapsedNanos;
+	}
+
+	/**
+	 * @return True if the batch was written
+	 */
+	public boolean isSuccess() {
+		return failure == null;
+	}
+
+	/**
+	 * @return The reason the batch failed, or null
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"batch %d: %d objects, %d mutations in %d ms (%.0f objects/s)%s",
+				number, objects, mutations, getElapsedMillis(),
+				getObjectsPerSecond(), failure == null ? "" : " failed: "
+						+ failure.getMessage());
+	}
+}
@@ -0,0 +1,35 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.bulk;
+
+/**
+ * Receives the result of every batch written by the {@link BulkLoader}. Calls
+ * are made from the loader's worker threads one at a time.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public interface BulkLoadListener {
+
+	/**
+	 * Invoked when a batch has been written or has failed
+	 * 
+	 * @param result
+	 */
+	public void batchComplete(BatchResult result);
+}
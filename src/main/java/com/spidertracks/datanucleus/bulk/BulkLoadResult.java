@@ -0,0 +1,125 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.bulk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The totals of a {@link BulkLoader} run
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class BulkLoadResult {
+
+	private long objects;
+
+	private long failedObjects;
+
+	private long mutations;
+
+	private int batches;
+
+	private long elapsedNanos;
+
+	private List<BatchResult> failures = new ArrayList<BatchResult>();
+
+	BulkLoadResult() {
+	}
+
+	/**
+	 * Add the batch to the totals
+	 * 
+	 * @param result
+	 */
+	synchronized void add(BatchResult result) {
+		batches++;
+
+		if (result.isSuccess()) {
+			objects += result.getObjects();
+			mutations += result.getMutations();
+		} else {
+			failedObjects += result.getObjects();
+			failures.add(result);
+		}
+	}
+
+	synchronized void setElapsedNanos(long elapsedNanos) {
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return The number of objects written
+	 */
+	public synchronized long getObjects() {
+		return objects;
+	}
+
+	/**
+	 * @return The number of objects in failed batches
+	 */
+	public synchronized long getFailedObjects() {
+		return failedObjects;
+	}
+
+	/**
+	 * @return The number of mutations written
+	 */
+	public synchronized long getMutations() {
+		return mutations;
+	}
+
+	/**
+	 * @return The number of batches attempted
+	 */
+	public synchronized int getBatches() {
+		return batches;
+	}
+
+	/**
+	 * @return The batches that failed
+	 */
+	public synchronized List<BatchResult> getFailures() {
+		return Collections.unmodifiableList(new ArrayList<BatchResult>(
+				failures));
+	}
+
+	/**
+	 * @return The time taken by the entire load in milliseconds
+	 */
+	public synchronized long getElapsedMillis() {
+		return elapsedNanos / 1000000;
+	}
+
+	/**
+	 * @return The objects written per second over the entire load
+	 */
+	public synchronized double getObjectsPerSecond() {
+		return elapsedNanos == 0 ? 0 : objects * 1000000000d / elapsedNanos;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"%d objects, %d mutations in %d batches, %d ms (%.0f objects/s), %d failed batches",
+				objects, mutations, batches, getElapsedMillis(),
+				getObjectsPerSecond(), failures.size());
+	}
+}
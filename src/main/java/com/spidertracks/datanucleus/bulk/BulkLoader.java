@@ -0,0 +1,297 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.bulk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.util.NucleusLogger;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.mutate.BatchMutationManager;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
+
+/**
+ * Writes large numbers of new objects without a PersistenceManager. Objects
+ * are read from the stream into batches, and each batch is encoded into
+ * columns and written by one of the worker threads. No StateManager, flush or
+ * reachability processing takes place, so related objects are not written
+ * unless they're in the stream as well. Every object must use application
+ * identity with a single primary key field, null UUID keys are generated.
+ * 
+ * The result of each batch is reported to the {@link BulkLoadListener} and a
+ * failed batch does not stop the load.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class BulkLoader {
+
+	private CassandraStoreManager manager;
+
+	private ObjectEncoder encoder;
+
+	private ExecutorService executor;
+
+	private int threads;
+
+	private int batchObjects;
+
+	/**
+	 * 
+	 * @param manager
+	 *            The store manager of the PersistenceManagerFactory
+	 * @param threads
+	 *            The number of worker threads. 0 uses one per processor
+	 * @param batchObjects
+	 *            The number of objects in each batch. 0 uses the
+	 *            com.spidertracks.cassandra.batchrows setting
+	 */
+	public BulkLoader(CassandraStoreManager manager, int threads,
+			int batchObjects) {
+		this.manager = manager;
+		this.encoder = new ObjectEncoder(manager);
+
+		this.threads = threads == 0 ? Runtime.getRuntime()
+				.availableProcessors() : threads;
+		this.batchObjects = batchObjects == 0 ? manager.getBatchLimits()
+				.getMaxRows() : batchObjects;
+
+		final AtomicInteger count = new AtomicInteger();
+
+		ThreadFactory factory = new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "cassandra-bulk-"
+						+ count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		};
+
+		this.executor = new ThreadPoolExecutor(this.threads, this.threads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+	}
+
+	/**
+	 * Write every object in the stream. Returns once every batch has been
+	 * written or has failed. Batches are written with the caller's
+	 * consistency level
+	 * 
+	 * @param objects
+	 * @return
+	 */
+	public BulkLoadResult load(Iterable<?> objects) {
+		return load(objects.iterator(), null);
+	}
+
+	/**
+	 * Write every object in the stream. Returns once every batch has been
+	 * written or has failed. Batches are written with the caller's
+	 * consistency level
+	 * 
+	 * @param objects
+	 * @param listener
+	 *            Receives the result of every batch, may be null
+	 * @return
+	 */
+	public BulkLoadResult load(Iterator<?> objects, BulkLoadListener listener) {
+		BulkLoadResult result = new BulkLoadResult();
+
+		// two batches per worker keeps the workers busy while the caller
+		// reads the next batch, without holding the whole stream in memory
+		int maxInFlight = threads * 2;
+
+		Semaphore inFlight = new Semaphore(maxInFlight);
+
+		long start = System.nanoTime();
+
+		int number = 0;
+
+		List<Object> batch = new ArrayList<Object>(batchObjects);
+
+		try {
+			while (objects.hasNext()) {
+				batch.add(objects.next());
+
+				if (batch.size() == batchObjects) {
+					submit(new Batch(number++, batch, result, listener),
+							inFlight);
+					batch = new ArrayList<Object>(batchObjects);
+				}
+			}
+
+			if (batch.size() > 0) {
+				submit(new Batch(number++, batch, result, listener), inFlight);
+			}
+
+			// wait for every batch to complete
+			inFlight.acquire(maxInFlight);
+			inFlight.release(maxInFlight);
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new NucleusDataStoreException(
+					"Interrupted while waiting for the bulk load", e);
+		}
+
+		result.setElapsedNanos(System.nanoTime() - start);
+
+		NucleusLogger.DATASTORE_PERSIST.info("Bulk load complete: " + result);
+
+		return result;
+	}
+
+	/**
+	 * Stop the worker threads
+	 */
+	public void close() {
+		executor.shutdown();
+
+		try {
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queue the batch, blocking while the maximum number of batches are in
+	 * flight
+	 * 
+	 * @param batch
+	 * @param inFlight
+	 * @throws InterruptedException
+	 */
+	private void submit(final Batch batch, final Semaphore inFlight)
+			throws InterruptedException {
+		inFlight.acquire();
+
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						batch.write();
+					} finally {
+						inFlight.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.release();
+			throw new NucleusDataStoreException(
+					"The bulk loader has been closed", e);
+		}
+	}
+
+	/**
+	 * The objects of a single batch_mutate
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private class Batch {
+
+		private int number;
+
+		private List<Object> objects;
+
+		private BulkLoadResult result;
+
+		private BulkLoadListener listener;
+
+		// consistency is per thread, write with the caller's level
+		private ConsistencyLevel level = Consistency.get();
+
+		private Batch(int number, List<Object> objects, BulkLoadResult result,
+				BulkLoadListener listener) {
+			this.number = number;
+			this.objects = objects;
+			this.result = result;
+			this.listener = listener;
+		}
+
+		/**
+		 * Encode and write the objects, then report the result
+		 */
+		private void write() {
+			long start = System.nanoTime();
+
+			// stamped like the writes of persistence managers, so the two
+			// are ordered by when they were made
+			BatchMutator mutator = new BatchMutator(manager.getPoolName(),
+					manager.getTokenRouter(),
+					BatchMutationManager.nextTimestamp(),
+					manager.getBatchLimits());
+
+			mutator.setRowCache(manager.getRowCache());
+
+			int mutations = 0;
+
+			Throwable failure = null;
+
+			try {
+				Consistency.set(level);
+
+				for (Object object : objects) {
+					encoder.encode(object, mutator);
+				}
+
+				mutations = mutator.size();
+
+				mutator.execute(level);
+			} catch (Throwable t) {
+				failure = t;
+
+				NucleusLogger.DATASTORE_PERSIST.error("Bulk load batch "
+						+ number + " failed", t);
+			} finally {
+				// the worker thread is pooled, don't leave our level on it
+				Consistency.remove();
+			}
+
+			BatchResult batchResult = new BatchResult(number, objects.size(),
+					failure == null ? mutations : 0, System.nanoTime() - start,
+					failure);
+
+			result.add(batchResult);
+
+			if (listener != null) {
+				synchronized (listener) {
+					listener.batchComplete(batchResult);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,401 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.bulk;
+
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnFamily;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnName;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDiscriminatorColumnName;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.api.ApiAdapter;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.IdentityType;
+import org.datanucleus.metadata.Relation;
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.collection.WriteCollection;
+import com.spidertracks.datanucleus.collection.WriteMap;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
+
+/**
+ * Encodes persistable objects straight into column mutations without a
+ * StateManager. Field values are read from the object with reflection and
+ * converted with the {@link ByteConverterContext}, producing the same columns
+ * an insert through the persistence handler writes. Related objects are
+ * referenced by their identity but are not written themselves.
+ * 
+ * @author Todd Nine
+ * 
+ */
+class ObjectEncoder {
+
+	private CassandraStoreManager manager;
+
+	private ByteConverterContext byteContext;
+
+	private ApiAdapter adapter;
+
+	private ConcurrentMap<Class<?>, ClassEncoding> encodings = new ConcurrentHashMap<Class<?>, ClassEncoding>();
+
+	ObjectEncoder(CassandraStoreManager manager) {
+		this.manager = manager;
+		this.byteContext = manager.getByteConverterContext();
+		this.adapter = manager.getApiAdapter();
+	}
+
+	/**
+	 * Write the columns of the object to the mutator
+	 * 
+	 * @param object
+	 * @param mutator
+	 */
+	void encode(Object object, BatchMutator mutator) {
+		ClassEncoding encoding = getEncoding(object.getClass());
+
+		Bytes key = byteContext.getRowKeyForId(encoding.getId(object));
+
+		for (FieldEncoding field : encoding.fields) {
+			Object value = field.get(object);
+
+			// nothing is stored for a new row
+			if (value == null) {
+				continue;
+			}
+
+			field.write(mutator, encoding.columnFamily, key, value);
+		}
+
+		if (encoding.discriminatorColumn != null) {
+			mutator.writeColumn(encoding.columnFamily, key, mutator.newColumn(
+					encoding.discriminatorColumn, encoding.discriminatorValue));
+		}
+	}
+
+	/**
+	 * Get the identity of a related object. The object must be loaded as
+	 * well for the reference to resolve
+	 * 
+	 * @param related
+	 * @return
+	 */
+	private Object getRelatedId(Object related) {
+		return getEncoding(related.getClass()).getId(related);
+	}
+
+	/**
+	 * Get the encoding of the class, building it on first use
+	 * 
+	 * @param type
+	 * @return
+	 */
+	private ClassEncoding getEncoding(Class<?> type) {
+		ClassEncoding encoding = encodings.get(type);
+
+		if (encoding == null) {
+			encoding = new ClassEncoding(type);
+
+			ClassEncoding existing = encodings.putIfAbsent(type, encoding);
+
+			if (existing != null) {
+				encoding = existing;
+			}
+		}
+
+		return encoding;
+	}
+
+	/**
+	 * The column family, identity and fields of a single class
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private class ClassEncoding {
+
+		private String columnFamily;
+
+		private AbstractMemberMetaData pkMember;
+
+		private AccessibleObject pkAccessor;
+
+		private List<FieldEncoding> fields = new ArrayList<FieldEncoding>();
+
+		private Bytes discriminatorColumn;
+
+		private String discriminatorValue;
+
+		private ClassEncoding(Class<?> type) {
+			ClassLoaderResolver clr = manager.getOMFContext()
+					.getClassLoaderResolver(type.getClassLoader());
+
+			AbstractClassMetaData metaData = manager.getMetaDataManager()
+					.getMetaDataForClass(type, clr);
+
+			if (metaData == null) {
+				throw new NucleusUserException(String.format(
+						"%s is not persistable", type.getName()));
+			}
+
+			if (metaData.getIdentityType() != IdentityType.APPLICATION
+					|| metaData.getPKMemberPositions().length != 1) {
+				throw new NucleusUserException(
+						String.format(
+								"%s must use application identity with a single primary key field to be bulk loaded",
+								type.getName()));
+			}
+
+			columnFamily = getColumnFamily(metaData);
+
+			int pkPosition = metaData.getPKMemberPositions()[0];
+
+			pkMember = metaData
+					.getMetaDataForManagedMemberAtAbsolutePosition(pkPosition);
+			pkAccessor = getAccessor(pkMember);
+
+			for (int position : metaData.getAllMemberPositions()) {
+				AbstractMemberMetaData member = metaData
+						.getMetaDataForManagedMemberAtAbsolutePosition(position);
+
+				if (!member.isFieldToBePersisted()) {
+					continue;
+				}
+
+				fields.add(new FieldEncoding(member, getColumnName(metaData,
+						position), member.getRelationType(clr)));
+			}
+
+			if (metaData.hasDiscriminatorStrategy()) {
+				discriminatorColumn = getDiscriminatorColumnName(metaData
+						.getDiscriminatorMetaData());
+				discriminatorValue = metaData.getDiscriminatorMetaData()
+						.getValue();
+			}
+		}
+
+		/**
+		 * Get the primary key of the object. Null UUID keys are generated
+		 * the same way the uuid-cassandra value strategy does
+		 * 
+		 * @param object
+		 * @return
+		 */
+		private Object getId(Object object) {
+			synchronized (object) {
+				Object id = read(pkAccessor, object);
+
+				if (id != null) {
+					return id;
+				}
+
+				if (pkMember.getType() == com.eaio.uuid.UUID.class) {
+					id = new com.eaio.uuid.UUID();
+				} else if (pkMember.getType() == java.util.UUID.class) {
+					id = java.util.UUID.randomUUID();
+				} else {
+					throw new NucleusUserException(
+							String.format(
+									"The primary key of %s is null and can't be generated by the bulk loader",
+									object.getClass().getName()));
+				}
+
+				write(pkAccessor, object, id);
+
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * Reads a single field and writes its columns
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private class FieldEncoding {
+
+		private AbstractMemberMetaData member;
+
+		private AccessibleObject accessor;
+
+		private Bytes columnName;
+
+		private int relationType;
+
+		private FieldEncoding(AbstractMemberMetaData member, Bytes columnName,
+				int relationType) {
+			this.member = member;
+			this.accessor = getAccessor(member);
+			this.columnName = columnName;
+			this.relationType = relationType;
+		}
+
+		private Object get(Object object) {
+			return read(accessor, object);
+		}
+
+		private void write(BatchMutator mutator, String columnFamily,
+				Bytes key, Object value) {
+
+			if (relationType == Relation.ONE_TO_ONE_BI
+					|| relationType == Relation.ONE_TO_ONE_UNI
+					|| relationType == Relation.MANY_TO_ONE_BI) {
+
+				if (member.isEmbedded()) {
+					throw new NucleusUserException(
+							"Embedded objects are unsupported.  Mark the object as persistent and use a serializable class instead");
+				}
+
+				mutator.writeColumn(columnFamily, key, mutator.newColumn(
+						columnName,
+						byteContext.getRowKeyForId(getRelatedId(value))));
+
+				return;
+			}
+
+			if (relationType == Relation.MANY_TO_MANY_BI
+					|| relationType == Relation.ONE_TO_MANY_BI
+					|| relationType == Relation.ONE_TO_MANY_UNI) {
+
+				if (member.hasCollection()) {
+					WriteCollection collectionWriter = new WriteCollection(
+							byteContext, columnFamily, key, columnName);
+
+					for (Object element : (Collection<?>) value) {
+						// a null element has no row to reference
+						if (element == null) {
+							continue;
+						}
+
+						collectionWriter.addRelationship(getRelatedId(element));
+					}
+
+					collectionWriter.writeChanges(mutator, null);
+
+				} else if (member.hasMap()) {
+					WriteMap mapWriter = new WriteMap(byteContext,
+							columnFamily, key, columnName);
+
+					for (Map.Entry<?, ?> entry : ((Map<?, ?>) value)
+							.entrySet()) {
+						Object mapKey = entry.getKey();
+						Object mapValue = entry.getValue();
+
+						if (mapKey == null || mapValue == null) {
+							continue;
+						}
+
+						mapWriter.addRelationship(
+								adapter.isPersistable(mapKey) ? getRelatedId(mapKey)
+										: mapKey,
+								adapter.isPersistable(mapValue) ? getRelatedId(mapValue)
+										: mapValue);
+					}
+
+					mapWriter.writeChanges(mutator, null);
+
+				} else if (member.hasArray()) {
+					WriteMap mapWriter = new WriteMap(byteContext,
+							columnFamily, key, columnName);
+
+					for (int i = 0; i < Array.getLength(value); i++) {
+						Object element = Array.get(value, i);
+
+						// an empty slot is left without a column
+						if (element == null) {
+							continue;
+						}
+
+						mapWriter.addRelationship(i, getRelatedId(element));
+					}
+
+					mapWriter.writeChanges(mutator, null);
+				}
+
+				return;
+			}
+
+			Bytes data = value instanceof Byte ? Bytes.fromByte((Byte) value)
+					: byteContext.getBytes(value);
+
+			mutator.writeColumn(columnFamily, key,
+					mutator.newColumn(columnName, data));
+		}
+	}
+
+	/**
+	 * Get the field or getter of the member
+	 * 
+	 * @param member
+	 * @return
+	 */
+	private static AccessibleObject getAccessor(AbstractMemberMetaData member) {
+		Member represented = member.getMemberRepresented();
+
+		if (!(represented instanceof AccessibleObject)) {
+			throw new NucleusUserException(String.format(
+					"Unable to access %s", member.getFullFieldName()));
+		}
+
+		AccessibleObject accessor = (AccessibleObject) represented;
+		accessor.setAccessible(true);
+
+		return accessor;
+	}
+
+	private static Object read(AccessibleObject accessor, Object object) {
+		try {
+			if (accessor instanceof Field) {
+				return ((Field) accessor).get(object);
+			}
+
+			return ((Method) accessor).invoke(object);
+		} catch (Exception e) {
+			throw new NucleusUserException("Unable to read " + accessor, e);
+		}
+	}
+
+	private static void write(AccessibleObject accessor, Object object,
+			Object value) {
+		if (!(accessor instanceof Field)) {
+			throw new NucleusUserException(
+					"Generated keys require field access, set the key before loading the object");
+		}
+
+		try {
+			((Field) accessor).set(object, value);
+		} catch (Exception e) {
+			throw new NucleusUserException("Unable to set " + accessor, e);
+		}
+	}
+}
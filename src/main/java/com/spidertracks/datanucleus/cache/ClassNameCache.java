@@ -0,0 +1,174 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Caches the class of the object stored in a row, as resolved from the
+ * discriminator column, so polymorphic lookups by identity don't need to read
+ * the discriminator again. The least recently used entries are removed once
+ * the maximum size is reached, and entries expire after a fixed time so a row
+ * deleted and stored as another class by a different client is eventually
+ * seen.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class ClassNameCache {
+
+	private LinkedHashMap<ClassKey, ClassName> classNames;
+
+	private long ttl;
+
+	/**
+	 * 
+	 * @param maxSize
+	 *            The most entries to keep
+	 * @param ttl
+	 *            The time in milliseconds an entry is kept
+	 */
+	public ClassNameCache(final int maxSize, long ttl) {
+		this.ttl = ttl;
+		this.classNames = new LinkedHashMap<ClassKey, ClassName>(16, 0.75f,
+				true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<ClassKey, ClassName> eldest) {
+				return size() > maxSize;
+			}
+
+		};
+	}
+
+	/**
+	 * Get the class of the object in the row
+	 * 
+	 * @param className
+	 *            The class the object was requested as
+	 * @param key
+	 *            The row key
+	 * @return The name of the stored class, or null if not cached
+	 */
+	public synchronized String get(String className, Bytes key) {
+		ClassKey classKey = new ClassKey(className, key);
+
+		ClassName stored = classNames.get(classKey);
+
+		if (stored == null) {
+			return null;
+		}
+
+		if (System.currentTimeMillis() > stored.expires) {
+			classNames.remove(classKey);
+			return null;
+		}
+
+		return stored.name;
+	}
+
+	/**
+	 * Set the class of the object in the row
+	 * 
+	 * @param className
+	 *            The class the object was requested as
+	 * @param key
+	 *            The row key
+	 * @param storedClassName
+	 *            The name of the stored class
+	 */
+	public synchronized void put(String className, Bytes key,
+			String storedClassName) {
+		classNames.put(new ClassKey(className, key), new ClassName(
+				storedClassName, System.currentTimeMillis() + ttl));
+	}
+
+	/**
+	 * Remove the class of the object in the row
+	 * 
+	 * @param className
+	 *            The class the object was requested as
+	 * @param key
+	 *            The row key
+	 */
+	public synchronized void remove(String className, Bytes key) {
+		classNames.remove(new ClassKey(className, key));
+	}
+
+	/**
+	 * @return The number of entries held, including expired entries that
+	 *         have not been read since they expired
+	 */
+	public synchronized int size() {
+		return classNames.size();
+	}
+
+	/**
+	 * The stored class name and when it expires
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private static class ClassName {
+		private String name;
+		private long expires;
+
+		private ClassName(String name, long expires) {
+			this.name = name;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * The requested class and row key
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private static class ClassKey {
+		private String className;
+		private Bytes key;
+
+		private ClassKey(String className, Bytes key) {
+			this.className = className;
+			this.key = key;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * className.hashCode() + key.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ClassKey)) {
+				return false;
+			}
+
+			ClassKey other = (ClassKey) obj;
+
+			return className.equals(other.className) && key.equals(other.key);
+		}
+	}
+}
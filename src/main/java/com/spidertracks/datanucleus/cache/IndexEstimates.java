@@ -0,0 +1,151 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.IndexExpression;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Estimates of the number of rows matching index clauses of a store manager.
+ * Estimates are kept per column family and indexed columns, operators and
+ * values. Values are often skewed, so the estimate of one parameter value
+ * says nothing about another. The least recently used estimates are removed once the maximum size is
+ * reached, and estimates expire after a fixed time.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class IndexEstimates {
+
+	private LinkedHashMap<List<Object>, Estimate> estimates;
+
+	private long ttl;
+
+	/**
+	 * 
+	 * @param maxSize
+	 *            The most estimates to keep
+	 * @param ttl
+	 *            The time in milliseconds an estimate is kept
+	 */
+	public IndexEstimates(final int maxSize, long ttl) {
+		this.ttl = ttl;
+		this.estimates = new LinkedHashMap<List<Object>, Estimate>(16, 0.75f,
+				true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<List<Object>, Estimate> eldest) {
+				return size() > maxSize;
+			}
+
+		};
+	}
+
+	/**
+	 * Get the estimated rows of the index clause
+	 * 
+	 * @param cfName
+	 * @param expressions
+	 * @return The estimated rows, or -1 if there is no estimate
+	 */
+	public synchronized long get(String cfName,
+			List<IndexExpression> expressions) {
+		List<Object> key = newKey(cfName, expressions);
+
+		Estimate estimate = estimates.get(key);
+
+		if (estimate == null) {
+			return -1;
+		}
+
+		if (estimate.expires < System.currentTimeMillis()) {
+			estimates.remove(key);
+			return -1;
+		}
+
+		return estimate.rows;
+	}
+
+	/**
+	 * Set the estimated rows of the index clause
+	 * 
+	 * @param cfName
+	 * @param expressions
+	 * @param rows
+	 */
+	public synchronized void put(String cfName,
+			List<IndexExpression> expressions, long rows) {
+		estimates.put(newKey(cfName, expressions), new Estimate(rows,
+				System.currentTimeMillis() + ttl));
+	}
+
+	/**
+	 * @return The number of estimates kept
+	 */
+	public synchronized int size() {
+		return estimates.size();
+	}
+
+	/**
+	 * The column family followed by the column, operator and value of every
+	 * expression
+	 * 
+	 * @param cfName
+	 * @param expressions
+	 * @return
+	 */
+	private List<Object> newKey(String cfName,
+			List<IndexExpression> expressions) {
+		List<Object> key = new ArrayList<Object>(expressions.size() * 2 + 1);
+
+		key.add(cfName);
+
+		for (IndexExpression expression : expressions) {
+			key.add(new Bytes(expression.getColumn_name()));
+			key.add(expression.getOp());
+			key.add(new Bytes(expression.getValue()));
+		}
+
+		return key;
+	}
+
+	/**
+	 * The estimated rows of an index clause
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private static class Estimate {
+		private long rows;
+		private long expires;
+
+		private Estimate(long rows, long expires) {
+			this.rows = rows;
+			this.expires = expires;
+		}
+	}
+
+}
@@ -0,0 +1,148 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.Column;
+import org.datanucleus.store.ExecutionContext;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Holds the columns read with the discriminator of a row until the object is
+ * fetched, so locating an object by identity reads the row once. Only the
+ * last row read on each thread is held, for the execution context that read
+ * it, and it's discarded by the next fetch of that context whether it's used
+ * or not, or once the context writes the row. An execution context is used
+ * by one thread at a time, so nothing is shared between contexts and no lock
+ * is taken.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class PrefetchedRows {
+
+	private ThreadLocal<PrefetchedRow> rows = new ThreadLocal<PrefetchedRow>();
+
+	/**
+	 * Hold the columns read from the row. Must be called on the thread using
+	 * the context
+	 * 
+	 * @param ec
+	 * @param columnFamily
+	 * @param key
+	 * @param columns
+	 *            The names of the columns that were requested
+	 * @param read
+	 *            The columns that were returned
+	 */
+	public void put(ExecutionContext ec, String columnFamily, Bytes key,
+			Collection<Bytes> columns, List<Column> read) {
+		PrefetchedRow row = new PrefetchedRow(ec, columnFamily, key);
+
+		row.known.addAll(columns);
+
+		for (Column column : read) {
+			Bytes name = Bytes.fromBytes(column.getName());
+
+			row.known.add(name);
+			row.values.put(name, Bytes.fromBytes(column.getValue()));
+		}
+
+		rows.set(row);
+	}
+
+	/**
+	 * Remove the row held for the context and return its columns if it's the
+	 * requested row and every column was read
+	 * 
+	 * @param ec
+	 * @param columnFamily
+	 * @param key
+	 * @param columns
+	 *            The names of the columns to read
+	 * @return The columns that have values, or null if they were not read
+	 */
+	public Map<Bytes, Bytes> take(ExecutionContext ec, String columnFamily,
+			Bytes key, Collection<Bytes> columns) {
+		PrefetchedRow row = rows.get();
+
+		// nothing held, or held for another context on this thread
+		if (row == null || row.context.get() != ec) {
+			return null;
+		}
+
+		rows.remove();
+
+		if (!row.columnFamily.equals(columnFamily) || !row.key.equals(key)
+				|| !row.known.containsAll(columns)) {
+			return null;
+		}
+
+		return row.values;
+	}
+
+	/**
+	 * Discard the row held for the context if it's the written row
+	 * 
+	 * @param ec
+	 * @param columnFamily
+	 * @param key
+	 */
+	public void invalidate(ExecutionContext ec, String columnFamily, Bytes key) {
+		PrefetchedRow row = rows.get();
+
+		if (row != null && row.context.get() == ec
+				&& row.columnFamily.equals(columnFamily)
+				&& row.key.equals(key)) {
+			rows.remove();
+		}
+	}
+
+	/**
+	 * The columns read from a row
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private static class PrefetchedRow {
+		// a closed context is never held on to by a pooled thread
+		private WeakReference<ExecutionContext> context;
+
+		private String columnFamily;
+		private Bytes key;
+
+		// every column read, whether it has a value or not
+		private Set<Bytes> known = new HashSet<Bytes>();
+
+		private Map<Bytes, Bytes> values = new HashMap<Bytes, Bytes>();
+
+		private PrefetchedRow(ExecutionContext ec, String columnFamily,
+				Bytes key) {
+			this.context = new WeakReference<ExecutionContext>(ec);
+			this.columnFamily = columnFamily;
+			this.key = key;
+		}
+	}
+}
@@ -0,0 +1,540 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.Column;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Caches the columns read from rows so objects can be loaded without reading
+ * Cassandra. The cache is shared by every PersistenceManager of the factory.
+ * Rows are evicted least recently used first once the number of rows or the
+ * estimated size in bytes is exceeded, and expire after a fixed time. Every
+ * write or delete of a row through this factory removes it from the cache,
+ * writes from other clients are only seen once the row expires.
+ * 
+ * Rows are spread over segments by key, each with its own lock and an equal
+ * share of the limits, so concurrent readers and writers of different rows
+ * rarely wait for each other. Small caches use a single segment.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class RowCache {
+
+	// rough overhead of each cached row and column in bytes
+	private static final int ROW_OVERHEAD = 128;
+	private static final int COLUMN_OVERHEAD = 64;
+
+	// the most invalidated rows to remember
+	private static final int MAX_TOMBSTONES = 10000;
+
+	// the most segments, and the fewest rows of each segment
+	private static final int SEGMENTS = 16;
+	private static final int MIN_SEGMENT_ROWS = 64;
+
+	private long ttl;
+
+	// incremented on every invalidation, the stamp taken before a read
+	private AtomicLong invalidations = new AtomicLong();
+
+	private Segment[] segments;
+
+	/**
+	 * 
+	 * @param maxRows
+	 *            The most rows to keep
+	 * @param maxBytes
+	 *            The most bytes of column names and values to keep
+	 * @param ttl
+	 *            The time in milliseconds a row is kept
+	 */
+	public RowCache(int maxRows, long maxBytes, long ttl) {
+		this.ttl = ttl;
+
+		int count = Math.max(1,
+				Math.min(SEGMENTS, maxRows / MIN_SEGMENT_ROWS));
+
+		segments = new Segment[count];
+
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(maxRows / count, maxBytes / count,
+					Math.max(1, MAX_TOMBSTONES / count));
+		}
+	}
+
+	/**
+	 * Get the cached values of the columns. The row is only returned if
+	 * every column is known, either with a value or known to be empty
+	 * 
+	 * @param columnFamily
+	 * @param key
+	 * @param columns
+	 *            The names of the columns to read
+	 * @return The columns that have values, or null if the row is not cached
+	 */
+	public Map<Bytes, Bytes> get(String columnFamily, Bytes key,
+			Collection<Bytes> columns) {
+		RowKey rowKey = new RowKey(columnFamily, key);
+
+		return segmentFor(rowKey).get(rowKey, columns);
+	}
+
+	/**
+	 * Get the stamp to pass to put before reading a row
+	 * 
+	 * @return
+	 */
+	public long getStamp() {
+		return invalidations.get();
+	}
+
+	/**
+	 * Cache the columns read from the row. Nothing is cached if the row has
+	 * been invalidated since the stamp was taken, since the columns may
+	 * have been read before the write
+	 * 
+	 * @param columnFamily
+	 * @param key
+	 * @param columns
+	 *            The names of the columns that were requested
+	 * @param read
+	 *            The columns that were returned
+	 * @param stamp
+	 *            The stamp taken before the row was read
+	 */
+	public void put(String columnFamily, Bytes key,
+			Collection<Bytes> columns, List<Column> read, long stamp) {
+		if (read == null || read.isEmpty()) {
+			return;
+		}
+
+		RowKey rowKey = new RowKey(columnFamily, key);
+
+		segmentFor(rowKey).put(rowKey, columns, read, stamp);
+	}
+
+	/**
+	 * Remove the row from the cache
+	 * 
+	 * @param columnFamily
+	 * @param key
+	 */
+	public void invalidate(String columnFamily, Bytes key) {
+		RowKey rowKey = new RowKey(columnFamily, key);
+
+		segmentFor(rowKey).invalidate(rowKey,
+				invalidations.incrementAndGet());
+	}
+
+	/**
+	 * Remove every row from the cache
+	 */
+	public void clear() {
+		long stamp = invalidations.incrementAndGet();
+
+		for (Segment segment : segments) {
+			segment.clear(stamp);
+		}
+	}
+
+	/**
+	 * @return The number of reads served from the cache
+	 */
+	public long getHits() {
+		long hits = 0;
+
+		for (Segment segment : segments) {
+			hits += segment.getHits();
+		}
+
+		return hits;
+	}
+
+	/**
+	 * @return The number of reads that were not cached
+	 */
+	public long getMisses() {
+		long misses = 0;
+
+		for (Segment segment : segments) {
+			misses += segment.getMisses();
+		}
+
+		return misses;
+	}
+
+	/**
+	 * @return The number of rows removed to stay within the limits
+	 */
+	public long getEvictions() {
+		long evictions = 0;
+
+		for (Segment segment : segments) {
+			evictions += segment.getEvictions();
+		}
+
+		return evictions;
+	}
+
+	/**
+	 * @return The number of rows removed because they were written
+	 */
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	/**
+	 * @return The number of cached rows
+	 */
+	public int getRows() {
+		int rows = 0;
+
+		for (Segment segment : segments) {
+			rows += segment.getRows();
+		}
+
+		return rows;
+	}
+
+	/**
+	 * @return The estimated size of the cached rows in bytes
+	 */
+	public long getBytes() {
+		long bytes = 0;
+
+		for (Segment segment : segments) {
+			bytes += segment.getBytes();
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * @return The number of segments the rows are spread over
+	 */
+	public int getSegments() {
+		return segments.length;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d rows, %d bytes, %d hits, %d misses, %d evictions, %d invalidations",
+				getRows(), getBytes(), getHits(), getMisses(), getEvictions(),
+				getInvalidations());
+	}
+
+	private Segment segmentFor(RowKey rowKey) {
+		int hash = rowKey.hashCode();
+
+		// mix the high bits in, keys often differ only in their last bytes
+		hash ^= (hash >>> 16);
+
+		return segments[(hash & Integer.MAX_VALUE) % segments.length];
+	}
+
+	/**
+	 * The rows of one share of the keys, guarded by its own lock
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private class Segment {
+
+		private int maxRows;
+
+		private long maxBytes;
+
+		private int maxTombstones;
+
+		private long bytes;
+
+		private long hits;
+
+		private long misses;
+
+		private long evictions;
+
+		// the stamp of the last invalidation of each recently written row, so
+		// a read of the row that started before the write is never cached
+		// after it
+		private LinkedHashMap<RowKey, Long> tombstones = new LinkedHashMap<RowKey, Long>();
+
+		// reads that started before this stamp are never cached, since the
+		// tombstones of the rows they may have read have been dropped
+		private long pruned;
+
+		private LinkedHashMap<RowKey, CachedRow> rows = new LinkedHashMap<RowKey, CachedRow>(
+				16, 0.75f, true);
+
+		private Segment(int maxRows, long maxBytes, int maxTombstones) {
+			this.maxRows = maxRows;
+			this.maxBytes = maxBytes;
+			this.maxTombstones = maxTombstones;
+		}
+
+		private synchronized Map<Bytes, Bytes> get(RowKey rowKey,
+				Collection<Bytes> columns) {
+			CachedRow row = rows.get(rowKey);
+
+			if (row != null && row.isExpired()) {
+				remove(rowKey);
+				row = null;
+			}
+
+			if (row == null || !row.contains(columns)) {
+				misses++;
+				return null;
+			}
+
+			hits++;
+
+			Map<Bytes, Bytes> values = new HashMap<Bytes, Bytes>();
+
+			for (Bytes column : columns) {
+				Bytes value = row.values.get(column);
+
+				// readers move the buffer positions, never hand out our own
+				if (value != null) {
+					values.put(column, copy(value.getBytes()));
+				}
+			}
+
+			return values;
+		}
+
+		private synchronized void put(RowKey rowKey,
+				Collection<Bytes> columns, List<Column> read, long stamp) {
+			if (isInvalidatedSince(rowKey, stamp)) {
+				return;
+			}
+
+			CachedRow row = rows.get(rowKey);
+
+			if (row == null || row.isExpired()) {
+				remove(rowKey);
+
+				row = new CachedRow(System.currentTimeMillis() + ttl);
+				rows.put(rowKey, row);
+				bytes += row.size;
+			}
+
+			bytes -= row.size;
+
+			for (Bytes column : columns) {
+				row.known.add(column);
+			}
+
+			for (Column column : read) {
+				Bytes name = copy(column.name);
+
+				row.known.add(name);
+				row.values.put(name, copy(column.value));
+			}
+
+			row.resize();
+			bytes += row.size;
+
+			evict();
+		}
+
+		private synchronized void invalidate(RowKey rowKey, long stamp) {
+			remove(rowKey);
+
+			// move the row to the end so the oldest tombstones are dropped
+			// first
+			tombstones.remove(rowKey);
+			tombstones.put(rowKey, stamp);
+
+			Iterator<Long> eldest = tombstones.values().iterator();
+
+			while (tombstones.size() > maxTombstones) {
+				pruned = Math.max(pruned, eldest.next());
+				eldest.remove();
+			}
+		}
+
+		private synchronized void clear(long stamp) {
+			pruned = Math.max(pruned, stamp);
+			tombstones.clear();
+
+			rows.clear();
+			bytes = 0;
+		}
+
+		private synchronized long getHits() {
+			return hits;
+		}
+
+		private synchronized long getMisses() {
+			return misses;
+		}
+
+		private synchronized long getEvictions() {
+			return evictions;
+		}
+
+		private synchronized int getRows() {
+			return rows.size();
+		}
+
+		private synchronized long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Remove the least recently used rows until we're within the limits
+		 */
+		private void evict() {
+			Iterator<Entry<RowKey, CachedRow>> eldest = rows.entrySet()
+					.iterator();
+
+			while ((rows.size() > maxRows || bytes > maxBytes)
+					&& eldest.hasNext()) {
+				bytes -= eldest.next().getValue().size;
+				eldest.remove();
+				evictions++;
+			}
+		}
+
+		/**
+		 * True if the row may have been written after the stamp was taken
+		 * 
+		 * @param rowKey
+		 * @param stamp
+		 * @return
+		 */
+		private boolean isInvalidatedSince(RowKey rowKey, long stamp) {
+			if (stamp < pruned) {
+				return true;
+			}
+
+			Long invalidated = tombstones.get(rowKey);
+
+			return invalidated != null && invalidated > stamp;
+		}
+
+		private void remove(RowKey rowKey) {
+			CachedRow removed = rows.remove(rowKey);
+
+			if (removed != null) {
+				bytes -= removed.size;
+			}
+		}
+	}
+
+	/**
+	 * Copy the remaining bytes of the buffer
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	private static Bytes copy(ByteBuffer buffer) {
+		byte[] copy = new byte[buffer.remaining()];
+		buffer.duplicate().get(copy);
+		return new Bytes(copy);
+	}
+
+	/**
+	 * The column family and key of a row
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private static class RowKey {
+		private String columnFamily;
+		private Bytes key;
+
+		private RowKey(String columnFamily, Bytes key) {
+			this.columnFamily = columnFamily;
+			this.key = key;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * columnFamily.hashCode() + key.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof RowKey)) {
+				return false;
+			}
+
+			RowKey other = (RowKey) obj;
+
+			return columnFamily.equals(other.columnFamily)
+					&& key.equals(other.key);
+		}
+	}
+
+	/**
+	 * The columns read from a row
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private static class CachedRow {
+		private long expires;
+
+		// every column read, whether it has a value or not
+		private Set<Bytes> known = new HashSet<Bytes>();
+
+		private Map<Bytes, Bytes> values = new HashMap<Bytes, Bytes>();
+
+		private long size;
+
+		private CachedRow(long expires) {
+			this.expires = expires;
+			resize();
+		}
+
+		private boolean isExpired() {
+			return System.currentTimeMillis() > expires;
+		}
+
+		private boolean contains(Collection<Bytes> columns) {
+			return known.containsAll(columns);
+		}
+
+		private void resize() {
+			size = ROW_OVERHEAD;
+
+			for (Bytes name : known) {
+				size += COLUMN_OVERHEAD + name.length();
+			}
+
+			for (Bytes value : values.values()) {
+				size += value.length();
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.client;
+
+import org.datanucleus.exceptions.NucleusException;
+import org.scale7.cassandra.pelops.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The pool reads of a single row are sent to. Reads go to the node that owns
+ * the row. If a read on that node fails it is retried once on the default
+ * pool, and the default pool is used for every later read of the row.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class RowPool {
+
+	private static Logger logger = LoggerFactory.getLogger(RowPool.class);
+
+	private TokenRouter router;
+
+	private String defaultPool;
+
+	private String poolName;
+
+	/**
+	 * 
+	 * @param router
+	 *            The router, or null if token aware routing is disabled
+	 * @param defaultPool
+	 * @param key
+	 *            The row key
+	 */
+	public RowPool(TokenRouter router, String defaultPool, Bytes key) {
+		this.router = router;
+		this.defaultPool = defaultPool;
+		this.poolName = router == null ? defaultPool : router
+				.getPoolName(key);
+	}
+
+	/**
+	 * @return The pool the next read is sent to
+	 */
+	public String getPoolName() {
+		return poolName;
+	}
+
+	/**
+	 * Run the read, and once more on the default pool if it fails on the node
+	 * that owns the row
+	 * 
+	 * @param <T>
+	 * @param read
+	 * @return
+	 */
+	public <T> T read(Read<T> read) {
+		String pool = poolName;
+
+		try {
+			return read.execute(pool);
+		} catch (NucleusException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			if (pool.equals(defaultPool)) {
+				throw e;
+			}
+
+			logger.debug("Read on pool {} failed, retrying on {}", pool,
+					defaultPool);
+
+			router.failed(pool);
+			poolName = defaultPool;
+
+			return read.execute(defaultPool);
+		}
+	}
+
+	/**
+	 * A read on a single row
+	 * 
+	 * @author Todd Nine
+	 * 
+	 * @param <T>
+	 */
+	public interface Read<T> {
+
+		/**
+		 * Read the row from the pool
+		 * 
+		 * @param poolName
+		 * @return
+		 */
+		public T execute(String poolName);
+	}
+}
@@ -0,0 +1,387 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.client;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.cassandra.thrift.TokenRange;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Cluster;
+import org.scale7.cassandra.pelops.IConnection.Config;
+import org.scale7.cassandra.pelops.Operand;
+import org.scale7.cassandra.pelops.OperandPolicy;
+import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.pool.CommonsBackedPool.Policy;
+import org.scale7.cassandra.pelops.pool.IThriftPool.IPooledConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routes operations on a single row to the pool of a node that owns the row.
+ * The ring is read with describe_ring and each row key is hashed the same way
+ * the RandomPartitioner does. A pool with only that node is created for every
+ * endpoint in the ring. Keys that can't be routed use the default pool.
+ * 
+ * The ring is read again periodically and soon after an operation on a node
+ * fails. A node that failed is skipped until then.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class TokenRouter {
+
+	private static final String RANDOM_PARTITIONER = "org.apache.cassandra.dht.RandomPartitioner";
+
+	// the shortest time between two reads of the ring
+	private static final long MIN_REFRESH_INTERVAL = 1000;
+
+	private static Logger logger = LoggerFactory.getLogger(TokenRouter.class);
+
+	private String defaultPool;
+
+	private String keyspace;
+
+	private Config config;
+
+	private Policy policy;
+
+	private OperandPolicy opPolicy;
+
+	// the end token of each range, mapped to the pool of its first replica.
+	// Replaced as a whole when the ring is read
+	private volatile TreeMap<BigInteger, String> ring = new TreeMap<BigInteger, String>();
+
+	// the pool of each node in the ring
+	private Map<String, String> nodePools = new HashMap<String, String>();
+
+	// the pools this router added, removed when it is closed
+	private Set<String> addedPools = new HashSet<String>();
+
+	// the pools of nodes that failed since the ring was read
+	private Set<String> failed = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private long lastRefresh;
+
+	// reads the ring in the background, null if the ring is never read again
+	private ScheduledExecutorService refresher;
+
+	private AtomicBoolean refreshQueued = new AtomicBoolean();
+
+	private Runnable refreshTask = new Runnable() {
+
+		@Override
+		public void run() {
+			refreshQueued.set(false);
+
+			try {
+				refresh();
+			} catch (RuntimeException e) {
+				logger.warn("Unable to read the ring", e);
+			}
+		}
+	};
+
+	private TokenRouter(String defaultPool, String keyspace, Config config,
+			Policy policy, OperandPolicy opPolicy) {
+		this.defaultPool = defaultPool;
+		this.keyspace = keyspace;
+		this.config = config;
+		this.policy = policy;
+		this.opPolicy = opPolicy;
+	}
+
+	/**
+	 * Create a router for a known ring
+	 * 
+	 * @param defaultPool
+	 *            The pool for rows that are not routed
+	 * @param ring
+	 *            The end token of each range, mapped to the pool of its node
+	 */
+	TokenRouter(String defaultPool, Map<BigInteger, String> ring) {
+		this.defaultPool = defaultPool;
+		this.ring.putAll(ring);
+	}
+
+	/**
+	 * Read the ring of the keyspace and create a pool for every node in it.
+	 * If the keyspace does not use the RandomPartitioner every key is routed
+	 * to the default pool
+	 * 
+	 * @param defaultPool
+	 *            The pool to read the ring with
+	 * @param keyspace
+	 * @param config
+	 *            The connection config of the nodes
+	 * @param policy
+	 * @param opPolicy
+	 * @param refreshInterval
+	 *            The milliseconds between reads of the ring, 0 or less only
+	 *            reads it again when a node fails
+	 * @return
+	 */
+	public static TokenRouter create(String defaultPool,
+			final String keyspace, Config config, Policy policy,
+			OperandPolicy opPolicy, long refreshInterval) {
+
+		TokenRouter router = new TokenRouter(defaultPool, keyspace, config,
+				policy, opPolicy);
+
+		String partitioner = new RingReader(defaultPool).getPartitioner();
+
+		if (!RANDOM_PARTITIONER.equals(partitioner)) {
+			logger.warn(
+					"Token aware routing requires the RandomPartitioner, {} is in use.  Using the default pool",
+					partitioner);
+			return router;
+		}
+
+		router.refresh();
+
+		router.refresher = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "cassandra-ring");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		if (refreshInterval > 0) {
+			router.refresher.scheduleWithFixedDelay(router.refreshTask,
+					refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+		}
+
+		return router;
+	}
+
+	/**
+	 * Get the pool of the node that owns the row
+	 * 
+	 * @param key
+	 * @return The pool of the node, or the default pool if the node failed
+	 *         since the ring was read
+	 */
+	public String getPoolName(Bytes key) {
+		TreeMap<BigInteger, String> current = ring;
+
+		if (current.isEmpty()) {
+			return defaultPool;
+		}
+
+		BigInteger token = getToken(key);
+
+		// ranges are (start, end], the first range ending at or after the
+		// token owns it. Tokens after the last end wrap to the first range
+		Entry<BigInteger, String> owner = current.ceilingEntry(token);
+
+		if (owner == null) {
+			owner = current.firstEntry();
+		}
+
+		String pool = owner.getValue();
+
+		return failed.contains(pool) ? defaultPool : pool;
+	}
+
+	/**
+	 * @return The pool used for rows that are not routed
+	 */
+	public String getDefaultPoolName() {
+		return defaultPool;
+	}
+
+	/**
+	 * Skip the node of the pool until the ring is read again, and read the
+	 * ring in the background
+	 * 
+	 * @param poolName
+	 *            The pool an operation failed on
+	 */
+	public void failed(String poolName) {
+		if (poolName.equals(defaultPool)) {
+			return;
+		}
+
+		failed.add(poolName);
+
+		if (refresher == null || !refreshQueued.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			refresher.execute(refreshTask);
+		} catch (RejectedExecutionException e) {
+			// closed
+			refreshQueued.set(false);
+		}
+	}
+
+	/**
+	 * Read the ring again. Pools are created for nodes that joined and
+	 * removed for nodes that left, and nodes that failed are tried again
+	 */
+	synchronized void refresh() {
+		long now = System.currentTimeMillis();
+
+		if (now - lastRefresh < MIN_REFRESH_INTERVAL) {
+			return;
+		}
+
+		List<TokenRange> ranges = new RingReader(defaultPool)
+				.getRing(keyspace);
+
+		lastRefresh = now;
+
+		TreeMap<BigInteger, String> next = new TreeMap<BigInteger, String>();
+		Map<String, String> pools = new HashMap<String, String>();
+
+		for (TokenRange range : ranges) {
+			if (range.getEndpoints().isEmpty()) {
+				continue;
+			}
+
+			String host = range.getEndpoints().get(0);
+
+			String nodePool = pools.get(host);
+
+			if (nodePool == null) {
+				nodePool = defaultPool + ":" + host;
+
+				if (Pelops.getDbConnPool(nodePool) == null) {
+					Pelops.addPool(nodePool, new Cluster(host, config, false),
+							keyspace, policy, opPolicy);
+					addedPools.add(nodePool);
+				}
+
+				pools.put(host, nodePool);
+			}
+
+			next.put(new BigInteger(range.getEnd_token()), nodePool);
+		}
+
+		ring = next;
+		failed.clear();
+
+		// the nodes that left the ring
+		for (Entry<String, String> node : nodePools.entrySet()) {
+			if (!pools.containsKey(node.getKey())
+					&& addedPools.remove(node.getValue())) {
+				Pelops.removePool(node.getValue());
+			}
+		}
+
+		nodePools = pools;
+
+		logger.info("Routing rows to {} nodes", pools.size());
+	}
+
+	/**
+	 * Stop reading the ring and shut down the pools this router added. Every
+	 * row is routed to the default pool afterwards
+	 */
+	public synchronized void close() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+		}
+
+		ring = new TreeMap<BigInteger, String>();
+
+		for (String pool : addedPools) {
+			Pelops.removePool(pool);
+		}
+
+		addedPools.clear();
+		nodePools.clear();
+	}
+
+	/**
+	 * Hash the key as the RandomPartitioner does
+	 * 
+	 * @param key
+	 * @return
+	 */
+	static BigInteger getToken(Bytes key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+
+			ByteBuffer buffer = key.getBytes().duplicate();
+			digest.update(buffer);
+
+			return new BigInteger(digest.digest()).abs();
+		} catch (NoSuchAlgorithmException e) {
+			throw new NucleusDataStoreException("MD5 is not available", e);
+		}
+	}
+
+	/**
+	 * Reads the ring and partitioner from the cluster
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private static class RingReader extends Operand {
+
+		private RingReader(String poolName) {
+			super(Pelops.getDbConnPool(poolName));
+		}
+
+		private String getPartitioner() {
+			return tryOperation(new IOperation<String>() {
+
+				@Override
+				public String execute(IPooledConnection conn) throws Exception {
+					return conn.getAPI().describe_partitioner();
+				}
+			});
+		}
+
+		private List<TokenRange> getRing(final String keyspace) {
+			return tryOperation(new IOperation<List<TokenRange>>() {
+
+				@Override
+				public List<TokenRange> execute(IPooledConnection conn)
+						throws Exception {
+					return conn.getAPI().describe_ring(keyspace);
+				}
+			});
+		}
+	}
+}
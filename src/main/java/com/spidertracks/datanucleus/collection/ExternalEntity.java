@@ -17,6 +17,12 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.collection;
 
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.Column;
 import org.scale7.cassandra.pelops.Bytes;
 
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
@@ -65,11 +71,37 @@ public class ExternalEntity{
 		this.rowKey = rowKey;
 	}
 
-	
+	/**
+	 * Copy the names and values of the columns as they are stored. The
+	 * buffers are copied since reading the columns moves their position
+	 * 
+	 * @param columns
+	 * @return
+	 */
+	protected static Map<Bytes, Bytes> snapshot(List<Column> columns) {
+		Map<Bytes, Bytes> snapshot = new LinkedHashMap<Bytes, Bytes>();
 
+		if (columns == null) {
+			return snapshot;
+		}
 
-	
-	
+		for (Column column : columns) {
+			snapshot.put(copy(column.name), copy(column.value));
+		}
 
+		return snapshot;
+	}
+
+	/**
+	 * Copy the remaining bytes of the buffer
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	protected static Bytes copy(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return new Bytes(bytes);
+	}
 
 }
@@ -0,0 +1,162 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+
+import org.datanucleus.api.ApiAdapter;
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+import org.datanucleus.store.ExecutionContext;
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.spidertracks.datanucleus.client.RowPool;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+
+/**
+ * A read only collection field that is never loaded into memory. Iterating
+ * reads the relationship columns a page at a time and resolves each element
+ * as it's returned, skipping elements whose object no longer exists. size()
+ * iterates for the same reason, contains() reads the single column of the
+ * element. To change the field assign a new collection.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class LazyCollection extends AbstractCollection<Object> implements
+		LazyRelationship {
+
+	private ByteConverterContext context;
+
+	private String ownerColumnFamily;
+
+	private Bytes rowKey;
+
+	private Bytes ownerColumn;
+
+	private ExecutionContext ec;
+
+	private Class<?> elementClass;
+
+	private RowPool pool;
+
+	private int pageSize;
+
+	/**
+	 * 
+	 * @param context
+	 * @param ownerColumnFamily
+	 * @param rowKey
+	 * @param ownerColumn
+	 * @param ec
+	 * @param elementClass
+	 * @param pool
+	 *            The pool to read the columns from
+	 * @param pageSize
+	 *            The number of columns read per call
+	 */
+	public LazyCollection(ByteConverterContext context,
+			String ownerColumnFamily, Bytes rowKey, Bytes ownerColumn,
+			ExecutionContext ec, Class<?> elementClass, RowPool pool,
+			int pageSize) {
+		this.context = context;
+		this.ownerColumnFamily = ownerColumnFamily;
+		this.rowKey = rowKey;
+		this.ownerColumn = ownerColumn;
+		this.ec = ec;
+		this.elementClass = elementClass;
+		this.pool = pool;
+		this.pageSize = pageSize;
+	}
+
+	@Override
+	public Iterator<Object> iterator() {
+		ReadCollection reader = newReader();
+		reader.fetchColumns(pageSize, null, pool);
+
+		return new ResolvingIterator<Object, Object>(reader) {
+
+			@Override
+			protected Object resolve(Object id) {
+				// a deleted element leaves its column behind, make sure it
+				// still exists
+				return ec.findObject(id, true, true, null);
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+
+		// the columns of deleted elements aren't counted
+		for (Iterator<Object> it = iterator(); it.hasNext(); it.next()) {
+			size++;
+		}
+
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return !iterator().hasNext();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		ApiAdapter adapter = ec.getApiAdapter();
+
+		if (o == null || !adapter.isPersistable(o)) {
+			return false;
+		}
+
+		Object id = adapter.getIdForObject(o);
+
+		if (id == null) {
+			return false;
+		}
+
+		if (newReader().getColumn(id, pool) == null) {
+			return false;
+		}
+
+		try {
+			ec.findObject(id, true, true, null);
+			return true;
+		} catch (NucleusObjectNotFoundException nonfe) {
+			return false;
+		}
+	}
+
+	@Override
+	public boolean isStoredIn(String columnFamily, Bytes rowKey, Bytes column) {
+		return ownerColumnFamily.equals(columnFamily)
+				&& this.rowKey.equals(rowKey) && ownerColumn.equals(column);
+	}
+
+	private ReadCollection newReader() {
+		ReadCollection reader = new ReadCollection(context, ownerColumnFamily,
+				rowKey, ownerColumn, ec, elementClass);
+
+		// nothing is written from a lazy field, don't keep the columns
+		reader.setTrackSnapshot(false);
+
+		return reader;
+	}
+
+}
@@ -0,0 +1,240 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.Column;
+import org.datanucleus.api.ApiAdapter;
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+import org.datanucleus.store.ExecutionContext;
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.spidertracks.datanucleus.client.RowPool;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+
+/**
+ * A read only map field that is never loaded into memory. Iterating reads the
+ * relationship columns a page at a time, skipping entries whose key or value
+ * object no longer exists. size() iterates for the same reason, get() and
+ * containsKey() read the single column of the key. To change the field assign
+ * a new map.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class LazyMap extends AbstractMap<Object, Object> implements
+		LazyRelationship {
+
+	private ByteConverterContext context;
+
+	private String ownerColumnFamily;
+
+	private Bytes rowKey;
+
+	private Bytes ownerColumn;
+
+	private ExecutionContext ec;
+
+	private Class<?> keyClass;
+
+	private Class<?> valueClass;
+
+	private Class<?> storedKeyClass;
+
+	private Class<?> storedValueClass;
+
+	private RowPool pool;
+
+	private int pageSize;
+
+	/**
+	 * 
+	 * @param context
+	 * @param ownerColumnFamily
+	 * @param rowKey
+	 * @param ownerColumn
+	 * @param ec
+	 * @param keyClass
+	 *            The class of the keys in the map
+	 * @param valueClass
+	 *            The class of the values in the map
+	 * @param storedKeyClass
+	 *            The class the keys are stored as, the identity class for
+	 *            persistable keys
+	 * @param storedValueClass
+	 *            The class the values are stored as, the identity class for
+	 *            persistable values
+	 * @param pool
+	 *            The pool to read the columns from
+	 * @param pageSize
+	 *            The number of columns read per call
+	 */
+	public LazyMap(ByteConverterContext context, String ownerColumnFamily,
+			Bytes rowKey, Bytes ownerColumn, ExecutionContext ec,
+			Class<?> keyClass, Class<?> valueClass, Class<?> storedKeyClass,
+			Class<?> storedValueClass, RowPool pool, int pageSize) {
+		this.context = context;
+		this.ownerColumnFamily = ownerColumnFamily;
+		this.rowKey = rowKey;
+		this.ownerColumn = ownerColumn;
+		this.ec = ec;
+		this.keyClass = keyClass;
+		this.valueClass = valueClass;
+		this.storedKeyClass = storedKeyClass;
+		this.storedValueClass = storedValueClass;
+		this.pool = pool;
+		this.pageSize = pageSize;
+	}
+
+	@Override
+	public Set<Entry<Object, Object>> entrySet() {
+		return new AbstractSet<Entry<Object, Object>>() {
+
+			@Override
+			public Iterator<Entry<Object, Object>> iterator() {
+				ReadMap reader = newReader();
+				reader.fetchColumns(pageSize, null, pool);
+
+				return new ResolvingIterator<CassEntry, Entry<Object, Object>>(
+						reader) {
+
+					@Override
+					protected Entry<Object, Object> resolve(CassEntry entry) {
+						return new SimpleImmutableEntry<Object, Object>(
+								toObject(keyClass, storedKeyClass,
+										entry.getKey()), toObject(valueClass,
+										storedValueClass, entry.getValue()));
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return LazyMap.this.size();
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+
+		// the columns of deleted keys and values aren't counted
+		for (Iterator<Entry<Object, Object>> it = entrySet().iterator(); it
+				.hasNext(); it.next()) {
+			size++;
+		}
+
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return !entrySet().iterator().hasNext();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return getColumn(key) != null;
+	}
+
+	@Override
+	public Object get(Object key) {
+		Column column = getColumn(key);
+
+		if (column == null) {
+			return null;
+		}
+
+		try {
+			return toObject(valueClass, storedValueClass, newReader()
+					.getValue(column));
+		} catch (NucleusObjectNotFoundException nonfe) {
+			// the value was deleted
+			return null;
+		}
+	}
+
+	@Override
+	public boolean isStoredIn(String columnFamily, Bytes rowKey, Bytes column) {
+		return ownerColumnFamily.equals(columnFamily)
+				&& this.rowKey.equals(rowKey) && ownerColumn.equals(column);
+	}
+
+	/**
+	 * Read the column of the key
+	 * 
+	 * @param key
+	 * @return The column, or null if the key is not in the map
+	 */
+	private Column getColumn(Object key) {
+		if (key == null) {
+			return null;
+		}
+
+		Object storedKey = key;
+
+		if (storedKeyClass != keyClass) {
+			ApiAdapter adapter = ec.getApiAdapter();
+
+			if (!adapter.isPersistable(key)) {
+				return null;
+			}
+
+			storedKey = adapter.getIdForObject(key);
+
+			if (storedKey == null) {
+				return null;
+			}
+		}
+
+		return newReader().getColumn(storedKey, pool);
+	}
+
+	/**
+	 * Load the object when the stored value is the identity of a persistable
+	 * object. Throws NucleusObjectNotFoundException if the object was deleted
+	 * 
+	 * @param type
+	 * @param storedType
+	 * @param stored
+	 * @return
+	 */
+	private Object toObject(Class<?> type, Class<?> storedType, Object stored) {
+		if (type == storedType) {
+			return stored;
+		}
+
+		return ec.findObject(ec.newObjectId(type, stored), true, true, null);
+	}
+
+	private ReadMap newReader() {
+		ReadMap reader = new ReadMap(context, ownerColumnFamily, rowKey,
+				ownerColumn, storedKeyClass, storedValueClass);
+
+		// nothing is written from a lazy field, don't keep the columns
+		reader.setTrackSnapshot(false);
+
+		return reader;
+	}
+
+}
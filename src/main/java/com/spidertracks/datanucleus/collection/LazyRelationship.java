@@ -0,0 +1,42 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * A relationship field that reads its columns as it is used instead of being
+ * loaded into memory
+ * 
+ * @author Todd Nine
+ * 
+ */
+public interface LazyRelationship {
+
+	/**
+	 * True if the relationship reads the given columns, so writing it to them
+	 * would change nothing
+	 * 
+	 * @param columnFamily
+	 * @param rowKey
+	 * @param column
+	 * @return
+	 */
+	public boolean isStoredIn(String columnFamily, Bytes rowKey, Bytes column);
+
+}
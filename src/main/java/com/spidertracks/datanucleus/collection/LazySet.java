@@ -0,0 +1,73 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+import org.datanucleus.store.ExecutionContext;
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.spidertracks.datanucleus.client.RowPool;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+
+/**
+ * A read only Set field that is never loaded into memory. Each element is
+ * stored in its own column, so the elements are always unique. Reads are
+ * performed by a {@link LazyCollection} over the same columns
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class LazySet extends AbstractSet<Object> implements LazyRelationship {
+
+	private LazyCollection elements;
+
+	public LazySet(ByteConverterContext context, String ownerColumnFamily,
+			Bytes rowKey, Bytes ownerColumn, ExecutionContext ec,
+			Class<?> elementClass, RowPool pool, int pageSize) {
+		this.elements = new LazyCollection(context, ownerColumnFamily, rowKey,
+				ownerColumn, ec, elementClass, pool, pageSize);
+	}
+
+	@Override
+	public Iterator<Object> iterator() {
+		return elements.iterator();
+	}
+
+	@Override
+	public int size() {
+		return elements.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return elements.isEmpty();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return elements.contains(o);
+	}
+
+	@Override
+	public boolean isStoredIn(String columnFamily, Bytes rowKey, Bytes column) {
+		return elements.isStoredIn(columnFamily, rowKey, column);
+	}
+
+}
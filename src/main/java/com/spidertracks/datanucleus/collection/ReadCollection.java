@@ -18,38 +18,30 @@ Contributors :
 package com.spidertracks.datanucleus.collection;
 
 import java.nio.ByteBuffer;
-import java.util.Iterator;
-import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.cassandra.thrift.Column;
-import org.apache.cassandra.thrift.SlicePredicate;
-import org.apache.cassandra.thrift.SliceRange;
 import org.datanucleus.store.ExecutionContext;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Selector;
 
-import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
 
 /**
- * Object for writing collection columns
+ * Object for reading collection columns
  * 
  * @author Todd Nine
  * 
  */
-public class ReadCollection extends ExternalEntity implements
-		Iterable<Object>, Iterator<Object> {
-	
+public class ReadCollection extends ReadRelationship<Object> {
 
 	private Class<?> targetClass;
 
-	private int index = -1;
-
-	private List<Column> columns;
-	
 	private ExecutionContext ec;
 
+	// the column of each element read, by identity
+	private Map<Object, Bytes> elementColumns = new HashMap<Object, Bytes>();
+
 	public ReadCollection(ByteConverterContext context,
 			String ownerColumnFamily, Bytes rowKey, Bytes ownerColumn, ExecutionContext ec, Class<?> targetClass) {
 		super(context, ownerColumnFamily, rowKey, ownerColumn);
@@ -58,96 +50,24 @@ public class ReadCollection extends ExternalEntity implements
 	}
 
 	/**
-	 * Get the slice predicate for selecting all the columns from the given
-	 * start key (inclusive). If the key is null, the range reads from the
-	 * beginning. Reads up to the max for the given column from start using
-	 * count.
-	 * 
-	 * @param count
-	 * @param startKey
-	 * @return
+	 * Returns the bytes as an object identity
 	 */
-	public void fetchColumns(int count, Bytes startKey, Selector selector) {
-
-		SliceRange range = new SliceRange();
-
-		int length = ownerColumn.length() + 1;
-
-		if (startKey != null) {
-			length += startKey.length();
-		}
-
-		ByteBuffer startBuff = ByteBuffer.allocate(length);
-		startBuff.mark();
-		startBuff.put(ownerColumn.toByteArray());
-		startBuff.put(DELIM_MIN);
+	@Override
+	protected Object toElement(ByteBuffer key, Column column) {
+		Object id = context.getObjectIdentity(ec, targetClass,
+				Bytes.fromByteBuffer(key));
 
-		if (startKey != null) {
-			startBuff.put(startKey.toByteArray());
+		if (isTrackSnapshot()) {
+			elementColumns.put(id, copy(column.name));
 		}
 
-		startBuff.reset();
-
-		range.setStart(startBuff);
-
-		ByteBuffer endBuff = ByteBuffer.allocate(ownerColumn.length() + 1);
-		endBuff.mark();
-		endBuff.put(ownerColumn.toByteArray());
-		endBuff.put(DELIM_MAX);
-		endBuff.reset();
-
-		range.setFinish(endBuff);
-		range.setCount(count);
-
-		SlicePredicate predicate = new SlicePredicate();
-
-		predicate.setSlice_range(range);
-
-		columns = selector.getColumnsFromRow(ownerColumnFamily, rowKey,
-				predicate, Consistency.get());
-
-	}
-
-	@Override
-	public Iterator<Object> iterator() {
-		return this;
-	}
-
-	@Override
-	public boolean hasNext() {
-		return columns != null && index + 1 < columns.size();
+		return id;
 	}
 
 	/**
-	 * Returns the bytes as an object identity
+	 * @return The column of each element iterated so far, by identity
 	 */
-	@Override
-	public Object next() {
-		if (++index > columns.size()) {
-			throw new NoSuchElementException("No elements left");
-		}
-		
-		ByteBuffer buffer = columns.get(index).name;
-		buffer.position(buffer.position()+ownerColumn.length()+1);
-
-		return context.getObjectIdentity(ec, targetClass,
-				Bytes.fromByteBuffer(buffer));
-
-	}
-
-	@Override
-	public void remove() {
-
-		if (index == -1) {
-			throw new IllegalStateException("next has not been called");
-		}
-
-		if (!hasNext()) {
-			throw new IllegalStateException("No keys are left to parse");
-		}
-
-		columns.remove(index);
-		// decrement our index so we read the next element when next is called
-		index--;
+	public Map<Object, Bytes> getElementColumns() {
+		return elementColumns;
 	}
 }
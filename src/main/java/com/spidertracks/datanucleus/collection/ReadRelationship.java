@@ -0,0 +1,354 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.client.RowPool;
+import com.spidertracks.datanucleus.client.RowPool.Read;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+
+/**
+ * Reads the relationship columns of a field one page at a time. Each page
+ * resumes from the last column of the previous page, so only a single page is
+ * held in memory while iterating
+ * 
+ * @author Todd Nine
+ * 
+ * @param <T>
+ *            The type of each element
+ */
+public abstract class ReadRelationship<T> extends ExternalEntity implements
+		Iterable<T>, Iterator<T> {
+
+	private RowPool pool;
+
+	private int pageSize;
+
+	private List<Column> columns;
+
+	private int index = -1;
+
+	// true if the last page was full and more columns may follow
+	private boolean more;
+
+	private ByteBuffer lastColumn;
+
+	private Map<Bytes, Bytes> snapshot = new LinkedHashMap<Bytes, Bytes>();
+
+	private boolean trackSnapshot = true;
+
+	public ReadRelationship(ByteConverterContext context,
+			String ownerColumnFamily, Bytes rowKey, Bytes ownerColumn) {
+		super(context, ownerColumnFamily, rowKey, ownerColumn);
+	}
+
+	/**
+	 * Read the first page of columns from the given start key (inclusive). If
+	 * the key is null, the range reads from the beginning. Later pages are
+	 * read as the columns are iterated.
+	 * 
+	 * @param count
+	 *            The number of columns in each page
+	 * @param startKey
+	 * @param pool
+	 *            The pool of the row, pages are read from it as they are
+	 *            iterated
+	 */
+	public void fetchColumns(int count, Bytes startKey, RowPool pool) {
+		this.pageSize = count;
+		this.pool = pool;
+
+		ByteBuffer start = getColumnStart(startKey);
+
+		readPage(start, false);
+	}
+
+	/**
+	 * Use the columns of a row that has already been read in full instead of
+	 * reading the field. Only the columns of this field are kept
+	 * 
+	 * @param row
+	 *            Every column of the row
+	 */
+	public void readColumns(List<Column> row) {
+		ByteBuffer prefix = getColumnStart(null);
+
+		List<Column> page = new ArrayList<Column>();
+
+		for (Column column : row) {
+			if (startsWith(column.name, prefix)) {
+				page.add(column);
+			}
+		}
+
+		if (trackSnapshot) {
+			snapshot.putAll(snapshot(page));
+		}
+
+		columns = page;
+		index = -1;
+		more = false;
+	}
+
+	/**
+	 * Stop recording the columns that are read. Used when the columns will
+	 * never be written so iterating uses constant memory
+	 * 
+	 * @param trackSnapshot
+	 */
+	public void setTrackSnapshot(boolean trackSnapshot) {
+		this.trackSnapshot = trackSnapshot;
+	}
+
+	/**
+	 * @return true if the columns read are recorded
+	 */
+	protected boolean isTrackSnapshot() {
+		return trackSnapshot;
+	}
+
+	/**
+	 * @return Every column read so far, as they are stored. Only complete
+	 *         once every column has been iterated
+	 */
+	public Map<Bytes, Bytes> getSnapshot() {
+		return snapshot;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return this;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (columns == null) {
+			return false;
+		}
+
+		while (index + 1 >= columns.size()) {
+			if (!more) {
+				return false;
+			}
+
+			readPage(lastColumn, true);
+		}
+
+		return true;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException("No elements left");
+		}
+
+		Column column = columns.get(++index);
+
+		ByteBuffer key = column.name.duplicate();
+		key.position(key.position() + ownerColumn.length() + 1);
+
+		return toElement(key, column);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException(
+				"Relationship columns are read only");
+	}
+
+	/**
+	 * Convert the column to an element
+	 * 
+	 * @param key
+	 *            The name of the column without the field prefix
+	 * @param column
+	 * @return
+	 */
+	protected abstract T toElement(ByteBuffer key, Column column);
+
+	/**
+	 * Read a single relationship column
+	 * 
+	 * @param key
+	 *            The element key the column was written with
+	 * @param pool
+	 * @return The column, or null if it does not exist
+	 */
+	public Column getColumn(Object key, RowPool pool) {
+		ByteBuffer name = ByteBuffer.allocate(ownerColumn.length() + 256);
+
+		name.mark();
+		name.put(ownerColumn.toByteArray());
+		name.put(DELIM_MIN);
+		name = context.getRowKeyForId(key, name);
+		name.limit(name.position());
+		name.reset();
+
+		List<Column> found = read(pool, Selector.newColumnsPredicate(Bytes
+				.fromByteBuffer(name)));
+
+		return found == null || found.isEmpty() ? null : found.get(0);
+	}
+
+	/**
+	 * Read the page starting at the column
+	 * 
+	 * @param start
+	 * @param skipStart
+	 *            True if the start column was returned by the previous page
+	 */
+	private void readPage(ByteBuffer start, boolean skipStart) {
+		int count = skipStart ? pageSize + 1 : pageSize;
+
+		List<Column> page = read(pool, getSlice(start, count));
+
+		if (page == null) {
+			page = Collections.emptyList();
+		}
+
+		more = page.size() == count;
+
+		if (page.size() > 0) {
+			lastColumn = page.get(page.size() - 1).name.duplicate();
+		}
+
+		if (skipStart && page.size() > 0 && page.get(0).name.equals(start)) {
+			page = page.subList(1, page.size());
+		}
+
+		if (trackSnapshot) {
+			snapshot.putAll(snapshot(page));
+		}
+
+		columns = page;
+		index = -1;
+	}
+
+	/**
+	 * Read columns of the row
+	 * 
+	 * @param pool
+	 * @param predicate
+	 * @return
+	 */
+	private List<Column> read(RowPool pool, final SlicePredicate predicate) {
+		return pool.read(new Read<List<Column>>() {
+
+			@Override
+			public List<Column> execute(String poolName) {
+				return Pelops.createSelector(poolName).getColumnsFromRow(
+						ownerColumnFamily, rowKey, predicate,
+						Consistency.get());
+			}
+		});
+	}
+
+	/**
+	 * True if the name begins with the prefix
+	 * 
+	 * @param name
+	 * @param prefix
+	 * @return
+	 */
+	protected static boolean startsWith(ByteBuffer name, ByteBuffer prefix) {
+		if (name.remaining() < prefix.remaining()) {
+			return false;
+		}
+
+		for (int i = 0; i < prefix.remaining(); i++) {
+			if (name.get(name.position() + i) != prefix.get(prefix.position()
+					+ i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Get the first column name of the field, followed by the start key
+	 * 
+	 * @param startKey
+	 * @return
+	 */
+	protected ByteBuffer getColumnStart(Bytes startKey) {
+		int length = ownerColumn.length() + 1;
+
+		if (startKey != null) {
+			length += startKey.length();
+		}
+
+		ByteBuffer startBuff = ByteBuffer.allocate(length);
+		startBuff.mark();
+		startBuff.put(ownerColumn.toByteArray());
+		startBuff.put(DELIM_MIN);
+
+		if (startKey != null) {
+			startBuff.put(startKey.toByteArray());
+		}
+
+		startBuff.reset();
+
+		return startBuff;
+	}
+
+	/**
+	 * Get the slice from the start column to the end of the field
+	 * 
+	 * @param start
+	 * @param count
+	 * @return
+	 */
+	private SlicePredicate getSlice(ByteBuffer start, int count) {
+		SliceRange range = new SliceRange();
+
+		range.setStart(start.duplicate());
+
+		ByteBuffer endBuff = ByteBuffer.allocate(ownerColumn.length() + 1);
+		endBuff.mark();
+		endBuff.put(ownerColumn.toByteArray());
+		endBuff.put(DELIM_MAX);
+		endBuff.reset();
+
+		range.setFinish(endBuff);
+		range.setCount(count);
+
+		SlicePredicate predicate = new SlicePredicate();
+
+		predicate.setSlice_range(range);
+
+		return predicate;
+	}
+}
@@ -0,0 +1,72 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.Map;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * The relationship columns of a field as they were read. For a collection the
+ * column of each element is kept as well, so a write can skip the elements
+ * that are already stored without building their columns
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class RelationshipSnapshot {
+
+	private Map<Bytes, Bytes> columns;
+
+	private Map<Object, Bytes> elements;
+
+	/**
+	 * @param columns
+	 *            The stored column names and values
+	 * @param elements
+	 *            The column of each element identity, or null if unknown
+	 */
+	public RelationshipSnapshot(Map<Bytes, Bytes> columns,
+			Map<Object, Bytes> elements) {
+		this.columns = columns;
+		this.elements = elements;
+	}
+
+	/**
+	 * @return The stored column names and values
+	 */
+	public Map<Bytes, Bytes> getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Get the stored column of the element
+	 * 
+	 * @param id
+	 *            The identity of the element
+	 * @return The column name, or null if the element isn't stored
+	 */
+	public Bytes getElementColumn(Object id) {
+		if (elements == null) {
+			return null;
+		}
+
+		return elements.get(id);
+	}
+
+}
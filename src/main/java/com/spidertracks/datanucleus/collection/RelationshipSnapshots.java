@@ -0,0 +1,318 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.datanucleus.Transaction;
+import org.datanucleus.TransactionEventListener;
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.ObjectProvider;
+
+/**
+ * Holds the relationship columns of each collection, map and array field as
+ * they were read or last written. A write compares the current elements to
+ * the snapshot so only added columns are written and removed columns deleted.
+ * Once the batch holding the write has been sent, the snapshot is replaced
+ * with the columns written.
+ * 
+ * Snapshots belong to the execution context and only live as long as its
+ * transaction, so no element keys are held once it ends. Each context locks
+ * its own snapshots, since a transaction may be flushed from another thread
+ * and the writer threads replace them. Nothing is kept outside of a
+ * transaction. A field without a snapshot reads its stored columns before it
+ * is written, unless its object is new.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class RelationshipSnapshots {
+
+	private ConcurrentMap<ExecutionContext, ContextSnapshots> contexts = new ConcurrentHashMap<ExecutionContext, ContextSnapshots>();
+
+	/**
+	 * Get the columns of the field as they were read or written
+	 * 
+	 * @param op
+	 * @param fieldNumber
+	 * @return The snapshot, or null if the field's stored columns are unknown
+	 */
+	public RelationshipSnapshot get(ObjectProvider op, int fieldNumber) {
+		ContextSnapshots snapshots = contexts.get(op.getExecutionContext());
+
+		return snapshots == null ? null : snapshots.get(op, fieldNumber);
+	}
+
+	/**
+	 * Drop the snapshot of the field, so its stored columns are read before
+	 * it is written, until the mark is replaced
+	 * 
+	 * @param op
+	 * @param fieldNumber
+	 * @return The mark, to pass to {@link #replace} once the columns are
+	 *         known. Null if there is no transaction to keep it in
+	 */
+	public Object markUnread(ObjectProvider op, int fieldNumber) {
+		ContextSnapshots snapshots = getContext(op.getExecutionContext());
+
+		if (snapshots == null) {
+			return null;
+		}
+
+		UnreadMark mark = new UnreadMark(snapshots);
+
+		snapshots.put(op, fieldNumber, mark);
+
+		return mark;
+	}
+
+	/**
+	 * Set the stored columns of the field
+	 * 
+	 * @param op
+	 * @param fieldNumber
+	 * @param snapshot
+	 */
+	public void put(ObjectProvider op, int fieldNumber,
+			RelationshipSnapshot snapshot) {
+		ContextSnapshots snapshots = getContext(op.getExecutionContext());
+
+		if (snapshots != null) {
+			snapshots.put(op, fieldNumber, snapshot);
+		}
+	}
+
+	/**
+	 * Set the stored columns of the field if it still holds the mark. A field
+	 * that was written, read or removed since it was marked is left as it is,
+	 * as is one whose transaction has ended
+	 * 
+	 * @param op
+	 * @param fieldNumber
+	 * @param mark
+	 *            The mark returned by {@link #markUnread}
+	 * @param snapshot
+	 * @return true if the snapshot was set
+	 */
+	public boolean replace(ObjectProvider op, int fieldNumber, Object mark,
+			RelationshipSnapshot snapshot) {
+		if (mark == null) {
+			return false;
+		}
+
+		return ((UnreadMark) mark).snapshots.replace(op, fieldNumber, mark,
+				snapshot);
+	}
+
+	/**
+	 * Remove the snapshot or unread mark of the field
+	 * 
+	 * @param op
+	 * @param fieldNumber
+	 * @return The removed snapshot or null if there was none
+	 */
+	public RelationshipSnapshot remove(ObjectProvider op, int fieldNumber) {
+		ContextSnapshots snapshots = contexts.get(op.getExecutionContext());
+
+		return snapshots == null ? null : snapshots.remove(op, fieldNumber);
+	}
+
+	/**
+	 * Remove every snapshot and mark of the object provider
+	 * 
+	 * @param op
+	 */
+	public void release(ObjectProvider op) {
+		ContextSnapshots snapshots = contexts.get(op.getExecutionContext());
+
+		if (snapshots != null) {
+			snapshots.release(op);
+		}
+	}
+
+	/**
+	 * Get the snapshots of the context's transaction, creating them if
+	 * required
+	 * 
+	 * @param context
+	 * @return The snapshots, null if the context has no transaction that
+	 *         would release them
+	 */
+	private ContextSnapshots getContext(ExecutionContext context) {
+		ContextSnapshots snapshots = contexts.get(context);
+
+		if (snapshots != null) {
+			return snapshots;
+		}
+
+		Transaction tx = context.getTransaction();
+
+		// the transaction ends before the snapshots could be used
+		if (!tx.isActive() || tx.isCommitting()) {
+			return null;
+		}
+
+		ContextSnapshots created = new ContextSnapshots(context);
+
+		snapshots = contexts.putIfAbsent(context, created);
+
+		if (snapshots != null) {
+			return snapshots;
+		}
+
+		tx.addTransactionEventListener(created);
+
+		return created;
+	}
+
+	/**
+	 * The snapshots of a single context, dropped when its transaction ends
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private class ContextSnapshots implements TransactionEventListener {
+
+		private ExecutionContext context;
+
+		private Map<ObjectProvider, Map<Integer, RelationshipSnapshot>> snapshots = new HashMap<ObjectProvider, Map<Integer, RelationshipSnapshot>>();
+
+		private ContextSnapshots(ExecutionContext context) {
+			this.context = context;
+		}
+
+		private synchronized RelationshipSnapshot get(ObjectProvider op,
+				int fieldNumber) {
+			Map<Integer, RelationshipSnapshot> fields = snapshots.get(op);
+
+			if (fields == null) {
+				return null;
+			}
+
+			RelationshipSnapshot snapshot = fields.get(fieldNumber);
+
+			return snapshot instanceof UnreadMark ? null : snapshot;
+		}
+
+		private synchronized void put(ObjectProvider op, int fieldNumber,
+				RelationshipSnapshot snapshot) {
+			Map<Integer, RelationshipSnapshot> fields = snapshots.get(op);
+
+			if (fields == null) {
+				fields = new HashMap<Integer, RelationshipSnapshot>();
+				snapshots.put(op, fields);
+			}
+
+			fields.put(fieldNumber, snapshot);
+		}
+
+		private synchronized boolean replace(ObjectProvider op,
+				int fieldNumber, Object mark, RelationshipSnapshot snapshot) {
+			Map<Integer, RelationshipSnapshot> fields = snapshots.get(op);
+
+			if (fields == null || fields.get(fieldNumber) != mark) {
+				return false;
+			}
+
+			fields.put(fieldNumber, snapshot);
+
+			return true;
+		}
+
+		private synchronized RelationshipSnapshot remove(ObjectProvider op,
+				int fieldNumber) {
+			Map<Integer, RelationshipSnapshot> fields = snapshots.get(op);
+
+			if (fields == null) {
+				return null;
+			}
+
+			RelationshipSnapshot removed = fields.remove(fieldNumber);
+
+			if (fields.isEmpty()) {
+				snapshots.remove(op);
+			}
+
+			return removed instanceof UnreadMark ? null : removed;
+		}
+
+		private synchronized void release(ObjectProvider op) {
+			snapshots.remove(op);
+		}
+
+		public void transactionStarted() {
+		}
+
+		public void transactionEnded() {
+			contexts.remove(context, this);
+
+			synchronized (this) {
+				snapshots.clear();
+			}
+		}
+
+		public void transactionPreFlush() {
+		}
+
+		public void transactionFlushed() {
+		}
+
+		public void transactionPreCommit() {
+		}
+
+		public void transactionCommitted() {
+		}
+
+		public void transactionPreRollBack() {
+		}
+
+		public void transactionRolledBack() {
+		}
+
+		public void transactionSetSavepoint(String name) {
+		}
+
+		public void transactionReleaseSavepoint(String name) {
+		}
+
+		public void transactionRollbackToSavepoint(String name) {
+		}
+
+	}
+
+	/**
+	 * Marks a field whose columns are being written. Each mark is distinct,
+	 * so a write only replaces its own mark
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private static class UnreadMark extends RelationshipSnapshot {
+
+		private ContextSnapshots snapshots;
+
+		private UnreadMark(ContextSnapshots snapshots) {
+			super(null, null);
+			this.snapshots = snapshots;
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+
+/**
+ * Converts the elements read from the relationship columns to objects.
+ * Elements whose object no longer exists are skipped
+ * 
+ * @author Todd Nine
+ * 
+ * @param <S>
+ *            The type read from the columns
+ * @param <T>
+ *            The type returned
+ */
+abstract class ResolvingIterator<S, T> implements Iterator<T> {
+
+	private Iterator<S> source;
+
+	private T next;
+
+	private boolean hasNext;
+
+	ResolvingIterator(Iterator<S> source) {
+		this.source = source;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!hasNext && source.hasNext()) {
+			try {
+				next = resolve(source.next());
+				hasNext = true;
+			} catch (NucleusObjectNotFoundException nonfe) {
+				// swallow. TODO remove the lazy reference if record is over
+				// tombstone time
+			}
+		}
+
+		return hasNext;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException("No elements left");
+		}
+
+		hasNext = false;
+
+		T result = next;
+		next = null;
+
+		return result;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException(
+				"Lazy relationships are read only, assign a new collection to change the field");
+	}
+
+	/**
+	 * Convert the element
+	 * 
+	 * @param element
+	 * @return
+	 */
+	protected abstract T resolve(S element);
+}
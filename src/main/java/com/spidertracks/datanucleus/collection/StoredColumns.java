@@ -0,0 +1,116 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.Mutation;
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.spidertracks.datanucleus.client.RowPool;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
+
+/**
+ * Reads the relationship columns of a field as they are stored, without
+ * converting them. Used to find the columns to delete when a field is written
+ * without a snapshot of its columns
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class StoredColumns extends ReadRelationship<Column> {
+
+	private static final int PAGE_SIZE = 1000;
+
+	public StoredColumns(ByteConverterContext context,
+			String ownerColumnFamily, Bytes rowKey, Bytes ownerColumn) {
+		super(context, ownerColumnFamily, rowKey, ownerColumn);
+	}
+
+	/**
+	 * Read every column of the field
+	 * 
+	 * @param pool
+	 * @return The names and values of the stored columns
+	 */
+	public Map<Bytes, Bytes> read(RowPool pool) {
+		fetchColumns(PAGE_SIZE, null, pool);
+
+		while (hasNext()) {
+			next();
+		}
+
+		return getSnapshot();
+	}
+
+	/**
+	 * Read every column of the field, then apply the mutations of a batch that
+	 * hasn't been sent yet. Columns the batch writes are included and columns
+	 * it deletes are left out. Batches that were sent asynchronously must be
+	 * complete before this is called
+	 * 
+	 * @param pool
+	 * @param pending
+	 * @return The names and values of the columns once the batch is written
+	 */
+	public Map<Bytes, Bytes> read(RowPool pool, BatchMutator pending) {
+		Map<Bytes, Bytes> stored = read(pool);
+
+		ByteBuffer prefix = getColumnStart(null);
+
+		for (Mutation mutation : pending.getMutations(ownerColumnFamily,
+				rowKey)) {
+
+			if (mutation.isSetColumn_or_supercolumn()) {
+				Column column = mutation.getColumn_or_supercolumn()
+						.getColumn();
+
+				if (column != null && startsWith(column.name, prefix)) {
+					stored.put(copy(column.name), copy(column.value));
+				}
+
+				continue;
+			}
+
+			Deletion deletion = mutation.getDeletion();
+
+			// a row deletion
+			if (!deletion.isSetPredicate()) {
+				stored.clear();
+				continue;
+			}
+
+			for (ByteBuffer name : deletion.getPredicate().getColumn_names()) {
+				if (startsWith(name, prefix)) {
+					stored.remove(copy(name));
+				}
+			}
+		}
+
+		return stored;
+	}
+
+	@Override
+	protected Column toElement(ByteBuffer key, Column column) {
+		return column;
+	}
+}
@@ -18,10 +18,10 @@ Contributors :
 package com.spidertracks.datanucleus.collection;
 
 import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
 
-import org.apache.cassandra.thrift.Column;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
 
@@ -30,11 +30,13 @@ import com.spidertracks.datanucleus.convert.ByteConverterContext;
  * @author Todd Nine
  *
  */
-public class WriteCollection extends ExternalEntity {
+public class WriteCollection extends WriteRelationship {
 
 
 	private static final Bytes PLACEHOLDER = new Bytes(new byte[] { 0 });
 
+	// the column of each element identity
+	private Map<Object, Bytes> elements = new HashMap<Object, Bytes>();
 
 	public WriteCollection(ByteConverterContext context,
 			String ownerColumnFamily, Bytes rowKey, Bytes ownerColumn) {
@@ -43,10 +45,10 @@ public class WriteCollection extends ExternalEntity {
 
 
 	/**
-	 * Write the relationship column
-	 * @param mutator
+	 * Add the relationship column
+	 * @param entityKey
 	 */
-	public void writeRelationship(Mutator mutator, Object entityKey) {
+	public void addRelationship(Object entityKey) {
 		// a DRE, take the property +256 bytes so the buffer hopefully won't need to be re-allocated and copied.
 		ByteBuffer buffer = ByteBuffer.allocate(ownerColumn.length() + 256);
 
@@ -58,10 +60,31 @@ public class WriteCollection extends ExternalEntity {
 
 		buffer.reset();
 
-		Column keyColumn = mutator.newColumn(Bytes.fromByteBuffer(buffer),
-				PLACEHOLDER);
+		Bytes column = Bytes.fromByteBuffer(buffer);
 
-		mutator.writeColumn(ownerColumnFamily, rowKey, keyColumn, true);
+		elements.put(entityKey, column);
 
+		addColumn(column, PLACEHOLDER);
+
+	}
+
+	/**
+	 * Keep the stored column of an element without building it again
+	 * 
+	 * @param entityKey
+	 * @param name
+	 * @param value
+	 *            The stored value
+	 */
+	public void retain(Object entityKey, Bytes name, Bytes value) {
+		elements.put(entityKey, name);
+
+		retain(name, value);
+	}
+
+	@Override
+	public RelationshipSnapshot getSnapshot() {
+		return new RelationshipSnapshot(super.getSnapshot().getColumns(),
+				elements);
 	}
 }
@@ -19,9 +19,7 @@ package com.spidertracks.datanucleus.collection;
 
 import java.nio.ByteBuffer;
 
-import org.apache.cassandra.thrift.Column;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
 
@@ -30,7 +28,7 @@ import com.spidertracks.datanucleus.convert.ByteConverterContext;
  * @author Todd Nine
  *
  */
-public class WriteMap extends ExternalEntity {
+public class WriteMap extends WriteRelationship {
 
 
 	public WriteMap(ByteConverterContext context,
@@ -40,10 +38,11 @@ public class WriteMap extends ExternalEntity {
 
 
 	/**
-	 * Write the relationship column
-	 * @param mutator
+	 * Add the relationship column
+	 * @param key
+	 * @param entityKey
 	 */
-	public void writeRelationship(Mutator mutator, Object key, Object entityKey) {
+	public void addRelationship(Object key, Object entityKey) {
 		// a DRE, take the property +256 bytes so the buffer hopefully won't need to be re-allocated and copied.
 		ByteBuffer buffer = ByteBuffer.allocate(ownerColumn.length() + 256);
 
@@ -57,10 +56,7 @@ public class WriteMap extends ExternalEntity {
 		ByteBuffer value = context.getRowKeyForId(entityKey, null);
 		value.reset();
 
-		Column keyColumn = mutator.newColumn(Bytes.fromByteBuffer(buffer),
-				Bytes.fromByteBuffer(value));
-
-		mutator.writeColumn(ownerColumnFamily, rowKey, keyColumn, true);
+		addColumn(Bytes.fromByteBuffer(buffer), Bytes.fromByteBuffer(value));
 
 	}
 }
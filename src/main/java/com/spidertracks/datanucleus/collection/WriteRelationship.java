@@ -0,0 +1,103 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
+
+/**
+ * Collects the relationship columns of a field, then writes only the columns
+ * that differ from what is stored
+ * 
+ * @author Todd Nine
+ * 
+ */
+public abstract class WriteRelationship extends ExternalEntity {
+
+	private Map<Bytes, Bytes> columns = new LinkedHashMap<Bytes, Bytes>();
+
+	public WriteRelationship(ByteConverterContext context,
+			String ownerColumnFamily, Bytes rowKey, Bytes ownerColumn) {
+		super(context, ownerColumnFamily, rowKey, ownerColumn);
+	}
+
+	/**
+	 * Add a column to the relationship
+	 * 
+	 * @param name
+	 * @param value
+	 */
+	protected void addColumn(Bytes name, Bytes value) {
+		columns.put(name, value);
+	}
+
+	/**
+	 * Keep a stored column without building it again. The column is neither
+	 * written nor deleted
+	 * 
+	 * @param name
+	 * @param value
+	 *            The stored value
+	 */
+	public void retain(Bytes name, Bytes value) {
+		columns.put(name, value);
+	}
+
+	/**
+	 * @return The columns of the relationship as they are stored once written
+	 */
+	public RelationshipSnapshot getSnapshot() {
+		return new RelationshipSnapshot(columns, null);
+	}
+
+	/**
+	 * Write every column that is new or changed since the snapshot and delete
+	 * the columns that are no longer in the relationship. If there is no
+	 * snapshot every column is written.
+	 * 
+	 * @param mutator
+	 * @param snapshot
+	 *            The stored columns, or null if they're unknown
+	 */
+	public void writeChanges(BatchMutator mutator, Map<Bytes, Bytes> snapshot) {
+
+		for (Entry<Bytes, Bytes> column : columns.entrySet()) {
+			if (snapshot != null
+					&& column.getValue().equals(snapshot.get(column.getKey()))) {
+				continue;
+			}
+
+			mutator.writeColumn(ownerColumnFamily, rowKey, mutator.newColumn(
+					column.getKey(), column.getValue()), true);
+		}
+
+		if (snapshot != null) {
+			for (Bytes name : snapshot.keySet()) {
+				if (!columns.containsKey(name)) {
+					mutator.deleteColumn(ownerColumnFamily, rowKey, name);
+				}
+			}
+		}
+	}
+}
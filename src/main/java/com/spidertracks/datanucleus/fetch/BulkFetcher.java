@@ -0,0 +1,505 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnFamily;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnNames;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDiscriminatorColumnName;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getFetchPlanFields;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.FetchPlan;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.FieldValues2;
+import org.datanucleus.store.ObjectProvider;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.CassandraFetchFieldManager;
+import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.cache.RowCache;
+import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.client.RowPool;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+
+/**
+ * Loads a group of objects by identity. Rather than performing a get_slice per
+ * object, all row keys are collected and read with chunked multiget_slice
+ * calls per column family. The object providers are then populated from the
+ * returned columns.
+ *
+ * @author Todd Nine
+ *
+ */
+public class BulkFetcher {
+
+	/**
+	 * The default number of rows to request in a single multiget_slice
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 100;
+
+	private ExecutionContext ec;
+
+	private ByteConverterContext byteContext;
+
+	private String poolName;
+
+	private int chunkSize;
+
+	private boolean ignoreCache;
+
+	private RowCache rowCache;
+
+	// the number of relationships from the object the fetch started from
+	private int depth;
+
+	// all pending loads grouped by the class to instantiate
+	private Map<AbstractClassMetaData, List<PendingLoad>> pending = new LinkedHashMap<AbstractClassMetaData, List<PendingLoad>>();
+
+	// all pending loads in the order they were added
+	private List<PendingLoad> ordered = new ArrayList<PendingLoad>();
+
+	public BulkFetcher(ExecutionContext ec, int chunkSize, boolean ignoreCache) {
+		CassandraStoreManager manager = (CassandraStoreManager) ec
+				.getStoreManager();
+
+		this.ec = ec;
+		this.byteContext = manager.getByteConverterContext();
+		this.poolName = manager.getPoolName();
+		this.chunkSize = chunkSize;
+		this.ignoreCache = ignoreCache;
+		this.rowCache = manager.getRowCache();
+	}
+
+	/**
+	 * Set the number of relationships between the loaded objects and the
+	 * object the fetch started from. Defaults to 0 when the loaded objects
+	 * are where the fetch starts, such as the results of a query
+	 * 
+	 * @param depth
+	 */
+	public void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	/**
+	 * Add the identity to be loaded as an instance of the target class
+	 *
+	 * @param identity
+	 * @param targetClass
+	 */
+	public void add(Object identity, Class<?> targetClass) {
+
+		AbstractClassMetaData metaData = ec.getMetaDataManager()
+				.getMetaDataForClass(targetClass, ec.getClassLoaderResolver());
+
+		PendingLoad load = new PendingLoad(identity, targetClass,
+				byteContext.getRowKeyForId(identity));
+
+		ordered.add(load);
+
+		List<PendingLoad> loads = pending.get(metaData);
+
+		if (loads == null) {
+			loads = new ArrayList<PendingLoad>();
+			pending.put(metaData, loads);
+		}
+
+		loads.add(load);
+	}
+
+	/**
+	 * Add the identity to be loaded as an instance of the target class. The
+	 * columns of the row have already been read, so the object is populated
+	 * from them without reading the row again. The columns must contain every
+	 * field in the fetch plan of the target class that has a value.
+	 * 
+	 * @param identity
+	 * @param targetClass
+	 * @param columns
+	 */
+	public void add(Object identity, Class<?> targetClass,
+			Map<Bytes, Bytes> columns) {
+
+		PendingLoad load = new PendingLoad(identity, targetClass,
+				byteContext.getRowKeyForId(identity));
+
+		load.values = columns;
+
+		ordered.add(load);
+	}
+
+	/**
+	 * Load all pending identities. Objects are returned in the order they were
+	 * added. Rows that no longer exist are not returned
+	 *
+	 * @return
+	 */
+	public List<Object> execute() {
+
+		Selector selector = Pelops.createSelector(poolName);
+
+		for (Entry<AbstractClassMetaData, List<PendingLoad>> entry : pending
+				.entrySet()) {
+			load(entry.getKey(), entry.getValue(), selector);
+		}
+
+		List<Object> results = new ArrayList<Object>(ordered.size());
+
+		for (PendingLoad load : ordered) {
+
+			// the columns were provided by the caller, populate the object
+			if (load.values != null && load.result == null) {
+				AbstractClassMetaData metaData = ec.getMetaDataManager()
+						.getMetaDataForClass(load.targetClass,
+								ec.getClassLoaderResolver());
+
+				load.result = hydrate(load, getFetchPlanFields(ec, metaData),
+						getColumnFamily(metaData));
+			}
+
+			if (load.result != null) {
+				results.add(load.result);
+			}
+		}
+
+		pending.clear();
+		ordered.clear();
+
+		return results;
+	}
+
+	/**
+	 * Read all rows for the given class in chunks and populate the objects
+	 *
+	 * @param metaData
+	 * @param loads
+	 * @param selector
+	 */
+	private void load(AbstractClassMetaData metaData, List<PendingLoad> loads,
+			Selector selector) {
+
+		String columnFamily = getColumnFamily(metaData);
+
+		int[] fieldNumbers = getFetchPlanFields(ec, metaData);
+
+		List<Bytes> names = getColumnNames(metaData, fieldNumbers);
+
+		// read the descriminator so rows of subclasses are not populated as
+		// the requested class
+		Bytes descriminatorColumn = getDiscriminatorColumnName(metaData);
+
+		if (descriminatorColumn != null && !names.contains(descriminatorColumn)) {
+			names.add(descriminatorColumn);
+		}
+
+		SlicePredicate predicate = Selector.newColumnsPredicate(names
+				.toArray(new Bytes[names.size()]));
+
+		// loads whose rows are instances of a subclass, grouped by subclass
+		Map<AbstractClassMetaData, List<PendingLoad>> subclassLoads = new LinkedHashMap<AbstractClassMetaData, List<PendingLoad>>();
+
+		// populate the objects we have cached rows for and only read the rest
+		if (rowCache != null) {
+			loads = loadCached(loads, names, metaData, descriminatorColumn,
+					fieldNumbers, subclassLoads);
+		}
+
+		for (int start = 0; start < loads.size(); start += chunkSize) {
+
+			List<PendingLoad> chunk = loads.subList(start,
+					Math.min(start + chunkSize, loads.size()));
+
+			List<Bytes> keys = new ArrayList<Bytes>(chunk.size());
+
+			for (PendingLoad load : chunk) {
+				keys.add(load.rowKey);
+			}
+
+			long stamp = rowCache == null ? 0 : rowCache.getStamp();
+
+			Map<Bytes, List<Column>> rows = null;
+
+			try {
+				rows = readRows(selector, columnFamily, keys, predicate);
+			} catch (Exception e) {
+				throw new NucleusDataStoreException(e.getMessage(), e);
+			}
+
+			for (PendingLoad load : chunk) {
+				List<Column> columns = rows.get(load.rowKey);
+
+				// the row was removed after we read the key, ignore it
+				if (columns == null || columns.size() == 0) {
+					continue;
+				}
+
+				load.columns = columns;
+
+				if (rowCache != null) {
+					rowCache.put(columnFamily, load.rowKey, names, columns,
+							stamp);
+				}
+
+				hydrate(load, metaData, descriminatorColumn, fieldNumbers,
+						subclassLoads);
+			}
+		}
+
+		for (Entry<AbstractClassMetaData, List<PendingLoad>> entry : subclassLoads
+				.entrySet()) {
+			load(entry.getKey(), entry.getValue(), selector);
+		}
+	}
+
+	/**
+	 * Read a chunk of rows with a single multiget_slice
+	 * 
+	 * @param selector
+	 * @param columnFamily
+	 * @param keys
+	 * @param predicate
+	 * @return The columns of each row
+	 * @throws Exception
+	 */
+	Map<Bytes, List<Column>> readRows(Selector selector, String columnFamily,
+			List<Bytes> keys, SlicePredicate predicate) throws Exception {
+		return selector.getColumnsFromRows(columnFamily, keys, predicate,
+				Consistency.get());
+	}
+
+	/**
+	 * Populate the object from the columns read for the class. If the
+	 * descriminator of the row is for a subclass the load is queued to be
+	 * read again with the fetch plan of the subclass
+	 * 
+	 * @param load
+	 * @param metaData
+	 *            The class the row was read for
+	 * @param descriminatorColumn
+	 *            The descriminator column, or null if the class has none
+	 * @param fieldNumbers
+	 * @param subclassLoads
+	 *            The loads to read again, grouped by subclass
+	 */
+	private void hydrate(PendingLoad load, AbstractClassMetaData metaData,
+			Bytes descriminatorColumn, int[] fieldNumbers,
+			Map<AbstractClassMetaData, List<PendingLoad>> subclassLoads) {
+
+		String className = null;
+
+		if (descriminatorColumn != null) {
+			Bytes descriminator = load.getColumnValue(descriminatorColumn);
+
+			if (descriminator != null) {
+				className = org.datanucleus.metadata.MetaDataUtils
+						.getClassNameFromDiscriminatorValue(
+								descriminator.toUTF8(),
+								metaData.getDiscriminatorMetaData(), ec);
+			}
+		}
+
+		if (className == null
+				|| className.equals(metaData.getFullClassName())) {
+			load.result = hydrate(load, fieldNumbers,
+					getColumnFamily(metaData));
+			return;
+		}
+
+		ClassLoaderResolver clr = ec.getClassLoaderResolver();
+
+		Class<?> subclass = clr.classForName(className);
+
+		// not an instance of the requested class, don't return it
+		if (!load.targetClass.isAssignableFrom(subclass)) {
+			return;
+		}
+
+		AbstractClassMetaData subclassMetaData = ec.getMetaDataManager()
+				.getMetaDataForClass(subclass, clr);
+
+		load.targetClass = subclass;
+		load.identity = byteContext.getObjectIdentity(ec, subclass,
+				load.rowKey);
+		load.columns = null;
+		load.values = null;
+
+		List<PendingLoad> loads = subclassLoads.get(subclassMetaData);
+
+		if (loads == null) {
+			loads = new ArrayList<PendingLoad>();
+			subclassLoads.put(subclassMetaData, loads);
+		}
+
+		loads.add(load);
+	}
+
+	/**
+	 * Populate the objects whose rows are in the row cache
+	 * 
+	 * @param loads
+	 * @param names
+	 *            The names of the columns to read
+	 * @param metaData
+	 * @param descriminatorColumn
+	 * @param fieldNumbers
+	 * @param subclassLoads
+	 * @return The loads whose rows are not cached
+	 */
+	private List<PendingLoad> loadCached(List<PendingLoad> loads,
+			List<Bytes> names, AbstractClassMetaData metaData,
+			Bytes descriminatorColumn, int[] fieldNumbers,
+			Map<AbstractClassMetaData, List<PendingLoad>> subclassLoads) {
+
+		String columnFamily = getColumnFamily(metaData);
+
+		List<PendingLoad> misses = new ArrayList<PendingLoad>(loads.size());
+
+		for (PendingLoad load : loads) {
+			Map<Bytes, Bytes> cached = rowCache.get(columnFamily,
+					load.rowKey, names);
+
+			if (cached == null || cached.size() == 0) {
+				misses.add(load);
+				continue;
+			}
+
+			load.values = cached;
+
+			hydrate(load, metaData, descriminatorColumn, fieldNumbers,
+					subclassLoads);
+		}
+
+		return misses;
+	}
+
+	/**
+	 * Find the object in the execution context, populating its fields from the
+	 * columns we have already read
+	 *
+	 * @param load
+	 * @param fieldNumbers
+	 * @param columnFamily
+	 * @return
+	 */
+	private Object hydrate(final PendingLoad load, final int[] fieldNumbers,
+			final String columnFamily) {
+
+		return ec.findObject(load.identity, new FieldValues2() {
+
+			@Override
+			public void fetchFields(ObjectProvider op) {
+				op.replaceFields(fieldNumbers, load.newFieldManager(op,
+						columnFamily, poolName, depth));
+			}
+
+			@Override
+			public void fetchNonLoadedFields(ObjectProvider op) {
+				op.replaceNonLoadedFields(fieldNumbers, load.newFieldManager(
+						op, columnFamily, poolName, depth));
+			}
+
+			@Override
+			public FetchPlan getFetchPlanForLoading() {
+				return null;
+			}
+
+		}, load.targetClass, ignoreCache);
+	}
+
+	/**
+	 * An identity waiting to be loaded
+	 *
+	 * @author Todd Nine
+	 *
+	 */
+	private static class PendingLoad {
+		private Object identity;
+		private Class<?> targetClass;
+		private Bytes rowKey;
+		private List<Column> columns;
+		private Map<Bytes, Bytes> values;
+		private Object result;
+
+		private PendingLoad(Object identity, Class<?> targetClass, Bytes rowKey) {
+			this.identity = identity;
+			this.targetClass = targetClass;
+			this.rowKey = rowKey;
+		}
+
+		/**
+		 * Get the value of a column read for this row
+		 * 
+		 * @param name
+		 * @return The value, or null if the column has no value
+		 */
+		private Bytes getColumnValue(Bytes name) {
+			if (values != null) {
+				return values.get(name);
+			}
+
+			for (Column column : columns) {
+				if (name.equals(Bytes.fromBytes(column.getName()))) {
+					return Bytes.fromBytes(column.getValue());
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * Create a field manager over the columns read for this row
+		 * 
+		 * @param op
+		 * @param columnFamily
+		 * @param poolName
+		 *            The pool to read the relationship columns from
+		 * @param depth
+		 * @return
+		 */
+		private CassandraFetchFieldManager newFieldManager(ObjectProvider op,
+				String columnFamily, String poolName, int depth) {
+			CassandraFetchFieldManager manager;
+
+			RowPool pool = new RowPool(null, poolName, rowKey);
+
+			if (values != null) {
+				manager = new CassandraFetchFieldManager(values, op,
+						columnFamily, rowKey, pool);
+			} else {
+				manager = new CassandraFetchFieldManager(columns, op,
+						columnFamily, rowKey, pool);
+			}
+
+			manager.setDepth(depth);
+
+			return manager;
+		}
+	}
+
+}
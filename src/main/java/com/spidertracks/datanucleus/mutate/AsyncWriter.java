@@ -0,0 +1,155 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+
+import com.spidertracks.datanucleus.client.Consistency;
+
+/**
+ * Sends batch mutations on a pool of writer threads. The number of batches
+ * in flight is bounded, once the limit is reached the caller blocks until a
+ * batch completes. Callers track the returned futures with
+ * {@link PendingWrites} to find failed writes.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class AsyncWriter {
+
+	private ExecutorService executor;
+
+	private Semaphore inFlight;
+
+	/**
+	 * 
+	 * @param threads
+	 *            The number of writer threads
+	 * @param maxInFlight
+	 *            The maximum number of batches queued or being written
+	 */
+	public AsyncWriter(int threads, int maxInFlight) {
+		final AtomicInteger count = new AtomicInteger();
+
+		ThreadFactory factory = new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "cassandra-write-"
+						+ count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		};
+
+		this.executor = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+		this.inFlight = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Queue the mutations to be written. Blocks while the maximum number of
+	 * batches are in flight
+	 * 
+	 * @param mutations
+	 * @param failures
+	 *            Notified if the write fails, may be null
+	 * @param completed
+	 *            Run on the writer thread once the returned future is done,
+	 *            whether the write succeeded or not
+	 * @return The result of the write
+	 */
+	public Future<?> submit(final ExecutionContextMutate mutations,
+			final WriteFailureListener failures, final Runnable completed) {
+		// consistency is per thread, write with the caller's level
+		final ConsistencyLevel level = Consistency.get();
+
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new NucleusDataStoreException(
+					"Interrupted while waiting to write", e);
+		}
+
+		FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				try {
+					Consistency.set(level);
+					mutations.execute();
+					return null;
+				} catch (Exception e) {
+					if (failures != null) {
+						failures.writeFailed(mutations.getExecutionContext(), e);
+					}
+
+					throw e;
+				} finally {
+					Consistency.remove();
+					inFlight.release();
+				}
+			}
+
+		}) {
+
+			@Override
+			protected void done() {
+				completed.run();
+			}
+
+		};
+
+		try {
+			executor.execute(task);
+			return task;
+		} catch (RejectedExecutionException e) {
+			inFlight.release();
+			throw new NucleusDataStoreException("The writer has been closed", e);
+		}
+	}
+
+	/**
+	 * Stop accepting writes and wait for the queued writes to complete
+	 */
+	public void close() {
+		executor.shutdown();
+
+		try {
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
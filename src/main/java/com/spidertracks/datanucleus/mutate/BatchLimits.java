@@ -0,0 +1,86 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Limits on the size of a single batch_mutate, and the executor used to send
+ * the chunks of a batch that exceeds them concurrently
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class BatchLimits {
+
+	private int maxMutations;
+
+	private long maxBytes;
+
+	private int maxRows;
+
+	private ExecutorService executor;
+
+	/**
+	 * 
+	 * @param maxMutations
+	 *            The maximum number of mutations in a call
+	 * @param maxBytes
+	 *            The maximum estimated size of a call in bytes
+	 * @param maxRows
+	 *            The maximum number of rows in a call
+	 * @param executor
+	 *            Runs the calls of a split batch
+	 */
+	public BatchLimits(int maxMutations, long maxBytes, int maxRows,
+			ExecutorService executor) {
+		this.maxMutations = maxMutations;
+		this.maxBytes = maxBytes;
+		this.maxRows = maxRows;
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the maximum number of mutations in a call
+	 */
+	public int getMaxMutations() {
+		return maxMutations;
+	}
+
+	/**
+	 * @return the maximum estimated size of a call in bytes
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return the maximum number of rows in a call
+	 */
+	public int getMaxRows() {
+		return maxRows;
+	}
+
+	/**
+	 * @return the executor that sends the calls of a split batch
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+}
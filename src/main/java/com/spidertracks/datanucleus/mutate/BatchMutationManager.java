@@ -16,44 +16,110 @@ Contributors : Todd Nine
  ***********************************************************************/
 package com.spidertracks.datanucleus.mutate;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.datanucleus.Transaction;
+import org.datanucleus.TransactionEventListener;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
-import org.scale7.cassandra.pelops.Pelops;
 
 import com.spidertracks.datanucleus.CassandraStoreManager;
 
 /**
  * Internalises all pending operations for a given Execution context.
  * 
+ * A single manager serves every execution context of the factory. The
+ * operations being built are confined to the thread building them, so no
+ * state is shared between threads while objects are written. State that
+ * outlives a single operation is held by a listener for the context, which is
+ * registered with the context's transaction while one is active and may be
+ * committed from any thread.
+ * 
+ * When write behind is enabled, writes made within an active transaction are
+ * kept in a single buffer for the execution context and sent when the
+ * transaction flushes or before it commits. Writes made while the transaction
+ * commits are sent straight away. The buffer is discarded on rollback.
+ * 
+ * When writes are asynchronous, batches are sent by an {@link AsyncWriter}.
+ * A transaction waits for all of its writes before it commits. Writes made
+ * outside of a transaction are tracked by the context's listener as well, so
+ * a delete or commit of the context waits for them on any thread. A listener
+ * outside of a transaction is released once its writes have completed.
+ * 
  * @author Todd Nine
  * 
  */
 public class BatchMutationManager {
 
-	private Map<ExecutionContext, ExecutionContextMutate> contextMutations = new HashMap<ExecutionContext, ExecutionContextMutate>();
-	private Map<ExecutionContext, ExecutionContextDelete> contextDeletions = new HashMap<ExecutionContext, ExecutionContextDelete>();
+	// the operations of each context in progress on the current thread,
+	// released along with their context
+	private ThreadLocal<Map<ExecutionContext, ContextOperations>> operations = new ThreadLocal<Map<ExecutionContext, ContextOperations>>() {
+
+		@Override
+		protected Map<ExecutionContext, ContextOperations> initialValue() {
+			return new WeakHashMap<ExecutionContext, ContextOperations>();
+		}
+
+	};
+
+	// the listener of each context with an active transaction or writes in
+	// flight, removed once it is idle
+	private ConcurrentMap<ExecutionContext, FlushListener> listeners = new ConcurrentHashMap<ExecutionContext, FlushListener>();
+
+	// the timestamp of the last batch created
+	private static final AtomicLong lastTimestamp = new AtomicLong();
 
 	private CassandraStoreManager manager;
 
+	// null unless writes are asynchronous
+	private AsyncWriter writer;
+
 	public BatchMutationManager(CassandraStoreManager manager) {
 		this.manager = manager;
+
+		if (manager.isAsyncWrites()) {
+			writer = new AsyncWriter(manager.getWriteThreads(),
+					manager.getWriteQueue());
+		}
 	}
 
 	public ExecutionContextDelete beginDelete(ExecutionContext context,
 			ObjectProvider op) {
-		ExecutionContextDelete deleteContext = getDeletions(context);
-		deleteContext.pushInstance();
-		return deleteContext;
+		ContextOperations ops = getOperations(context);
+
+		if (ops.deletions == null) {
+			ops.deletions = new ExecutionContextDelete(context, newMutator());
+		}
+
+		ops.deletions.pushInstance();
+		return ops.deletions;
 
 	}
 
 	public ExecutionContextMutate beginWrite(ExecutionContext context) {
-		ExecutionContextMutate mutationContext = getMutations(context);
-		mutationContext.pushInstance();
-		return mutationContext;
+		ContextOperations ops = getOperations(context);
+
+		if (ops.mutations == null) {
+			ops.buffered = isBuffered(context);
+
+			// write into the transaction's buffer
+			if (ops.buffered) {
+				ops.mutations = getListener(context).getBuffer();
+			} else {
+				ops.mutations = new ExecutionContextMutate(context,
+						newMutator());
+			}
+		}
+
+		ops.mutations.pushInstance();
+		return ops.mutations;
 	}
 
 	/**
@@ -67,15 +133,35 @@ public class BatchMutationManager {
 	 */
 	public void endDelete(ExecutionContext context)
 			throws Exception {
+		ContextOperations ops = getOperations(context);
+
 		// not our root instance, don't create a batch mutation
-		if (!getDeletions(context).popInstance()) {
+		if (!ops.deletions.popInstance()) {
 			return;
 		}
 
-		// it is our root instance, create the batch mutation.
+		ExecutionContextDelete deletions = ops.deletions;
+		ops.deletions = null;
+
+		try {
+			FlushListener listener = listeners.get(context);
+
+			// send buffered writes first so the deletes are applied after
+			// them. Don't flush a write that is still being built
+			if (ops.mutations == null && listener != null) {
+				listener.flush();
+			}
+
+			// wait for asynchronous writes so they can't be applied after
+			// the deletes
+			awaitWrites(context);
+
+			// it is our root instance, create the batch mutation.
 
-		getDeletions(context).execute();
-		contextDeletions.remove(context);
+			deletions.execute();
+		} finally {
+			release(context, ops);
+		}
 
 	}
 
@@ -90,52 +176,448 @@ public class BatchMutationManager {
 	 */
 	public void endWrite(ExecutionContext context)
 			throws Exception {
+		ContextOperations ops = getOperations(context);
+
+		ExecutionContextMutate mutations = ops.mutations;
+
 		// not our root instance, don't create a batch mutation
-		if (!getMutations(context).popInstance()) {
+		if (!mutations.popInstance()) {
+			return;
+		}
+
+		ops.mutations = null;
+
+		try {
+			// keep the buffer until the transaction flushes or commits
+			if (ops.buffered) {
+				return;
+			}
+
+			Transaction tx = context.getTransaction();
+			boolean active = tx.isActive();
+
+			// the transaction has already waited for its writes
+			if (active && tx.isCommitting()) {
+				mutations.execute();
+				return;
+			}
+
+			// it is our root instance, create the batch mutation.
+
+			send(context, mutations);
+		} finally {
+			release(context, ops);
+		}
+
+	}
+
+	/**
+	 * Send the mutations now, or hand them to the writer when writes are
+	 * asynchronous. The context's listener tracks asynchronous writes so the
+	 * transaction, or the next delete or read, waits for them
+	 * 
+	 * @param context
+	 * @param mutations
+	 * @throws Exception
+	 */
+	private void send(final ExecutionContext context,
+			ExecutionContextMutate mutations) throws Exception {
+		if (writer == null) {
+			mutations.execute();
+			return;
+		}
+
+		FlushListener listener = getListener(context);
+
+		// report earlier failures before queueing more work
+		listener.pending.checkErrors();
+
+		// nothing may wait for a write outside of a transaction, report its
+		// failure as it happens
+		WriteFailureListener failures = context.getTransaction().isActive() ? null
+				: manager.getWriteFailureListener();
+
+		Future<?> future = writer.submit(mutations, failures, new Runnable() {
+
+			@Override
+			public void run() {
+				FlushListener listener = listeners.get(context);
+
+				if (listener != null) {
+					listener.written();
+				}
+			}
+
+		});
+
+		// the listener was released while we sent, track it with a new one
+		while (!listener.track(future)) {
+			listener = getListener(context);
+		}
+	}
+
+	/**
+	 * Wait for the asynchronous writes the context has sent, so a read or
+	 * query of their rows sees them. Writes still being built or buffered
+	 * aren't sent. Throws the error of any write that failed
+	 * 
+	 * @param context
+	 */
+	public void awaitWrites(ExecutionContext context) {
+		if (writer == null) {
 			return;
 		}
 
-		// it is our root instance, create the batch mutation.
+		FlushListener listener = listeners.get(context);
 
-		getMutations(context).execute();
-		contextMutations.remove(context);
+		if (listener == null) {
+			return;
+		}
 
+		try {
+			listener.pending.await();
+		} finally {
+			listener.releaseIfIdle();
+		}
 	}
 
 	/**
-	 * Get the mutations for this execution context
+	 * Wait for queued writes and release the writer threads
+	 */
+	public void close() {
+		if (writer != null) {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes are buffered within an active transaction until it starts to
+	 * commit
 	 * 
 	 * @param context
 	 * @return
 	 */
-	private ExecutionContextMutate getMutations(ExecutionContext context) {
-		ExecutionContextMutate operations = contextMutations.get(context);
+	private boolean isBuffered(ExecutionContext context) {
+		Transaction tx = context.getTransaction();
+
+		return manager.isWriteBehind() && tx.isActive() && !tx.isCommitting();
+	}
+
+	/**
+	 * Create a mutator for a new batch
+	 * 
+	 * @return
+	 */
+	private BatchMutator newMutator() {
+		BatchMutator mutator = new BatchMutator(manager.getPoolName(),
+				manager.getTokenRouter(), nextTimestamp(),
+				manager.getBatchLimits());
 
-		if (operations == null) {
-			operations = new ExecutionContextMutate(context,
-					Pelops.createMutator(manager.getPoolName(), System.nanoTime()/1000));
-			contextMutations.put(context, operations);
+		mutator.setRowCache(manager.getRowCache());
+
+		return mutator;
+	}
+
+	/**
+	 * Get a timestamp greater than any given before, so a batch always
+	 * replaces the values of the batches created before it. Every writer of
+	 * the factory, including the bulk loader, stamps its batches with this
+	 * 
+	 * @return
+	 */
+	public static long nextTimestamp() {
+		long now = System.nanoTime() / 1000;
+
+		while (true) {
+			long last = lastTimestamp.get();
+			long next = Math.max(now, last + 1);
+
+			if (lastTimestamp.compareAndSet(last, next)) {
+				return next;
+			}
 		}
+	}
+
+	/**
+	 * Get the listener of the context, registering it with the context's
+	 * transaction while one is active
+	 * 
+	 * @param context
+	 * @return
+	 */
+	private FlushListener getListener(ExecutionContext context) {
+		while (true) {
+			FlushListener listener = listeners.get(context);
+
+			if (listener == null) {
+				FlushListener created = new FlushListener(context);
 
-		return operations;
+				listener = listeners.putIfAbsent(context, created);
+
+				if (listener == null) {
+					listener = created;
+				}
+			}
+
+			// released by a completed write, use a new one
+			if (listener.register()) {
+				return listener;
+			}
+		}
 	}
 
 	/**
-	 * Get the mutations for this execution context
+	 * Get the operations of the context on this thread
 	 * 
 	 * @param context
 	 * @return
 	 */
-	private ExecutionContextDelete getDeletions(ExecutionContext context) {
-		ExecutionContextDelete operations = contextDeletions.get(context);
+	private ContextOperations getOperations(ExecutionContext context) {
+		Map<ExecutionContext, ContextOperations> contexts = operations.get();
+
+		ContextOperations ops = contexts.get(context);
+
+		if (ops == null) {
+			ops = new ContextOperations();
+			contexts.put(context, ops);
+		}
+
+		return ops;
+	}
+
+	/**
+	 * Forget the context on this thread once the outermost operation has
+	 * finished
+	 * 
+	 * @param context
+	 * @param ops
+	 */
+	private void release(ExecutionContext context, ContextOperations ops) {
+		if (ops.mutations != null || ops.deletions != null) {
+			return;
+		}
+
+		Map<ExecutionContext, ContextOperations> contexts = operations.get();
+
+		contexts.remove(context);
+
+		if (contexts.isEmpty()) {
+			operations.remove();
+		}
+	}
+
+	/**
+	 * The operations of a single context on a single thread
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private class ContextOperations {
+
+		private ExecutionContextMutate mutations;
+
+		// true if the mutations are the transaction's buffer
+		private boolean buffered;
+
+		private ExecutionContextDelete deletions;
+	}
+
+	/**
+	 * Holds the state of a context that outlives a single operation. Flushes
+	 * the write buffer when the transaction flushes or before it commits, and
+	 * discards it on rollback. Commit waits for asynchronous writes to
+	 * complete, including those made before the transaction began
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private class FlushListener implements TransactionEventListener {
+
+		private ExecutionContext context;
+
+		private ExecutionContextMutate buffer;
+
+		private PendingWrites pending = new PendingWrites();
+
+		// true while registered with the context's active transaction
+		private boolean registered;
+
+		// set once removed from the listeners, nothing more may be tracked
+		private boolean released;
+
+		// set once the buffer has been sent for the commit
+		private boolean committing;
+
+		private FlushListener(ExecutionContext context) {
+			this.context = context;
+		}
+
+		/**
+		 * Register with the context's transaction if it is active
+		 * 
+		 * @return false if the listener has been released
+		 */
+		private synchronized boolean register() {
+			if (released) {
+				return false;
+			}
+
+			Transaction tx = context.getTransaction();
+
+			if (!registered && tx.isActive()) {
+				tx.addTransactionEventListener(this);
+				registered = true;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Track an asynchronous write
+		 * 
+		 * @param future
+		 * @return false if the listener has been released
+		 */
+		private synchronized boolean track(Future<?> future) {
+			if (released) {
+				return false;
+			}
+
+			pending.add(future);
+
+			// it may have completed before we tracked it
+			if (future.isDone()) {
+				written();
+			}
+
+			return true;
+		}
+
+		/**
+		 * A write has completed, forget it if it succeeded
+		 */
+		private void written() {
+			pending.forgetSucceeded();
+			releaseIfIdle();
+		}
+
+		/**
+		 * Remove the listener once it is outside of a transaction and has
+		 * nothing left to track. Failed writes are kept until they're checked
+		 */
+		private synchronized void releaseIfIdle() {
+			if (released || registered || buffer != null || !pending.isEmpty()) {
+				return;
+			}
+
+			released = true;
+			listeners.remove(context, this);
+		}
+
+		/**
+		 * Get the write buffer of the transaction
+		 * 
+		 * @return
+		 */
+		private synchronized ExecutionContextMutate getBuffer() {
+			// nothing would send the buffer
+			if (committing) {
+				throw new NucleusDataStoreException(
+						"Writes can't be buffered once the transaction has started to commit");
+			}
+
+			if (buffer == null) {
+				buffer = new ExecutionContextMutate(context, newMutator());
+			}
+
+			return buffer;
+		}
+
+		/**
+		 * Stamp and send the buffer, wrapping any error so the transaction
+		 * fails
+		 */
+		private void flush() {
+			ExecutionContextMutate mutations;
+
+			synchronized (this) {
+				mutations = buffer;
+				buffer = null;
+			}
+
+			if (mutations == null) {
+				return;
+			}
+
+			// stamp the buffer as it's sent rather than when it was started,
+			// so it isn't overwritten by writes sent in the meantime
+			mutations.getMutator().setTimestamp(nextTimestamp());
+
+			try {
+				send(context, mutations);
+			} catch (NucleusException ne) {
+				throw ne;
+			} catch (Exception e) {
+				throw new NucleusDataStoreException(e.getMessage(), e);
+			}
+		}
+
+		/**
+		 * Drop the buffer without sending it
+		 */
+		private synchronized void discard() {
+			buffer = null;
+		}
+
+		public void transactionStarted() {
+		}
+
+		public void transactionEnded() {
+			synchronized (this) {
+				buffer = null;
+				committing = false;
+				registered = false;
+			}
+
+			releaseIfIdle();
+		}
+
+		public void transactionPreFlush() {
+		}
+
+		public void transactionFlushed() {
+			flush();
+		}
+
+		public void transactionPreCommit() {
+			synchronized (this) {
+				committing = true;
+			}
+
+			flush();
+			pending.await();
+		}
+
+		public void transactionCommitted() {
+		}
+
+		public void transactionPreRollBack() {
+			discard();
+		}
+
+		public void transactionRolledBack() {
+			discard();
+		}
+
+		public void transactionSetSavepoint(String name) {
+		}
+
+		public void transactionReleaseSavepoint(String name) {
+		}
 
-		if (operations == null) {
-			operations = new ExecutionContextDelete(context, Pelops
-					.createRowDeletor(manager.getPoolName(), System.nanoTime()/1000));
-			contextDeletions.put(context, operations);
+		public void transactionRollbackToSavepoint(String name) {
 		}
 
-		return operations;
 	}
 
 }
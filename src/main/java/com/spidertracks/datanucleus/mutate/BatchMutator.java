@@ -0,0 +1,662 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Operand;
+import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.pool.IThriftPool.IPooledConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.spidertracks.datanucleus.cache.RowCache;
+import com.spidertracks.datanucleus.client.TokenRouter;
+
+/**
+ * Collects column writes, column deletes and row deletes into a single
+ * batch_mutate. The pelops Mutator cannot delete an entire row and the
+ * RowDeletor performs a call per row, so both inserts and deletes are
+ * performed with this class. Batches that exceed the {@link BatchLimits} are
+ * split into several calls which are sent concurrently. When a
+ * {@link TokenRouter} is given, rows are grouped by the node that owns them and
+ * each group is sent straight to that node
+ *
+ * @author Todd Nine
+ *
+ */
+public class BatchMutator {
+
+	private static Logger logger = LoggerFactory.getLogger(BatchMutator.class);
+
+	private Map<ByteBuffer, Map<String, List<Mutation>>> batch = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+
+	// the mutation of each row, column family and column name in the batch
+	private Map<List<Object>, Mutation> columns = new HashMap<List<Object>, Mutation>();
+
+	// rough thrift overhead of each mutation and row in bytes
+	private static final int MUTATION_OVERHEAD = 24;
+	private static final int ROW_OVERHEAD = 16;
+
+	private long timestamp;
+
+	private String poolName;
+
+	private TokenRouter router;
+
+	private BatchLimits limits;
+
+	private int size;
+
+	private RowCache rowCache;
+
+	// run in order once the batch has been written
+	private List<Runnable> writeTasks = new ArrayList<Runnable>();
+
+	/**
+	 *
+	 * @param poolName
+	 *            The pool to write to
+	 * @param timestamp
+	 *            The timestamp of all mutations
+	 * @param limits
+	 *            The limits of a single call
+	 */
+	public BatchMutator(String poolName, long timestamp, BatchLimits limits) {
+		this(poolName, null, timestamp, limits);
+	}
+
+	/**
+	 * 
+	 * @param poolName
+	 *            The pool to write to when rows are not routed
+	 * @param router
+	 *            The router of rows to nodes, may be null
+	 * @param timestamp
+	 *            The timestamp of all mutations
+	 * @param limits
+	 *            The limits of a single call
+	 */
+	public BatchMutator(String poolName, TokenRouter router, long timestamp,
+			BatchLimits limits) {
+		this.poolName = poolName;
+		this.router = router;
+		this.timestamp = timestamp;
+		this.limits = limits;
+	}
+
+	/**
+	 * Create a new column with the timestamp of this batch
+	 *
+	 * @param name
+	 * @param value
+	 * @return
+	 */
+	public Column newColumn(Bytes name, Bytes value) {
+		return new Column(name.getBytes(), value == null ? null : value
+				.getBytes(), timestamp);
+	}
+
+	/**
+	 * Create a new column with a UTF8 value
+	 *
+	 * @param name
+	 * @param value
+	 * @return
+	 */
+	public Column newColumn(Bytes name, String value) {
+		return newColumn(name, value == null ? null : Bytes.fromUTF8(value));
+	}
+
+	/**
+	 * Write the column to the row
+	 *
+	 * @param columnFamily
+	 * @param rowKey
+	 * @param column
+	 */
+	public void writeColumn(String columnFamily, Bytes rowKey, Column column) {
+		writeColumn(columnFamily, rowKey, column, false);
+	}
+
+	/**
+	 * Write the column to the row
+	 *
+	 * @param columnFamily
+	 * @param rowKey
+	 * @param column
+	 * @param deleteIfNull
+	 *            If true and the column has no value the column is deleted
+	 */
+	public void writeColumn(String columnFamily, Bytes rowKey, Column column,
+			boolean deleteIfNull) {
+		if (deleteIfNull && column.value == null) {
+			deleteColumn(columnFamily, rowKey, Bytes
+					.fromByteBuffer(column.name));
+			return;
+		}
+
+		ColumnOrSuperColumn cosc = new ColumnOrSuperColumn();
+		cosc.setColumn(column);
+
+		Mutation mutation = new Mutation();
+		mutation.setColumn_or_supercolumn(cosc);
+
+		addColumnMutation(columnFamily, rowKey, column.name, mutation);
+	}
+
+	/**
+	 * Delete a single column from the row
+	 *
+	 * @param columnFamily
+	 * @param rowKey
+	 * @param columnName
+	 */
+	public void deleteColumn(String columnFamily, Bytes rowKey,
+			Bytes columnName) {
+		SlicePredicate predicate = new SlicePredicate();
+		predicate.addToColumn_names(columnName.getBytes());
+
+		Deletion deletion = new Deletion(timestamp);
+		deletion.setPredicate(predicate);
+
+		Mutation mutation = new Mutation();
+		mutation.setDeletion(deletion);
+
+		addColumnMutation(columnFamily, rowKey, columnName.getBytes(),
+				mutation);
+	}
+
+	/**
+	 * Delete the entire row. A deletion without a predicate removes every
+	 * column in the row
+	 *
+	 * @param columnFamily
+	 * @param rowKey
+	 */
+	public void deleteRow(String columnFamily, Bytes rowKey) {
+		Mutation mutation = new Mutation();
+		mutation.setDeletion(new Deletion(timestamp));
+
+		addMutation(columnFamily, rowKey, mutation);
+	}
+
+	/**
+	 * Get the pending mutations of a row
+	 * 
+	 * @param columnFamily
+	 * @param rowKey
+	 * @return The mutations in the order they were added, empty if there are
+	 *         none
+	 */
+	public List<Mutation> getMutations(String columnFamily, Bytes rowKey) {
+		Map<String, List<Mutation>> row = batch.get(rowKey.getBytes());
+
+		List<Mutation> mutations = row == null ? null : row.get(columnFamily);
+
+		if (mutations == null) {
+			return Collections.emptyList();
+		}
+
+		return mutations;
+	}
+
+	/**
+	 * Set the timestamp of the pending mutations and of those added later.
+	 * A batch that is kept before it's sent is stamped when it's sent, so it
+	 * replaces the values of batches sent while it was kept
+	 * 
+	 * @param timestamp
+	 */
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+
+		for (Map<String, List<Mutation>> row : batch.values()) {
+			for (List<Mutation> mutations : row.values()) {
+				for (Mutation mutation : mutations) {
+					if (mutation.isSetColumn_or_supercolumn()) {
+						mutation.getColumn_or_supercolumn().getColumn()
+								.setTimestamp(timestamp);
+					}
+
+					if (mutation.isSetDeletion()) {
+						mutation.getDeletion().setTimestamp(timestamp);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run the task once the pending mutations have been written. The task is
+	 * dropped if the write fails
+	 * 
+	 * @param task
+	 */
+	public void onWritten(Runnable task) {
+		writeTasks.add(task);
+	}
+
+	/**
+	 * @return The number of pending mutations
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Send all pending mutations. Rows are never split across calls, so a
+	 * single call may exceed the limits when one row does. When the batch is
+	 * split every call is attempted, and a single exception reports all the
+	 * calls that failed. Once every call succeeds the tasks given to
+	 * {@link #onWritten(Runnable)} are run
+	 * 
+	 * @param consistency
+	 */
+	public void execute(ConsistencyLevel consistency) {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+
+		for (Entry<String, Map<ByteBuffer, Map<String, List<Mutation>>>> group : route()
+				.entrySet()) {
+			for (Map<ByteBuffer, Map<String, List<Mutation>>> mutations : split(group
+					.getValue())) {
+				chunks.add(new Chunk(group.getKey(), mutations));
+			}
+		}
+
+		Map<ByteBuffer, Map<String, List<Mutation>>> rows = batch;
+		List<Runnable> tasks = writeTasks;
+
+		batch = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+		columns.clear();
+		size = 0;
+		writeTasks = new ArrayList<Runnable>();
+
+		if (chunks.size() > 0) {
+			try {
+				send(chunks, consistency);
+			} finally {
+				// once the write is done, so a read that started before it
+				// can't be cached
+				invalidate(rows);
+			}
+		}
+
+		for (Runnable task : tasks) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Set the row cache to remove written rows from
+	 * 
+	 * @param rowCache
+	 *            The row cache, may be null
+	 */
+	public void setRowCache(RowCache rowCache) {
+		this.rowCache = rowCache;
+	}
+
+	/**
+	 * Remove every row of the batch from the row cache
+	 * 
+	 * @param rows
+	 */
+	private void invalidate(Map<ByteBuffer, Map<String, List<Mutation>>> rows) {
+		if (rowCache == null) {
+			return;
+		}
+
+		for (Entry<ByteBuffer, Map<String, List<Mutation>>> row : rows
+				.entrySet()) {
+			Bytes key = Bytes.fromByteBuffer(row.getKey());
+
+			for (String columnFamily : row.getValue().keySet()) {
+				rowCache.invalidate(columnFamily, key);
+			}
+		}
+	}
+
+	/**
+	 * Send the chunks concurrently
+	 * 
+	 * @param chunks
+	 * @param consistency
+	 */
+	private void send(List<Chunk> chunks, ConsistencyLevel consistency) {
+		if (chunks.size() == 1) {
+			send(chunks.get(0), consistency);
+			return;
+		}
+
+		List<Future<?>> results = new ArrayList<Future<?>>();
+
+		// run the last chunk ourselves
+		for (int i = 0; i < chunks.size() - 1; i++) {
+			results.add(limits.getExecutor().submit(
+					newSend(chunks.get(i), consistency)));
+		}
+
+		List<Throwable> failures = new ArrayList<Throwable>();
+
+		try {
+			send(chunks.get(chunks.size() - 1), consistency);
+		} catch (Exception e) {
+			failures.add(e);
+		}
+
+		for (Future<?> result : results) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failures.add(e);
+			} catch (ExecutionException e) {
+				failures.add(e.getCause());
+			}
+		}
+
+		if (failures.size() > 0) {
+			throw new NucleusDataStoreException(String.format(
+					"%d of %d batch mutations failed", failures.size(),
+					chunks.size()), failures.toArray(new Throwable[failures
+					.size()]));
+		}
+	}
+
+	/**
+	 * Group the rows by the pool of the node that owns them. Without a router
+	 * every row is sent to the default pool
+	 * 
+	 * @return
+	 */
+	private Map<String, Map<ByteBuffer, Map<String, List<Mutation>>>> route() {
+		Map<String, Map<ByteBuffer, Map<String, List<Mutation>>>> groups = new HashMap<String, Map<ByteBuffer, Map<String, List<Mutation>>>>();
+
+		if (router == null) {
+			if (batch.size() > 0) {
+				groups.put(poolName,
+						new HashMap<ByteBuffer, Map<String, List<Mutation>>>(
+								batch));
+			}
+
+			return groups;
+		}
+
+		for (Entry<ByteBuffer, Map<String, List<Mutation>>> row : batch
+				.entrySet()) {
+			String pool = router.getPoolName(Bytes.fromByteBuffer(row.getKey()));
+
+			Map<ByteBuffer, Map<String, List<Mutation>>> group = groups
+					.get(pool);
+
+			if (group == null) {
+				group = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+				groups.put(pool, group);
+			}
+
+			group.put(row.getKey(), row.getValue());
+		}
+
+		return groups;
+	}
+
+	/**
+	 * Split the rows into chunks that fit the limits
+	 *
+	 * @param rows
+	 * @return
+	 */
+	private List<Map<ByteBuffer, Map<String, List<Mutation>>>> split(
+			Map<ByteBuffer, Map<String, List<Mutation>>> rows) {
+		List<Map<ByteBuffer, Map<String, List<Mutation>>>> chunks = new ArrayList<Map<ByteBuffer, Map<String, List<Mutation>>>>();
+
+		Map<ByteBuffer, Map<String, List<Mutation>>> chunk = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+		int chunkMutations = 0;
+		long chunkBytes = 0;
+
+		for (Entry<ByteBuffer, Map<String, List<Mutation>>> row : rows
+				.entrySet()) {
+
+			int rowMutations = 0;
+			long rowBytes = ROW_OVERHEAD + row.getKey().remaining();
+
+			for (Entry<String, List<Mutation>> cf : row.getValue().entrySet()) {
+				rowBytes += cf.getKey().length();
+
+				for (Mutation mutation : cf.getValue()) {
+					rowBytes += estimateSize(mutation);
+				}
+
+				rowMutations += cf.getValue().size();
+			}
+
+			if (chunk.size() > 0
+					&& (chunkMutations + rowMutations > limits
+							.getMaxMutations()
+							|| chunkBytes + rowBytes > limits.getMaxBytes() || chunk
+							.size() + 1 > limits.getMaxRows())) {
+				chunks.add(chunk);
+				chunk = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+				chunkMutations = 0;
+				chunkBytes = 0;
+			}
+
+			chunk.put(row.getKey(), row.getValue());
+			chunkMutations += rowMutations;
+			chunkBytes += rowBytes;
+		}
+
+		if (chunk.size() > 0) {
+			chunks.add(chunk);
+		}
+
+		return chunks;
+	}
+
+	/**
+	 * Estimate the serialized size of the mutation
+	 *
+	 * @param mutation
+	 * @return
+	 */
+	private static long estimateSize(Mutation mutation) {
+		long bytes = MUTATION_OVERHEAD;
+
+		if (mutation.isSetColumn_or_supercolumn()) {
+			Column column = mutation.getColumn_or_supercolumn().getColumn();
+
+			bytes += column.name.remaining();
+
+			if (column.value != null) {
+				bytes += column.value.remaining();
+			}
+		} else if (mutation.getDeletion().isSetPredicate()) {
+			for (ByteBuffer name : mutation.getDeletion().getPredicate()
+					.getColumn_names()) {
+				bytes += name.remaining();
+			}
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Create a task that sends the chunk
+	 *
+	 * @param chunk
+	 * @param consistency
+	 * @return
+	 */
+	private Callable<Void> newSend(final Chunk chunk,
+			final ConsistencyLevel consistency) {
+		return new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				send(chunk, consistency);
+				return null;
+			}
+
+		};
+	}
+
+	/**
+	 * Perform the batch_mutate. If a chunk routed to a single node fails it is
+	 * retried once through the default pool, so a node that went down since
+	 * the ring was read does not fail the write
+	 *
+	 * @param chunk
+	 * @param consistency
+	 */
+	private void send(Chunk chunk, ConsistencyLevel consistency) {
+		try {
+			new Sender(chunk.poolName).send(chunk.mutations, consistency);
+		} catch (RuntimeException e) {
+			if (chunk.poolName.equals(poolName)) {
+				throw e;
+			}
+
+			logger.debug("Routed batch to {} failed, retrying on {}",
+					chunk.poolName, poolName);
+
+			// skip the node until the ring is read again
+			router.failed(chunk.poolName);
+
+			new Sender(poolName).send(chunk.mutations, consistency);
+		}
+	}
+
+	/**
+	 * Add the write or delete of a single column. Every mutation in the batch
+	 * has the same timestamp, so an earlier mutation of the same column is
+	 * replaced rather than leaving Cassandra to pick between the two
+	 * 
+	 * @param columnFamily
+	 * @param rowKey
+	 * @param name
+	 * @param mutation
+	 */
+	private void addColumnMutation(String columnFamily, Bytes rowKey,
+			ByteBuffer name, Mutation mutation) {
+		List<Object> column = Arrays.<Object> asList(rowKey.getBytes(),
+				columnFamily, name);
+
+		Mutation previous = columns.get(column);
+
+		if (previous != null) {
+			previous.setColumn_or_supercolumn(mutation
+					.getColumn_or_supercolumn());
+			previous.setDeletion(mutation.getDeletion());
+			return;
+		}
+
+		columns.put(column, mutation);
+
+		addMutation(columnFamily, rowKey, mutation);
+	}
+
+	/**
+	 * Add the mutation to the list for the row and column family
+	 *
+	 * @param columnFamily
+	 * @param rowKey
+	 * @param mutation
+	 */
+	private void addMutation(String columnFamily, Bytes rowKey,
+			Mutation mutation) {
+		Map<String, List<Mutation>> row = batch.get(rowKey.getBytes());
+
+		if (row == null) {
+			row = new HashMap<String, List<Mutation>>();
+			batch.put(rowKey.getBytes(), row);
+		}
+
+		List<Mutation> mutations = row.get(columnFamily);
+
+		if (mutations == null) {
+			mutations = new ArrayList<Mutation>();
+			row.put(columnFamily, mutations);
+		}
+
+		mutations.add(mutation);
+		size++;
+	}
+
+	/**
+	 * The rows of a single call and the pool to send them to
+	 *
+	 * @author Todd Nine
+	 *
+	 */
+	private static class Chunk {
+		private String poolName;
+		private Map<ByteBuffer, Map<String, List<Mutation>>> mutations;
+
+		private Chunk(String poolName,
+				Map<ByteBuffer, Map<String, List<Mutation>>> mutations) {
+			this.poolName = poolName;
+			this.mutations = mutations;
+		}
+	}
+
+	/**
+	 * Performs the batch_mutate on a single pool
+	 *
+	 * @author Todd Nine
+	 *
+	 */
+	private static class Sender extends Operand {
+
+		private Sender(String poolName) {
+			super(Pelops.getDbConnPool(poolName));
+		}
+
+		private void send(
+				final Map<ByteBuffer, Map<String, List<Mutation>>> mutations,
+				final ConsistencyLevel consistency) {
+			tryOperation(new IOperation<Void>() {
+
+				@Override
+				public Void execute(IPooledConnection conn) throws Exception {
+					conn.getAPI().batch_mutate(mutations, consistency);
+					return null;
+				}
+			});
+		}
+	}
+
+}
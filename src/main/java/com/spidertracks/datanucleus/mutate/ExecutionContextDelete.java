@@ -23,7 +23,6 @@ import java.util.Stack;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.RowDeletor;
 
 import com.spidertracks.datanucleus.client.Consistency;
 
@@ -41,12 +40,12 @@ public class ExecutionContextDelete extends ExecutionContextOp {
 	//our reference to visited objects so we don't get stuck in a recursive delete
 	private IdentityHashMap<ObjectProvider, Object> visited = new IdentityHashMap<ObjectProvider, Object>();
 	private List<Deletion> mutations = new Stack<Deletion>();
-	private RowDeletor deletor;
+	private BatchMutator mutator;
 
 	
-	public ExecutionContextDelete(ExecutionContext ctx, RowDeletor deletor) {
+	public ExecutionContextDelete(ExecutionContext ctx, BatchMutator mutator) {
 		super(ctx);
-		this.deletor = deletor;
+		this.mutator = mutator;
 	}
 
 
@@ -74,10 +73,27 @@ public class ExecutionContextDelete extends ExecutionContextOp {
 
 
 
+	/**
+	 * Add the deletion of a row that has no loaded object
+	 * @param key The key to delete
+	 * @param columnFamily The CF to delete from
+	 */
+	public void addDeletion(Bytes key, String columnFamily) {
+		mutations.add(new Deletion(key, columnFamily));
+	}
+
+
+
+	/**
+	 * Delete all rows in as few batch mutations as possible
+	 * @throws Exception
+	 */
 	public void execute() throws Exception {
 		for (Deletion deletion : mutations) {
-			deletor.deleteRow(deletion.columnFamily, deletion.rowKey, Consistency.get());
+			mutator.deleteRow(deletion.columnFamily, deletion.rowKey);
 		}
+		
+		mutator.execute(Consistency.get());
 	}
 	
 	private class Deletion{
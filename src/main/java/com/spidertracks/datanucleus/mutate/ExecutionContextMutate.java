@@ -17,7 +17,6 @@ Contributors : Todd Nine
 package com.spidertracks.datanucleus.mutate;
 
 import org.datanucleus.store.ExecutionContext;
-import org.scale7.cassandra.pelops.Mutator;
 
 import com.spidertracks.datanucleus.client.Consistency;
 
@@ -30,9 +29,9 @@ import com.spidertracks.datanucleus.client.Consistency;
 public class ExecutionContextMutate extends ExecutionContextOp {
 
 	// operations of mutations to perform
-	private Mutator mutator;
+	private BatchMutator mutator;
 
-	public ExecutionContextMutate(ExecutionContext ctx, Mutator mutator) {
+	public ExecutionContextMutate(ExecutionContext ctx, BatchMutator mutator) {
 		super(ctx);
 		this.mutator = mutator;
 	}
@@ -44,7 +43,7 @@ public class ExecutionContextMutate extends ExecutionContextOp {
 	/**
 	 * @return the mutator
 	 */
-	public Mutator getMutator() {
+	public BatchMutator getMutator() {
 		return mutator;
 	}
 
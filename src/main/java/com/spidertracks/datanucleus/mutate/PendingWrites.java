@@ -0,0 +1,155 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
+
+/**
+ * The asynchronous writes of an execution context that have not been checked
+ * for errors yet
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class PendingWrites {
+
+	private List<Future<?>> futures = new ArrayList<Future<?>>();
+
+	/**
+	 * Track the write
+	 * 
+	 * @param future
+	 */
+	public synchronized void add(Future<?> future) {
+		futures.add(future);
+	}
+
+	/**
+	 * @return true if no writes are being tracked
+	 */
+	public synchronized boolean isEmpty() {
+		return futures.isEmpty();
+	}
+
+	/**
+	 * Throw the error of any completed write that failed. Completed writes are
+	 * forgotten
+	 */
+	public void checkErrors() {
+		List<Future<?>> done = new ArrayList<Future<?>>();
+
+		synchronized (this) {
+			for (Iterator<Future<?>> it = futures.iterator(); it.hasNext();) {
+				Future<?> future = it.next();
+
+				if (future.isDone()) {
+					done.add(future);
+					it.remove();
+				}
+			}
+		}
+
+		for (Future<?> future : done) {
+			getResult(future);
+		}
+	}
+
+	/**
+	 * Forget the completed writes that succeeded. Failed writes are kept until
+	 * their errors are checked
+	 */
+	public synchronized void forgetSucceeded() {
+		for (Iterator<Future<?>> it = futures.iterator(); it.hasNext();) {
+			Future<?> future = it.next();
+
+			if (!future.isDone()) {
+				continue;
+			}
+
+			try {
+				future.get();
+				it.remove();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				// keep it so the error is reported
+			}
+		}
+	}
+
+	/**
+	 * Wait for every write to complete. Throws the error of the first write
+	 * that failed
+	 */
+	public void await() {
+		List<Future<?>> waiting;
+
+		synchronized (this) {
+			waiting = futures;
+			futures = new ArrayList<Future<?>>();
+		}
+
+		NucleusException failure = null;
+
+		for (Future<?> future : waiting) {
+			try {
+				getResult(future);
+			} catch (NucleusException ne) {
+				if (failure == null) {
+					failure = ne;
+				}
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Wait for the write and unwrap its error
+	 * 
+	 * @param future
+	 */
+	private void getResult(Future<?> future) {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new NucleusDataStoreException(
+					"Interrupted while waiting for writes", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof NucleusException) {
+				throw (NucleusException) cause;
+			}
+
+			throw new NucleusDataStoreException(cause.getMessage(), cause);
+		}
+	}
+
+}
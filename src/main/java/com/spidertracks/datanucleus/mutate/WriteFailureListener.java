@@ -0,0 +1,45 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import org.datanucleus.store.ExecutionContext;
+
+/**
+ * Notified on the writer thread when an asynchronous write made outside of a
+ * transaction fails. Nothing else may be waiting for such a write, for
+ * instance once its PersistenceManager has been closed. The error is still
+ * thrown by the next write, read or commit of the context.
+ * 
+ * Set the class name with "com.spidertracks.cassandra.writefailurelistener",
+ * it must have a public no argument constructor.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public interface WriteFailureListener {
+
+	/**
+	 * 
+	 * @param context
+	 *            The context that made the write
+	 * @param cause
+	 *            The error of the write
+	 */
+	public void writeFailed(ExecutionContext context, Exception cause);
+
+}
@@ -38,8 +38,10 @@ import org.scale7.cassandra.pelops.Selector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.spidertracks.datanucleus.cache.IndexEstimates;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
 import com.spidertracks.datanucleus.query.runtime.AndOperand;
+import com.spidertracks.datanucleus.query.runtime.ColumnValueComparator;
 import com.spidertracks.datanucleus.query.runtime.CompressableOperand;
 import com.spidertracks.datanucleus.query.runtime.EqualityOperand;
 import com.spidertracks.datanucleus.query.runtime.Operand;
@@ -69,10 +71,17 @@ public class CassandraQueryExpressionEvaluator extends
 	private Map<String, Object> parameterValues;
 
 	
-	private int maxSize;
+	/** The number of rows to read per index scan request */
+	private int pageSize;
 	
 	private ByteConverterContext byteConverter;
 	
+	/** The index estimates of the store manager */
+	private IndexEstimates estimates;
+	
+	/** The comparator for the values of each column referenced in the query */
+	private Map<Bytes, ColumnValueComparator> comparators = new HashMap<Bytes, ColumnValueComparator>();
+	
 
 	/**
 	 * Constructor for an in-memory evaluator.
@@ -89,14 +98,17 @@ public class CassandraQueryExpressionEvaluator extends
 	 *            ClassLoader resolver
 	 * @param candidateAlias
 	 *            Alias for the candidate class. With JDOQL this is "this".
+	 * @param estimates
+	 *            The index estimates of the store manager
 	 */
-	public CassandraQueryExpressionEvaluator(AbstractClassMetaData metaData, int maxSize, ByteConverterContext byteConverter, Map<String, Object> params) {
+	public CassandraQueryExpressionEvaluator(AbstractClassMetaData metaData, int pageSize, ByteConverterContext byteConverter, Map<String, Object> params, IndexEstimates estimates) {
 		this.metaData = metaData;
 		this.parameterValues = (params != null ? params
 				: new HashMap<String, Object>());
 		
-		this.maxSize = maxSize;
+		this.pageSize = pageSize;
 		this.byteConverter = byteConverter;
+		this.estimates = estimates;
 
 	}
 
@@ -119,7 +131,7 @@ public class CassandraQueryExpressionEvaluator extends
 		if (left instanceof CompressableOperand
 				&& right instanceof CompressableOperand) {
 			
-			EqualityOperand op = new EqualityOperand(maxSize);
+			EqualityOperand op = new EqualityOperand(pageSize, estimates);
 
 			op.addAll(((CompressableOperand) left).getIndexClause()
 					.getExpressions());
@@ -156,7 +168,7 @@ public class CassandraQueryExpressionEvaluator extends
 				indexKey.getIndexName(), IndexOperator.EQ,
 				indexKey.getIndexValue());
 
-		EqualityOperand op = new EqualityOperand(maxSize);
+		EqualityOperand op = new EqualityOperand(pageSize, estimates);
 		op.addExpression(expression);
 
 		return this.operationStack.push(op);
@@ -178,7 +190,7 @@ public class CassandraQueryExpressionEvaluator extends
 				indexKey.getIndexName(), IndexOperator.GTE,
 				indexKey.getIndexValue());
 
-		EqualityOperand op = new EqualityOperand(maxSize);
+		EqualityOperand op = new EqualityOperand(pageSize, estimates);
 		op.addExpression(expression);
 
 		return this.operationStack.push(op);
@@ -199,7 +211,7 @@ public class CassandraQueryExpressionEvaluator extends
 				indexKey.getIndexName(), IndexOperator.GT,
 				indexKey.getIndexValue());
 
-		EqualityOperand op = new EqualityOperand(maxSize);
+		EqualityOperand op = new EqualityOperand(pageSize, estimates);
 		op.addExpression(expression);
 
 		return this.operationStack.push(op);
@@ -220,7 +232,7 @@ public class CassandraQueryExpressionEvaluator extends
 				indexKey.getIndexName(), IndexOperator.LTE,
 				indexKey.getIndexValue());
 
-		EqualityOperand op = new EqualityOperand(maxSize);
+		EqualityOperand op = new EqualityOperand(pageSize, estimates);
 		op.addExpression(expression);
 
 		return this.operationStack.push(op);
@@ -241,7 +253,7 @@ public class CassandraQueryExpressionEvaluator extends
 				indexKey.getIndexName(), IndexOperator.LT,
 				indexKey.getIndexValue());
 
-		EqualityOperand op = new EqualityOperand(maxSize);
+		EqualityOperand op = new EqualityOperand(pageSize, estimates);
 		op.addExpression(expression);
 
 		return this.operationStack.push(op);
@@ -315,6 +327,10 @@ public class CassandraQueryExpressionEvaluator extends
 		Bytes columnName = getColumnName(metaData,
 				member.getAbsoluteFieldNumber());
 
+		comparators.put(columnName, ColumnValueComparator
+				.forValidationClass(byteConverter.getValidationClass(member
+						.getType())));
+
 		IndexParam param = new IndexParam(columnName, null);
 
 		return indexKeys.push(param);
@@ -345,6 +361,16 @@ public class CassandraQueryExpressionEvaluator extends
 
 
 
+	/**
+	 * Get the comparators for the values of every column referenced by the
+	 * filter
+	 * 
+	 * @return
+	 */
+	public Map<Bytes, ColumnValueComparator> getComparators() {
+		return comparators;
+	}
+
 	/**
 	 * Get the index value off the stack. Will only pop if the stack sizes are
 	 * equal
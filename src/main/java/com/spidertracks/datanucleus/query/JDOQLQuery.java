@@ -21,37 +21,46 @@ import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDiscriminatorC
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.jdo.identity.SingleFieldIdentity;
 
-import org.apache.cassandra.thrift.Column;
-import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.SlicePredicate;
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.exceptions.NucleusDataStoreException;
-import org.datanucleus.exceptions.NucleusException;
 import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
 import org.datanucleus.metadata.DiscriminatorMetaData;
 import org.datanucleus.query.evaluator.JDOQLEvaluator;
 import org.datanucleus.query.evaluator.JavaQueryEvaluator;
 import org.datanucleus.query.expression.Expression;
+import org.datanucleus.query.expression.InvokeExpression;
+import org.datanucleus.query.expression.OrderExpression;
+import org.datanucleus.query.expression.PrimaryExpression;
+import org.datanucleus.query.expression.VariableExpression;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.query.AbstractJDOQLQuery;
 import org.datanucleus.util.ClassUtils;
 import org.datanucleus.util.NucleusLogger;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Pelops;
 import org.scale7.cassandra.pelops.Selector;
 
+import com.spidertracks.datanucleus.CassandraPersistenceHandler;
 import com.spidertracks.datanucleus.CassandraStoreManager;
-import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.fetch.BulkFetcher;
 import com.spidertracks.datanucleus.query.runtime.Columns;
+import com.spidertracks.datanucleus.query.runtime.EqualityOperand;
+import com.spidertracks.datanucleus.query.runtime.IndexScanIterator;
 import com.spidertracks.datanucleus.query.runtime.Operand;
+import com.spidertracks.datanucleus.query.runtime.RangeScanIterator;
 import com.spidertracks.datanucleus.utils.MetaDataUtils;
 
 /**
@@ -60,13 +69,29 @@ import com.spidertracks.datanucleus.utils.MetaDataUtils;
  */
 public class JDOQLQuery extends AbstractJDOQLQuery {
 
-	private static int DEFAULT_MAX = 1000;
+	private static final int DEFAULT_PAGE_SIZE = 1000;
+
+	/**
+	 * Query extension to set the number of rows read per request when
+	 * scanning
+	 */
+	public static final String PAGE_SIZE_EXTENSION = "com.spidertracks.cassandra.pagesize";
+
+	/**
+	 * Query extension to log the plan of the query when it is executed
+	 */
+	public static final String EXPLAIN_EXTENSION = "com.spidertracks.cassandra.explain";
 
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * The plan of the last execution
+	 */
+	private transient String queryPlan;
+
 	/**
 	 * 
 	 private static final long serialVersionUID = 1L;
@@ -120,6 +145,10 @@ public class JDOQLQuery extends AbstractJDOQLQuery {
 
 		Expression filter = this.getCompilation().getExprFilter();
 
+		// the rows may be written by batches still being sent
+		((CassandraPersistenceHandler) ec.getStoreManager()
+				.getPersistenceHandler()).awaitWrites(ec);
+
 		String poolName = ((CassandraStoreManager) ec.getStoreManager())
 				.getPoolName();
 
@@ -136,75 +165,137 @@ public class JDOQLQuery extends AbstractJDOQLQuery {
 
 		String columnFamily = MetaDataUtils.getColumnFamily(acmd);
 
-		Set<Columns> candidateKeys = null;
-
 		Bytes idColumnBytes = MetaDataUtils.getIdentityColumn(acmd);
 		DiscriminatorMetaData discriminator = null;
 
 		ClassLoaderResolver clr = ec.getClassLoaderResolver();
 
-		Bytes[] selectColumns = null;
+		Set<Bytes> projection = new LinkedHashSet<Bytes>();
 		Bytes descriminiatorCol = null;
 
+		projection.add(idColumnBytes);
+
 		if (acmd.hasDiscriminatorStrategy()) {
 
 			discriminator = acmd.getDiscriminatorMetaData();
 
 			descriminiatorCol = getDiscriminatorColumnName(discriminator);
 
-			selectColumns = new Bytes[] { idColumnBytes, descriminiatorCol };
-		} else {
-			selectColumns = new Bytes[] { idColumnBytes };
+			projection.add(descriminiatorCol);
 		}
 
-		int range = DEFAULT_MAX;
+		// counts only need the key of each row, no objects are loaded
+		boolean count = isCountResult();
 
-		if (this.getRange() != null) {
-			range = (int) this.getRangeToExcl();
+		// read the fetch plan columns with the scan so objects can be
+		// populated without reading each row again
+		if (!count) {
+			projection.addAll(subclasses ? MetaDataUtils.getFetchPlanColumns(
+					ec, acmd, clr) : MetaDataUtils.getFetchPlanColumns(ec, acmd));
+		}
 
-			if (this.getOrdering() == null) {
-				throw new NucleusDataStoreException(
-						"You cannot invoke a without an ordering expression against Cassandra. Results will be randomly ordered from Cassnadra and need order to page");
+		if (this.getRange() != null && this.getOrdering() == null) {
+			throw new NucleusDataStoreException(
+					"You cannot invoke a without an ordering expression against Cassandra. Results will be randomly ordered from Cassnadra and need order to page");
+		}
 
+		// only the first rows of an ordered range need to be kept
+		List<TopNRowCollector.Ordering> orderings = getTopNOrderings(acmd);
+
+		if (orderings != null) {
+			for (TopNRowCollector.Ordering ordering : orderings) {
+				projection.add(ordering.getColumn());
 			}
 		}
 
-		// a query was specified, perform a filter with secondary cassandra
-		// indexes
-		if (filter != null) {
+		// scans read all matching rows a page at a time
+		int pageSize = getIntExtensionProperty(PAGE_SIZE_EXTENSION,
+				DEFAULT_PAGE_SIZE);
+
+		// nothing needs the full result in memory, stream it to the caller
+		boolean stream = this.getOrdering() == null
+				&& this.getGrouping() == null && this.getResult() == null;
+
+		Operand opTree = buildOperandTree(filter, parameters, acmd,
+				descriminiatorCol, poolName, columnFamily, pageSize,
+				byteContext, clr);
+
+		// read every column we evaluate in memory with the scan
+		if (opTree != null) {
+			opTree.addColumns(projection);
+		}
 
-			CassandraQueryExpressionEvaluator evaluator = new CassandraQueryExpressionEvaluator(acmd, range, byteContext, parameters);
+		Bytes[] selectColumns = projection.toArray(new Bytes[projection
+				.size()]);
 
-			Operand opTree = (Operand) filter.evaluate(evaluator);
+		// a single index clause or no filter can be paged through lazily
+		stream = stream
+				&& (opTree == null || opTree instanceof EqualityOperand);
 
-			// there's a discriminator so be sure to include it
-			if (acmd.hasDiscriminatorStrategy()) {
-				List<Bytes> descriminatorValues = MetaDataUtils
-						.getDescriminatorValues(acmd.getFullClassName(), clr,
-								ec);
+		String mode = null;
 
-				opTree = opTree.optimizeDescriminator(descriminiatorCol,
-						descriminatorValues);
+		if (stream) {
+			mode = "results streamed";
+		} else if (count) {
+			mode = "keys counted";
+		} else if (orderings != null) {
+			mode = "first " + getRangeToExcl() + " rows kept by ordering";
+		}
+
+		queryPlan = explain(opTree, columnFamily, mode);
+
+		if (getBooleanExtensionProperty(EXPLAIN_EXTENSION, false)) {
+			NucleusLogger.QUERY.info(queryPlan);
+		} else if (NucleusLogger.QUERY.isDebugEnabled()) {
+			NucleusLogger.QUERY.debug(queryPlan);
+		}
+
+		if (stream) {
+
+			Collection<?> results = streamResults(poolName, columnFamily,
+					opTree, acmd, clr, idColumnBytes, descriminiatorCol,
+					projection, byteContext, pageSize);
+
+			if (NucleusLogger.QUERY.isDebugEnabled()) {
+				NucleusLogger.QUERY.debug(LOCALISER.msg("021074", "JDOQL", ""
+						+ (System.currentTimeMillis() - startTime)));
 			}
-			// perform a query rewrite to take into account descriminator values
-			opTree.performQuery(poolName, columnFamily, selectColumns);
 
-			candidateKeys = opTree.getCandidateKeys();
-		} else {
-			candidateKeys = getAll(poolName, columnFamily, selectColumns, range);
+			return results;
 		}
 
-		Collection<?> results = getObjectsOfCandidateType(candidateKeys, acmd,
-				clr, subclasses, idColumnBytes, descriminiatorCol, byteContext);
+		Iterator<Columns> rows = scanCandidates(opTree, poolName,
+				columnFamily, selectColumns, pageSize);
 
-		if (this.getOrdering() != null || this.getGrouping() != null) {
+		Collection<?> results = null;
+
+		if (count) {
+			results = Collections.singletonList(countCandidates(rows, acmd,
+					clr, descriminiatorCol));
+		} else if (orderings != null) {
+			results = getTopN(rows, orderings, acmd, clr, idColumnBytes,
+					descriminiatorCol, projection, byteContext);
+		} else {
+			Set<Columns> candidateKeys = new LinkedHashSet<Columns>();
+
+			while (rows.hasNext()) {
+				candidateKeys.add(rows.next());
+			}
 
-			// Apply any result restrictions to the results
-			JavaQueryEvaluator resultMapper = new JDOQLEvaluator(this, results,
-					compilation, parameters, ec.getClassLoaderResolver());
+			results = getObjectsOfCandidateType(candidateKeys, acmd, clr,
+					subclasses, idColumnBytes, descriminiatorCol, projection,
+					byteContext);
 
-			results = resultMapper.execute(true, true, true, true, true);
+			if (this.getOrdering() != null || this.getGrouping() != null) {
 
+				// Apply any result restrictions to the results
+				JavaQueryEvaluator resultMapper = new JDOQLEvaluator(this,
+						results, compilation, parameters,
+						ec.getClassLoaderResolver());
+
+				results = resultMapper.execute(true, true, true, true, true);
+
+			}
 		}
 
 		if (NucleusLogger.QUERY.isDebugEnabled()) {
@@ -216,6 +307,262 @@ public class JDOQLQuery extends AbstractJDOQLQuery {
 
 	}
 
+	/**
+	 * Delete the matching rows without loading the objects. Objects are only
+	 * loaded if the candidate class or one of its subclasses has dependent
+	 * fields that need to be deleted as well, or if a range selects which
+	 * matches are deleted. Objects the context already manages are deleted
+	 * through the context so their state follows
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	protected long performDeletePersistentAll(Map parameters) {
+
+		ClassLoaderResolver clr = ec.getClassLoaderResolver();
+
+		AbstractClassMetaData acmd = ec.getMetaDataManager()
+				.getMetaDataForClass(candidateClass.getName(), clr);
+
+		// the range applies to the ordered results, which only the query
+		// execution produces
+		if (getRange() != null || hasDependentFields(acmd, clr)) {
+			return super.performDeletePersistentAll(parameters);
+		}
+
+		CassandraStoreManager manager = (CassandraStoreManager) ec
+				.getStoreManager();
+
+		CassandraPersistenceHandler handler = (CassandraPersistenceHandler) manager
+				.getPersistenceHandler();
+
+		// the rows may be written by batches still being sent
+		handler.awaitWrites(ec);
+
+		String poolName = manager.getPoolName();
+
+		ByteConverterContext byteContext = manager.getByteConverterContext();
+
+		String columnFamily = MetaDataUtils.getColumnFamily(acmd);
+
+		Set<Bytes> projection = new LinkedHashSet<Bytes>();
+
+		Bytes idColumnBytes = MetaDataUtils.getIdentityColumn(acmd);
+		Bytes descriminiatorCol = null;
+
+		projection.add(idColumnBytes);
+
+		if (acmd.hasDiscriminatorStrategy()) {
+			descriminiatorCol = getDiscriminatorColumnName(acmd
+					.getDiscriminatorMetaData());
+
+			projection.add(descriminiatorCol);
+		}
+
+		int pageSize = getIntExtensionProperty(PAGE_SIZE_EXTENSION,
+				DEFAULT_PAGE_SIZE);
+
+		Operand opTree = buildOperandTree(getCompilation().getExprFilter(),
+				parameters, acmd, descriminiatorCol, poolName, columnFamily,
+				pageSize, byteContext, clr);
+
+		if (opTree != null) {
+			opTree.addColumns(projection);
+		}
+
+		Iterator<Columns> rows = scanCandidates(opTree, poolName,
+				columnFamily,
+				projection.toArray(new Bytes[projection.size()]), pageSize);
+
+		Map<Bytes, AbstractClassMetaData> keys = new LinkedHashMap<Bytes, AbstractClassMetaData>();
+
+		long deleted = 0;
+
+		while (rows.hasNext()) {
+			Columns row = rows.next();
+
+			String className = getCandidateClassName(row, acmd, clr,
+					descriminiatorCol);
+
+			if (className == null) {
+				continue;
+			}
+
+			Object identity = byteContext.getObjectIdentity(ec,
+					clr.classForName(className),
+					row.getColumnValue(idColumnBytes));
+
+			Object managed = ec.getObjectFromCache(identity);
+
+			// delete a managed instance through the context, so it's no
+			// longer used as if it were stored
+			if (managed != null) {
+				ec.deleteObjectInternal(managed);
+				deleted++;
+				continue;
+			}
+
+			keys.put(row.getRowKey(), ec.getMetaDataManager()
+					.getMetaDataForClass(className, clr));
+
+			// delete a page at a time
+			if (keys.size() == pageSize) {
+				handler.deleteRows(ec, columnFamily, keys);
+				deleted += keys.size();
+				keys.clear();
+			}
+		}
+
+		if (keys.size() > 0) {
+			handler.deleteRows(ec, columnFamily, keys);
+			deleted += keys.size();
+		}
+
+		return deleted;
+	}
+
+	/**
+	 * Returns true if the class or any of its subclasses has a field whose
+	 * values must be deleted with the object
+	 * 
+	 * @param acmd
+	 * @param clr
+	 * @return
+	 */
+	private boolean hasDependentFields(AbstractClassMetaData acmd,
+			ClassLoaderResolver clr) {
+
+		if (MetaDataUtils.hasDependentFields(acmd)) {
+			return true;
+		}
+
+		String[] subclassNames = ec.getMetaDataManager().getSubclassesForClass(
+				acmd.getFullClassName(), true);
+
+		if (subclassNames == null) {
+			return false;
+		}
+
+		for (String subclassName : subclassNames) {
+			if (MetaDataUtils.hasDependentFields(ec.getMetaDataManager()
+					.getMetaDataForClass(subclassName, clr))) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Build and plan the operand tree for the filter. Returns null if there is
+	 * no filter
+	 * 
+	 * @param filter
+	 * @param parameters
+	 * @param acmd
+	 * @param descriminiatorCol
+	 * @param poolName
+	 * @param columnFamily
+	 * @param pageSize
+	 * @param byteContext
+	 * @param clr
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Operand buildOperandTree(Expression filter, Map parameters,
+			AbstractClassMetaData acmd, Bytes descriminiatorCol,
+			String poolName, String columnFamily, int pageSize,
+			ByteConverterContext byteContext, ClassLoaderResolver clr) {
+
+		if (filter == null) {
+			return null;
+		}
+
+		// a query was specified, perform a filter with secondary cassandra
+		// indexes
+		CassandraQueryExpressionEvaluator evaluator = new CassandraQueryExpressionEvaluator(
+				acmd, pageSize, byteContext, parameters,
+				((CassandraStoreManager) ec.getStoreManager())
+						.getIndexEstimates());
+
+		Operand opTree = (Operand) filter.evaluate(evaluator);
+
+		// there's a discriminator so be sure to include it
+		if (acmd.hasDiscriminatorStrategy()) {
+			List<Bytes> descriminatorValues = MetaDataUtils
+					.getDescriminatorValues(acmd.getFullClassName(), clr, ec);
+
+			opTree = opTree.optimizeDescriminator(descriminiatorCol,
+					descriminatorValues);
+		}
+
+		return opTree.plan(poolName, columnFamily, evaluator.getComparators());
+	}
+
+	/**
+	 * Read the rows matching the operand tree. A single index clause or a
+	 * range scan is paged, otherwise the operand tree is executed
+	 * 
+	 * @param opTree
+	 * @param poolName
+	 * @param columnFamily
+	 * @param selectColumns
+	 * @param pageSize
+	 * @return
+	 */
+	private Iterator<Columns> scanCandidates(Operand opTree, String poolName,
+			String columnFamily, Bytes[] selectColumns, int pageSize) {
+
+		if (opTree == null || opTree instanceof EqualityOperand) {
+			return newScan(poolName, columnFamily, opTree,
+					Selector.newColumnsPredicate(selectColumns), pageSize);
+		}
+
+		// perform a query rewrite to take into account descriminator values
+		opTree.performQuery(poolName, columnFamily, selectColumns,
+				((CassandraStoreManager) ec.getStoreManager())
+						.getQueryExecutor());
+
+		return opTree.getCandidateKeys().iterator();
+	}
+
+	/**
+	 * Get the plan chosen for the last execution of this query
+	 * 
+	 * @return
+	 */
+	public String getQueryPlan() {
+		return queryPlan;
+	}
+
+	/**
+	 * Describe how the query will be executed
+	 * 
+	 * @param opTree
+	 * @param columnFamily
+	 * @param mode
+	 *            How the rows are processed, null if they are all loaded
+	 * @return
+	 */
+	private String explain(Operand opTree, String columnFamily, String mode) {
+		StringBuilder plan = new StringBuilder();
+
+		plan.append("Query plan for column family ").append(columnFamily);
+
+		if (mode != null) {
+			plan.append(", ").append(mode);
+		}
+
+		plan.append("\n");
+
+		if (opTree == null) {
+			plan.append("  RANGE SCAN\n");
+		} else {
+			opTree.explain(plan, "  ");
+		}
+
+		return plan.toString();
+	}
+
 	/**
 	 * Used to load specific keys
 	 * 
@@ -224,21 +571,26 @@ public class JDOQLQuery extends AbstractJDOQLQuery {
 	 * @param keys
 	 * @param subclasses
 	 * @param ignoreCache
-	 * @param limit
-	 * @param startKey
+	 * @param projection
+	 *            The columns that were read for each key
 	 * @return
 	 */
 	public List<?> getObjectsOfCandidateType(Set<Columns> keys,
 			AbstractClassMetaData acmd, ClassLoaderResolver clr,
 			boolean subclasses, Bytes identityColumn,
-			Bytes descriminatorColumn, ByteConverterContext byteConverter) {
+			Bytes descriminatorColumn, Set<Bytes> projection,
+			ByteConverterContext byteConverter) {
 
 		// final ClassLoaderResolver clr = ec.getClassLoaderResolver();
 		// final AbstractClassMetaData acmd =
 		// ec.getMetaDataManager().getMetaDataForClass(candidateClass, clr);
 
-		List<Object> results = new ArrayList<Object>(keys.size());
-		// String tempKey = null;
+		// load all candidates with multiget calls rather than a get per object
+		BulkFetcher fetcher = new BulkFetcher(ec,
+				BulkFetcher.DEFAULT_CHUNK_SIZE, ignoreCache);
+
+		// cache of classes whose fetch plan was fully read by the scan
+		Map<Class<?>, Boolean> projected = new HashMap<Class<?>, Boolean>();
 
 		for (Columns idBytes : keys) {
 
@@ -269,71 +621,346 @@ public class JDOQLQuery extends AbstractJDOQLQuery {
 						"Only single field identities are supported");
 			}
 
-			if (!ClassUtils.typesAreCompatible(candidateClass,
-					((SingleFieldIdentity) identity).getTargetClassName(), clr)) {
+			if (!isCandidateClass(
+					((SingleFieldIdentity) identity).getTargetClassName(),
+					subclasses, clr)) {
 				continue;
 			}
 
-			Object returned = ec.findObject(identity, true, subclasses,
-					candidateClass.getName());
-
-			if (returned != null) {
-				results.add(returned);
+			if (isProjected(targetClass, projection, projected, clr)) {
+				fetcher.add(identity, targetClass, idBytes.getColumns());
+			} else {
+				fetcher.add(identity, targetClass);
 			}
 		}
 
-		return results;
+		return fetcher.execute();
+
+	}
+
+	/**
+	 * Returns true if every fetch plan column of the target class was read by
+	 * the scan
+	 * 
+	 * @param targetClass
+	 * @param projection
+	 * @param projected
+	 * @param clr
+	 * @return
+	 */
+	private boolean isProjected(Class<?> targetClass, Set<Bytes> projection,
+			Map<Class<?>, Boolean> projected, ClassLoaderResolver clr) {
+
+		Boolean result = projected.get(targetClass);
+
+		if (result == null) {
+			AbstractClassMetaData targetMetaData = ec.getMetaDataManager()
+					.getMetaDataForClass(targetClass, clr);
+
+			result = projection.containsAll(MetaDataUtils.getFetchPlanColumns(
+					ec, targetMetaData));
+
+			projected.put(targetClass, result);
+		}
 
+		return result;
 	}
 
 	/**
-	 * Get all keys from a given column family. Used ranges to set the max
-	 * amount
+	 * Create a result that pages through the candidate rows as the caller
+	 * iterates. The rows are read with the index clause of the operand, or a
+	 * range scan over the column family if there is no operand
 	 * 
 	 * @param poolName
 	 * @param cfName
-	 * @param selectColumns
+	 * @param opTree
+	 * @param acmd
+	 * @param clr
+	 * @param identityColumn
+	 * @param descriminatorColumn
+	 * @param projection
+	 * @param byteConverter
+	 * @param pageSize
 	 * @return
-	 * @throws Exception
 	 */
-	private Set<Columns> getAll(String poolName, String cfName,
-			Bytes[] selectColumns, int maxSize) {
+	private Collection<?> streamResults(final String poolName,
+			final String cfName, final Operand opTree,
+			final AbstractClassMetaData acmd, final ClassLoaderResolver clr,
+			final Bytes identityColumn, final Bytes descriminatorColumn,
+			final Set<Bytes> projection,
+			final ByteConverterContext byteConverter, final int pageSize) {
+
+		final SlicePredicate predicate = Selector
+				.newColumnsPredicate(projection.toArray(new Bytes[projection
+						.size()]));
+
+		return new LazyQueryResult(ec, BulkFetcher.DEFAULT_CHUNK_SIZE) {
+
+			@Override
+			protected Iterator<Columns> scan() {
+				return newScan(poolName, cfName, opTree, predicate, pageSize);
+			}
 
-		Set<Columns> candidateKeys = new HashSet<Columns>();
+			@Override
+			protected List<?> hydrate(Set<Columns> rows) {
+				return getObjectsOfCandidateType(rows, acmd, clr, subclasses,
+						identityColumn, descriminatorColumn, projection,
+						byteConverter);
+			}
+
+		};
+	}
+
+	/**
+	 * Create a scan over the rows matching the index clause of the operand,
+	 * or every row in the column family if there is no operand
+	 * 
+	 * @param poolName
+	 * @param cfName
+	 * @param opTree
+	 * @param predicate
+	 * @param pageSize
+	 * @return
+	 */
+	private Iterator<Columns> newScan(String poolName, String cfName,
+			Operand opTree, SlicePredicate predicate, int pageSize) {
+		if (opTree == null) {
+			return new RangeScanIterator(poolName, cfName, predicate, pageSize);
+		}
+
+		return new IndexScanIterator(poolName, cfName,
+				((EqualityOperand) opTree).getIndexClause(), predicate,
+				pageSize);
+	}
+
+	/**
+	 * Get the ordering of the query if only the first rows of the result are
+	 * needed and every ordering is on a field of the candidate with a
+	 * comparable value. Otherwise return null and all rows are loaded and
+	 * ordered in memory
+	 * 
+	 * @param acmd
+	 * @return
+	 */
+	private List<TopNRowCollector.Ordering> getTopNOrderings(
+			AbstractClassMetaData acmd) {
 
-		KeyRange range = new KeyRange();
-		range.setStart_key(new byte[] {});
-		range.setEnd_key(new byte[] {});
-		range.setCount(maxSize);
+		if (this.getRange() == null || this.getOrdering() == null
+				|| this.getGrouping() != null || this.getResult() != null
+				|| this.getRangeToExcl() > Integer.MAX_VALUE) {
+			return null;
+		}
 
-		Map<Bytes, List<Column>> results;
+		Expression[] orderExpressions = getCompilation().getExprOrdering();
 
-		try {
-			results = Pelops.createSelector(poolName).getColumnsFromRows(
-					cfName, range, Selector.newColumnsPredicate(selectColumns),
-					Consistency.get());
-		} catch (Exception e) {
-			throw new NucleusException("Error scanning rows", e);
+		if (orderExpressions == null) {
+			return null;
 		}
 
-		Columns cols;
+		List<TopNRowCollector.Ordering> orderings = new ArrayList<TopNRowCollector.Ordering>();
 
-		for (Entry<Bytes, List<Column>> entry : results.entrySet()) {
+		for (Expression expression : orderExpressions) {
+			OrderExpression order = (OrderExpression) expression;
 
-			if (entry.getValue().size() == 0) {
-				continue;
+			if (!(order.getLeft() instanceof PrimaryExpression)) {
+				return null;
+			}
+
+			AbstractMemberMetaData member = acmd
+					.getMetaDataForMember(((PrimaryExpression) order.getLeft())
+							.getSymbol().getQualifiedName());
+
+			if (member == null || !isComparable(member.getType())) {
+				return null;
+			}
+
+			orderings.add(new TopNRowCollector.Ordering(MetaDataUtils
+					.getColumnName(acmd, member.getAbsoluteFieldNumber()),
+					member.getType(), "descending".equals(order
+							.getSortOrder())));
+		}
+
+		return orderings;
+	}
+
+	/**
+	 * Returns true if the only result of the query is count(this)
+	 * 
+	 * @return
+	 */
+	private boolean isCountResult() {
+		if (this.getGrouping() != null || this.getHaving() != null) {
+			return false;
+		}
+
+		Expression[] resultExpressions = getCompilation().getExprResult();
+
+		if (resultExpressions == null || resultExpressions.length != 1
+				|| !(resultExpressions[0] instanceof InvokeExpression)) {
+			return false;
+		}
+
+		InvokeExpression invoke = (InvokeExpression) resultExpressions[0];
+
+		if (!"count".equalsIgnoreCase(invoke.getOperation())
+				|| invoke.getArguments() == null
+				|| invoke.getArguments().size() != 1) {
+			return false;
+		}
+
+		Expression argument = (Expression) invoke.getArguments().get(0);
+
+		if (argument instanceof PrimaryExpression) {
+			return "this".equals(((PrimaryExpression) argument).getId());
+		}
+
+		if (argument instanceof VariableExpression) {
+			return "this".equals(((VariableExpression) argument).getId());
+		}
+
+		return false;
+	}
+
+	/**
+	 * Count the rows that hold an instance of the candidate class
+	 * 
+	 * @param rows
+	 * @param acmd
+	 * @param clr
+	 * @param descriminatorColumn
+	 * @return
+	 */
+	private Long countCandidates(Iterator<Columns> rows,
+			AbstractClassMetaData acmd, ClassLoaderResolver clr,
+			Bytes descriminatorColumn) {
+		long count = 0;
+
+		while (rows.hasNext()) {
+			if (isCandidate(rows.next(), acmd, clr, descriminatorColumn)) {
+				count++;
 			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns true if values of the type can be ordered
+	 * 
+	 * @param type
+	 * @return
+	 */
+	private boolean isComparable(Class<?> type) {
+		return type.isPrimitive() || Comparable.class.isAssignableFrom(type);
+	}
+
+	/**
+	 * Keep the first rows by the query ordering and load only the rows in the
+	 * query range
+	 * 
+	 * @param rows
+	 * @param orderings
+	 * @param acmd
+	 * @param clr
+	 * @param identityColumn
+	 * @param descriminatorColumn
+	 * @param projection
+	 * @param byteConverter
+	 * @return
+	 */
+	private List<?> getTopN(Iterator<Columns> rows,
+			List<TopNRowCollector.Ordering> orderings,
+			AbstractClassMetaData acmd, ClassLoaderResolver clr,
+			Bytes identityColumn, Bytes descriminatorColumn,
+			Set<Bytes> projection, ByteConverterContext byteConverter) {
 
-			cols = new Columns(entry.getKey());
+		TopNRowCollector collector = new TopNRowCollector(orderings,
+				(int) this.getRangeToExcl(), byteConverter);
 
-			for (Column currentCol : entry.getValue()) {
+		while (rows.hasNext()) {
+			Columns row = rows.next();
 
-				cols.addResult(currentCol);
+			// rows that won't be returned can't take up a place
+			if (isCandidate(row, acmd, clr, descriminatorColumn)) {
+				collector.add(row);
 			}
+		}
+
+		Set<Columns> range = new LinkedHashSet<Columns>(
+				collector.getRows((int) this.getRangeFromIncl()));
+
+		return getObjectsOfCandidateType(range, acmd, clr, subclasses,
+				identityColumn, descriminatorColumn, projection, byteConverter);
+	}
+
+	/**
+	 * Returns true if the row holds an instance of the candidate class, or of
+	 * a subclass when the query includes subclasses
+	 * 
+	 * @param row
+	 * @param acmd
+	 * @param clr
+	 * @param descriminatorColumn
+	 * @return
+	 */
+	private boolean isCandidate(Columns row, AbstractClassMetaData acmd,
+			ClassLoaderResolver clr, Bytes descriminatorColumn) {
+		return getCandidateClassName(row, acmd, clr, descriminatorColumn) != null;
+	}
+
+	/**
+	 * Get the name of the class stored in the row. Returns null if the row
+	 * does not hold an instance of the candidate class, or holds a subclass
+	 * and the query excludes subclasses
+	 * 
+	 * @param row
+	 * @param acmd
+	 * @param clr
+	 * @param descriminatorColumn
+	 * @return
+	 */
+	private String getCandidateClassName(Columns row,
+			AbstractClassMetaData acmd, ClassLoaderResolver clr,
+			Bytes descriminatorColumn) {
+
+		if (descriminatorColumn == null) {
+			return candidateClass.getName();
+		}
+
+		Bytes descriminatorValue = row.getColumnValue(descriminatorColumn);
 
-			candidateKeys.add(cols);
+		if (descriminatorValue == null) {
+			return null;
+		}
+
+		String className = org.datanucleus.metadata.MetaDataUtils
+				.getClassNameFromDiscriminatorValue(
+						descriminatorValue.toUTF8(),
+						acmd.getDiscriminatorMetaData(), ec);
+
+		if (className == null
+				|| !isCandidateClass(className, subclasses, clr)) {
+			return null;
+		}
+
+		return className;
+	}
+
+	/**
+	 * Returns true if the class is the candidate class, or a subclass of it
+	 * when the query includes subclasses
+	 * 
+	 * @param className
+	 * @param subclasses
+	 * @param clr
+	 * @return
+	 */
+	private boolean isCandidateClass(String className, boolean subclasses,
+			ClassLoaderResolver clr) {
+		if (!subclasses) {
+			return candidateClass.getName().equals(className);
 		}
 
-		return candidateKeys;
+		return ClassUtils.typesAreCompatible(candidateClass, className, clr);
 	}
 }
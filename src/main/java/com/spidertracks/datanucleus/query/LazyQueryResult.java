@@ -0,0 +1,270 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.jdo.JDOUserException;
+
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.query.QueryResult;
+
+import com.spidertracks.datanucleus.query.runtime.Columns;
+
+/**
+ * A query result that streams rows from a scan. Iterating reads the rows a
+ * page at a time and hydrates the objects in chunks, so only a single chunk of
+ * objects is held by the result at any time. Each call to iterator() performs
+ * a new scan, except the first iterator after isEmpty() which continues the
+ * scan isEmpty() started.
+ *
+ * Random access operations such as get and size require the full result, the
+ * first call reads every row and the objects are kept from then on.
+ *
+ * Once the result is closed, or the scan would need an execution context
+ * that is closed or whose transaction has ended, a JDOUserException is thrown.
+ *
+ * @author Todd Nine
+ *
+ */
+public abstract class LazyQueryResult extends AbstractList<Object> implements
+		QueryResult {
+
+	private ExecutionContext ec;
+
+	private int chunkSize;
+
+	// true if the result was created inside a transaction
+	private boolean transactional;
+
+	private boolean closed;
+
+	private List<Object> materialized;
+
+	// the iterator started by isEmpty, handed to the next iterator() call
+	private StreamingIterator started;
+
+	private Boolean empty;
+
+	/**
+	 *
+	 * @param ec
+	 *            The execution context the objects are loaded into
+	 * @param chunkSize
+	 *            The number of rows to hydrate at once
+	 */
+	public LazyQueryResult(ExecutionContext ec, int chunkSize) {
+		this.ec = ec;
+		this.chunkSize = chunkSize;
+		this.transactional = ec.getTransaction().isActive();
+	}
+
+	/**
+	 * Start a new scan over the candidate rows
+	 *
+	 * @return
+	 */
+	protected abstract Iterator<Columns> scan();
+
+	/**
+	 * Load the objects for the given rows. Rows that are not valid candidates
+	 * are not returned
+	 *
+	 * @param rows
+	 * @return
+	 */
+	protected abstract List<?> hydrate(Set<Columns> rows);
+
+	@Override
+	public Iterator<Object> iterator() {
+		assertNotClosed();
+
+		if (materialized != null) {
+			return materialized.iterator();
+		}
+
+		if (started != null) {
+			StreamingIterator iterator = started;
+			started = null;
+			return iterator;
+		}
+
+		return newIterator();
+	}
+
+	@Override
+	public Object get(int index) {
+		return materialize().get(index);
+	}
+
+	@Override
+	public int size() {
+		return materialize().size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		assertNotClosed();
+
+		if (materialized != null) {
+			return materialized.isEmpty();
+		}
+
+		// the first page is kept for the next iterator
+		if (empty == null) {
+			started = newIterator();
+			empty = !started.hasNext();
+		}
+
+		return empty;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		materialized = null;
+		started = null;
+	}
+
+	/**
+	 * Read the remaining results into memory so they can be used once the
+	 * execution context is closed
+	 */
+	@Override
+	public void disconnect() {
+		if (!closed) {
+			materialize();
+		}
+	}
+
+	/**
+	 * Start a new scan, checking the execution context can still be used
+	 * 
+	 * @return
+	 */
+	private StreamingIterator newIterator() {
+		assertConnected();
+
+		return new StreamingIterator(scan());
+	}
+
+	private void assertNotClosed() {
+		if (closed) {
+			throw new JDOUserException("The query result has been closed");
+		}
+	}
+
+	/**
+	 * Check the execution context can still be used to read the results
+	 */
+	private void assertConnected() {
+		assertNotClosed();
+
+		if (ec.isClosed()) {
+			throw new JDOUserException(
+					"The query result cannot be read once the PersistenceManager is closed");
+		}
+
+		if (transactional && !ec.getTransaction().isActive()) {
+			throw new JDOUserException(
+					"The query result cannot be read once its transaction has ended");
+		}
+	}
+
+	/**
+	 * Read the entire result into memory
+	 *
+	 * @return
+	 */
+	private List<Object> materialize() {
+		assertNotClosed();
+
+		if (materialized == null) {
+			List<Object> results = new ArrayList<Object>();
+
+			for (Iterator<Object> it = iterator(); it.hasNext();) {
+				results.add(it.next());
+			}
+
+			materialized = results;
+		}
+
+		return materialized;
+	}
+
+	/**
+	 * Hydrates the rows from the scan one chunk at a time
+	 *
+	 * @author Todd Nine
+	 *
+	 */
+	private class StreamingIterator implements Iterator<Object> {
+
+		private Iterator<Columns> rows;
+
+		private LinkedList<Object> loaded = new LinkedList<Object>();
+
+		private StreamingIterator(Iterator<Columns> rows) {
+			this.rows = rows;
+		}
+
+		@Override
+		public boolean hasNext() {
+			// rows can be discarded during hydration, keep reading until we
+			// have an object or we're out of rows
+			while (loaded.isEmpty() && rows.hasNext()) {
+
+				assertConnected();
+
+				Set<Columns> chunk = new LinkedHashSet<Columns>();
+
+				while (chunk.size() < chunkSize && rows.hasNext()) {
+					chunk.add(rows.next());
+				}
+
+				loaded.addAll(hydrate(chunk));
+			}
+
+			return !loaded.isEmpty();
+		}
+
+		@Override
+		public Object next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException("No results left");
+			}
+
+			return loaded.removeFirst();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException(
+					"Query results cannot be modified");
+		}
+
+	}
+
+}
@@ -0,0 +1,219 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.query.runtime.ColumnValueComparator;
+import com.spidertracks.datanucleus.query.runtime.Columns;
+
+/**
+ * Keeps the first N rows of a result according to the query ordering. The
+ * ordering is evaluated on the column values read with the scan, so only the
+ * surviving rows need to be loaded as objects. Memory use is bounded by N
+ * regardless of the number of rows added.
+ *
+ * @author Todd Nine
+ *
+ */
+public class TopNRowCollector {
+
+	private int limit;
+
+	private List<Ordering> orderings;
+
+	private ByteConverterContext byteContext;
+
+	private Comparator<OrderedRow> comparator;
+
+	// the top of the heap is the last row we'll keep
+	private PriorityQueue<OrderedRow> heap;
+
+	/**
+	 *
+	 * @param orderings
+	 *            The ordering of the query
+	 * @param limit
+	 *            The number of rows to keep
+	 * @param byteContext
+	 */
+	public TopNRowCollector(final List<Ordering> orderings, int limit,
+			final ByteConverterContext byteContext) {
+		this.limit = limit;
+
+		this.comparator = new Comparator<OrderedRow>() {
+
+			@Override
+			public int compare(OrderedRow first, OrderedRow second) {
+				for (int i = 0; i < orderings.size(); i++) {
+					int result = compareValues(first.values[i],
+							second.values[i]);
+
+					if (result != 0) {
+						return orderings.get(i).descending ? -result : result;
+					}
+				}
+
+				// give rows with equal values a consistent order
+				return ColumnValueComparator.BYTES.compare(
+						first.row.getRowKey(), second.row.getRowKey());
+			}
+
+		};
+
+		this.heap = new PriorityQueue<OrderedRow>(Math.max(limit, 1),
+				Collections.reverseOrder(comparator));
+
+		this.orderings = orderings;
+		this.byteContext = byteContext;
+	}
+
+	/**
+	 * Add the row. If there are already N rows that order before it the row
+	 * is discarded
+	 *
+	 * @param row
+	 */
+	public void add(Columns row) {
+		if (limit == 0) {
+			return;
+		}
+
+		Comparable<?>[] values = new Comparable<?>[orderings.size()];
+
+		for (int i = 0; i < values.length; i++) {
+			Ordering ordering = orderings.get(i);
+
+			Bytes value = row.getColumnValue(ordering.column);
+
+			if (value != null) {
+				values[i] = (Comparable<?>) byteContext.getObject(value,
+						ordering.type);
+			}
+		}
+
+		OrderedRow ordered = new OrderedRow(row, values);
+
+		if (heap.size() < limit) {
+			heap.add(ordered);
+			return;
+		}
+
+		if (comparator.compare(ordered, heap.peek()) < 0) {
+			heap.poll();
+			heap.add(ordered);
+		}
+	}
+
+	/**
+	 * Get the rows in order, skipping the first rows
+	 *
+	 * @param skip
+	 *            The number of rows to skip
+	 * @return
+	 */
+	public List<Columns> getRows(int skip) {
+		List<OrderedRow> sorted = new ArrayList<OrderedRow>(heap);
+
+		Collections.sort(sorted, comparator);
+
+		List<Columns> rows = new ArrayList<Columns>();
+
+		for (int i = skip; i < sorted.size(); i++) {
+			rows.add(sorted.get(i).row);
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Nulls are ordered before all other values
+	 *
+	 * @param first
+	 * @param second
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compareValues(Comparable first, Comparable second) {
+		if (first == null) {
+			return second == null ? 0 : -1;
+		}
+
+		if (second == null) {
+			return 1;
+		}
+
+		return first.compareTo(second);
+	}
+
+	/**
+	 * A single ordering expression of the query
+	 *
+	 * @author Todd Nine
+	 *
+	 */
+	public static class Ordering {
+		private Bytes column;
+		private Class<?> type;
+		private boolean descending;
+
+		/**
+		 *
+		 * @param column
+		 *            The column to order by
+		 * @param type
+		 *            The type of the field stored in the column
+		 * @param descending
+		 */
+		public Ordering(Bytes column, Class<?> type, boolean descending) {
+			this.column = column;
+			this.type = type;
+			this.descending = descending;
+		}
+
+		/**
+		 * @return the column
+		 */
+		public Bytes getColumn() {
+			return column;
+		}
+	}
+
+	/**
+	 * A row with its decoded ordering values
+	 *
+	 * @author Todd Nine
+	 *
+	 */
+	private static class OrderedRow {
+		private Columns row;
+		private Comparable<?>[] values;
+
+		private OrderedRow(Columns row, Comparable<?>[] values) {
+			this.row = row;
+			this.values = values;
+		}
+	}
+}
@@ -18,6 +18,9 @@ Contributors :
 package com.spidertracks.datanucleus.query.runtime;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import org.scale7.cassandra.pelops.Bytes;
 
@@ -27,34 +30,52 @@ import org.scale7.cassandra.pelops.Bytes;
  */
 public class AndOperand extends Operand {
 
+	/**
+	 * Index scans whose estimates are within this factor of each other are
+	 * scanned concurrently rather than filtered
+	 */
+	public static final int SIMILAR_RATIO = 2;
+
 	/* (non-Javadoc)
 	 * @see com.spidertracks.datanucleus.query.QueryResult#complete(com.spidertracks.datanucleus.query.QueryResult)
 	 */
 	@Override
 	public synchronized void complete(Operand child) {
-		//by default && should union the results from left and right
+		//by default && should intersect the results from left and right
+		
+		//we've already short circuited, ignore the other side
+		if(completed){
+			return;
+		}
+		
+		Set<Columns> childKeys = child.getCandidateKeys();
+		
+		//nothing can match, stop the other side and return right away
+		if(childKeys.isEmpty()){
+			candidateKeys = childKeys;
+			(child == left ? right : left).cancel();
+			signalParent();
+			return;
+		}
 		
 		//first child to call
 		if(candidateKeys == null){
-			candidateKeys = child.getCandidateKeys();
+			candidateKeys = childKeys;
 			return;
 		}
 		
 		//second child to call
-		candidateKeys.retainAll(child.getCandidateKeys());
+		candidateKeys.retainAll(childKeys);
 		
-		if(parent != null){
-			parent.complete(this);
-		}
+		signalParent();
 	
 	}
 
 	@Override
 	public void performQuery(String poolName, String cfName,
-			Bytes[] columns) {
+			Bytes[] columns, ExecutorService executor) {
 		
-		left.performQuery(poolName, cfName, columns);
-		right.performQuery(poolName, cfName, columns);
+		performChildren(poolName, cfName, columns, executor);
 		
 	}
 	
@@ -68,6 +89,67 @@ public class AndOperand extends Operand {
 		
 	}
 
+	@Override
+	public boolean matches(Columns row,
+			Map<Bytes, ColumnValueComparator> comparators) {
+		return left.matches(row, comparators)
+				&& right.matches(row, comparators);
+	}
+
+	/**
+	 * When both sides are index scans of a similar size, scan both
+	 * concurrently and intersect them. Otherwise scan the side with the
+	 * fewest estimated rows and evaluate the other side against the columns
+	 * read. An estimate that reached the probe size only means at least that
+	 * many rows match, so such sides are never intersected and the other side
+	 * is scanned whenever its estimate is below the probe size
+	 */
+	@Override
+	public Operand plan(String poolName, String cfName,
+			Map<Bytes, ColumnValueComparator> comparators) {
+
+		Operand plannedLeft = left.plan(poolName, cfName, comparators);
+		Operand plannedRight = right.plan(poolName, cfName, comparators);
 
+		long leftEstimate = plannedLeft.getEstimate(poolName, cfName);
+		long rightEstimate = plannedRight.getEstimate(poolName, cfName);
+
+		if (plannedLeft instanceof EqualityOperand
+				&& plannedRight instanceof EqualityOperand
+				&& !EqualityOperand.isSaturated(leftEstimate)
+				&& !EqualityOperand.isSaturated(rightEstimate)
+				&& Math.min(leftEstimate, rightEstimate) * SIMILAR_RATIO >= Math
+						.max(leftEstimate, rightEstimate)) {
+			setLeft(plannedLeft);
+			setRight(plannedRight);
+			return this;
+		}
+
+		if (rightEstimate < leftEstimate) {
+			return new FilterOperand(plannedRight, plannedLeft, comparators);
+		}
+
+		return new FilterOperand(plannedLeft, plannedRight, comparators);
+	}
+
+	@Override
+	protected long estimateRows(String poolName, String cfName) {
+		return Math.min(left.getEstimate(poolName, cfName),
+				right.getEstimate(poolName, cfName));
+	}
+
+	@Override
+	public void addColumns(Set<Bytes> columns) {
+		left.addColumns(columns);
+		right.addColumns(columns);
+	}
+
+	@Override
+	public void explain(StringBuilder plan, String indent) {
+		plan.append(indent).append("INTERSECT").append(describeEstimate())
+				.append("\n");
+		left.explain(plan, indent + "  ");
+		right.explain(plan, indent + "  ");
+	}
 
 }
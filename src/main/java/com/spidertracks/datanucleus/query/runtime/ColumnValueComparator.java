@@ -0,0 +1,139 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.UUID;
+
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.ColumnFamilyManager;
+
+/**
+ * Compares column values the same way Cassandra does for the validation class
+ * of the column. Used to evaluate index expressions in memory
+ *
+ * @author Todd Nine
+ *
+ */
+public class ColumnValueComparator implements Comparator<Bytes> {
+
+	/**
+	 * Compares values as unsigned bytes. Correct for bytes, ascii and utf8
+	 */
+	public static final ColumnValueComparator BYTES = new ColumnValueComparator(
+			ColumnFamilyManager.CFDEF_COMPARATOR_BYTES);
+
+	private String validationClass;
+
+	private ColumnValueComparator(String validationClass) {
+		this.validationClass = validationClass;
+	}
+
+	/**
+	 * Get the comparator for the validation class
+	 *
+	 * @param validationClass
+	 * @return
+	 */
+	public static ColumnValueComparator forValidationClass(
+			String validationClass) {
+		if (ColumnFamilyManager.CFDEF_COMPARATOR_LONG.equals(validationClass)
+				|| ColumnFamilyManager.CFDEF_COMPARATOR_INTEGER
+						.equals(validationClass)
+				|| ColumnFamilyManager.CFDEF_COMPARATOR_TIME_UUID
+						.equals(validationClass)
+				|| ColumnFamilyManager.CFDEF_COMPARATOR_LEXICAL_UUID
+						.equals(validationClass)) {
+			return new ColumnValueComparator(validationClass);
+		}
+
+		return BYTES;
+	}
+
+	@Override
+	public int compare(Bytes first, Bytes second) {
+		byte[] a = first.toByteArray();
+		byte[] b = second.toByteArray();
+
+		if (ColumnFamilyManager.CFDEF_COMPARATOR_LONG.equals(validationClass)
+				&& a.length == 8 && b.length == 8) {
+			long aVal = ByteBuffer.wrap(a).getLong();
+			long bVal = ByteBuffer.wrap(b).getLong();
+
+			return aVal < bVal ? -1 : (aVal == bVal ? 0 : 1);
+		}
+
+		if (ColumnFamilyManager.CFDEF_COMPARATOR_INTEGER
+				.equals(validationClass) && a.length > 0 && b.length > 0) {
+			return new BigInteger(a).compareTo(new BigInteger(b));
+		}
+
+		if (a.length == 16 && b.length == 16) {
+			UUID aVal = toUUID(a);
+			UUID bVal = toUUID(b);
+
+			if (ColumnFamilyManager.CFDEF_COMPARATOR_LEXICAL_UUID
+					.equals(validationClass)) {
+				return aVal.compareTo(bVal);
+			}
+
+			if (ColumnFamilyManager.CFDEF_COMPARATOR_TIME_UUID
+					.equals(validationClass)
+					&& aVal.version() == 1
+					&& bVal.version() == 1) {
+				long aTime = aVal.timestamp();
+				long bTime = bVal.timestamp();
+
+				if (aTime != bTime) {
+					return aTime < bTime ? -1 : 1;
+				}
+			}
+		}
+
+		return compareUnsigned(a, b);
+	}
+
+	/**
+	 * Lexically compare the bytes as unsigned values
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static int compareUnsigned(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+
+		for (int i = 0; i < length; i++) {
+			int diff = (a[i] & 0xff) - (b[i] & 0xff);
+
+			if (diff != 0) {
+				return diff;
+			}
+		}
+
+		return a.length - b.length;
+	}
+
+	private static UUID toUUID(byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		return new UUID(buffer.getLong(), buffer.getLong());
+	}
+
+}
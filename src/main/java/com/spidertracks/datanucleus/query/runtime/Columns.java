@@ -44,6 +44,22 @@ public class Columns {
 		return values.get(key);
 	}
 
+	/**
+	 * @return the rowKey
+	 */
+	public Bytes getRowKey() {
+		return rowKey;
+	}
+
+	/**
+	 * Get all column values that were read for this row
+	 * 
+	 * @return
+	 */
+	public Map<Bytes, Bytes> getColumns() {
+		return values;
+	}
+
 	/**
 	 * Add the result
 	 * @param column
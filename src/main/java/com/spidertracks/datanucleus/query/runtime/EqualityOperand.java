@@ -17,13 +17,14 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.query.runtime;
 
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ExecutorService;
 
-import org.apache.cassandra.thrift.Column;
 import org.apache.cassandra.thrift.IndexClause;
 import org.apache.cassandra.thrift.IndexExpression;
 import org.apache.cassandra.thrift.IndexOperator;
@@ -32,6 +33,7 @@ import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Pelops;
 import org.scale7.cassandra.pelops.Selector;
 
+import com.spidertracks.datanucleus.cache.IndexEstimates;
 import com.spidertracks.datanucleus.client.Consistency;
 
 /**
@@ -40,12 +42,29 @@ import com.spidertracks.datanucleus.client.Consistency;
  */
 public class EqualityOperand extends Operand implements CompressableOperand {
 
+	/**
+	 * The maximum number of rows read to estimate the size of the result. An
+	 * estimate of this many rows means at least this many rows match
+	 */
+	public static final int PROBE_SIZE = 100;
+
 	private IndexClause clause;
 
-	public EqualityOperand(int count) {
+	private IndexEstimates estimates;
+
+	/**
+	 * 
+	 * @param pageSize
+	 *            The number of rows to read per request
+	 * @param estimates
+	 *            The estimates of the store manager, null to probe every
+	 *            time
+	 */
+	public EqualityOperand(int pageSize, IndexEstimates estimates) {
+		this.estimates = estimates;
 		clause = new IndexClause();
 		clause.setStart_key(new byte[] {});
-		clause.setCount(count);
+		clause.setCount(pageSize);
 		candidateKeys = new LinkedHashSet<Columns>();
 	}
 
@@ -88,39 +107,26 @@ public class EqualityOperand extends Operand implements CompressableOperand {
 	}
 
 	@Override
-	public void performQuery(String poolName, String cfName, Bytes[] columns) {
-
-		try {
-			Map<Bytes, List<Column>> results = Pelops.createSelector(poolName)
-					.getIndexedColumns(cfName, clause,
-							Selector.newColumnsPredicate(columns),
-							Consistency.get());
-			Columns cols;
+	public void performQuery(String poolName, String cfName, Bytes[] columns,
+			ExecutorService executor) {
 
-			for (Entry<Bytes, List<Column>> entry : results.entrySet()) {
-
-				if (entry.getValue().size() == 0) {
-					continue;
-				}
-
-				cols = new Columns(entry.getKey());
-
-				for (Column currentCol : entry.getValue()) {
-
-					cols.addResult(currentCol);
-				}
+		// our result is no longer needed, don't bother querying
+		if (cancelled) {
+			signalParent();
+			return;
+		}
 
-				super.candidateKeys.add(cols);
-			}
+		// page through the index, stop reading if we're cancelled
+		Iterator<Columns> rows = new IndexScanIterator(poolName, cfName,
+				clause, Selector.newColumnsPredicate(columns),
+				clause.getCount());
 
-		} catch (Exception e) {
-			throw new NucleusException("Error processing secondary index", e);
+		while (!cancelled && rows.hasNext()) {
+			candidateKeys.add(rows.next());
 		}
 
 		// signal to the parent node the query completed
-		if (parent != null) {
-			parent.complete(this);
-		}
+		signalParent();
 
 	}
 
@@ -166,7 +172,8 @@ public class EqualityOperand extends Operand implements CompressableOperand {
 				orOps.push(orOp);
 			}
 
-			EqualityOperand subClass = new EqualityOperand(clause.getCount());
+			EqualityOperand subClass = new EqualityOperand(clause.getCount(),
+					estimates);
 
 			// add the existing clause
 			subClass.addAll(this.getIndexClause().getExpressions());
@@ -223,4 +230,144 @@ public class EqualityOperand extends Operand implements CompressableOperand {
 
 	}
 
+	@Override
+	public boolean matches(Columns row,
+			Map<Bytes, ColumnValueComparator> comparators) {
+
+		for (IndexExpression expression : clause.getExpressions()) {
+			Bytes columnName = new Bytes(expression.getColumn_name());
+
+			Bytes value = row.getColumnValue(columnName);
+
+			// rows without the column are never in the index
+			if (value == null) {
+				return false;
+			}
+
+			Bytes expected = new Bytes(expression.getValue());
+
+			if (expression.getOp() == IndexOperator.EQ) {
+				if (!value.equals(expected)) {
+					return false;
+				}
+
+				continue;
+			}
+
+			ColumnValueComparator comparator = comparators.get(columnName);
+
+			if (comparator == null) {
+				comparator = ColumnValueComparator.BYTES;
+			}
+
+			int compare = comparator.compare(value, expected);
+
+			switch (expression.getOp()) {
+			case GT:
+				if (compare <= 0) {
+					return false;
+				}
+				break;
+			case GTE:
+				if (compare < 0) {
+					return false;
+				}
+				break;
+			case LT:
+				if (compare >= 0) {
+					return false;
+				}
+				break;
+			case LTE:
+				if (compare > 0) {
+					return false;
+				}
+				break;
+			default:
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public Operand plan(String poolName, String cfName,
+			Map<Bytes, ColumnValueComparator> comparators) {
+		return this;
+	}
+
+	/**
+	 * Cassandra keeps no statistics on secondary indexes. Read up to
+	 * PROBE_SIZE keys of the index to estimate how many rows match. Estimates
+	 * are kept by the store manager per indexed columns and values, so the
+	 * index is probed once for each parameter value of a query
+	 */
+	@Override
+	protected long estimateRows(String poolName, String cfName) {
+		List<IndexExpression> expressions = clause.getExpressions();
+
+		if (estimates != null) {
+			long rows = estimates.get(cfName, expressions);
+
+			if (rows >= 0) {
+				return rows;
+			}
+		}
+
+		IndexClause probe = clause.deepCopy();
+		probe.setCount(PROBE_SIZE);
+
+		Bytes column = new Bytes(expressions.get(0).getColumn_name());
+
+		long rows;
+
+		try {
+			rows = Pelops
+					.createSelector(poolName)
+					.getIndexedColumns(cfName, probe,
+							Selector.newColumnsPredicate(column),
+							Consistency.get()).size();
+		} catch (Exception e) {
+			throw new NucleusException("Error processing secondary index", e);
+		}
+
+		if (estimates != null) {
+			estimates.put(cfName, expressions, rows);
+		}
+
+		return rows;
+	}
+
+	/**
+	 * True if the estimate reached the probe size, so the real number of rows
+	 * is unknown and possibly much larger
+	 * 
+	 * @param estimate
+	 * @return
+	 */
+	public static boolean isSaturated(long estimate) {
+		return estimate >= PROBE_SIZE;
+	}
+
+	@Override
+	public void addColumns(Set<Bytes> columns) {
+		for (IndexExpression expression : clause.getExpressions()) {
+			columns.add(new Bytes(expression.getColumn_name()));
+		}
+	}
+
+	@Override
+	public void explain(StringBuilder plan, String indent) {
+		plan.append(indent).append("INDEX SCAN");
+
+		for (IndexExpression expression : clause.getExpressions()) {
+			plan.append(" ")
+					.append(new Bytes(expression.getColumn_name()).toUTF8())
+					.append(" ").append(expression.getOp());
+		}
+
+		plan.append(describeEstimate()).append("\n");
+	}
+
 }
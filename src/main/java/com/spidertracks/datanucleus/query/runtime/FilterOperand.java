@@ -0,0 +1,121 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * An && where only the left side is queried. Every row returned by the left
+ * side is evaluated in memory against the filter, which is never queried
+ *
+ * @author Todd Nine
+ *
+ */
+public class FilterOperand extends Operand {
+
+	private Operand filter;
+
+	private Map<Bytes, ColumnValueComparator> comparators;
+
+	/**
+	 *
+	 * @param scan
+	 *            The operand to query
+	 * @param filter
+	 *            The operand to evaluate against the results
+	 * @param comparators
+	 */
+	public FilterOperand(Operand scan, Operand filter,
+			Map<Bytes, ColumnValueComparator> comparators) {
+		setLeft(scan);
+		this.filter = filter;
+		this.comparators = comparators;
+	}
+
+	@Override
+	public synchronized void complete(Operand child) {
+		if (completed) {
+			return;
+		}
+
+		candidateKeys = new LinkedHashSet<Columns>();
+
+		for (Columns row : child.getCandidateKeys()) {
+			if (filter.matches(row, comparators)) {
+				candidateKeys.add(row);
+			}
+		}
+
+		signalParent();
+	}
+
+	@Override
+	public void performQuery(String poolName, String cfName, Bytes[] columns,
+			ExecutorService executor) {
+		left.performQuery(poolName, cfName, columns, executor);
+	}
+
+	@Override
+	public Operand optimizeDescriminator(Bytes descriminatorColumnValue,
+			List<Bytes> possibleValues) {
+		setLeft(left.optimizeDescriminator(descriminatorColumnValue,
+				possibleValues));
+
+		return this;
+	}
+
+	@Override
+	public boolean matches(Columns row,
+			Map<Bytes, ColumnValueComparator> comparators) {
+		return left.matches(row, comparators)
+				&& filter.matches(row, comparators);
+	}
+
+	@Override
+	public Operand plan(String poolName, String cfName,
+			Map<Bytes, ColumnValueComparator> comparators) {
+		return this;
+	}
+
+	@Override
+	protected long estimateRows(String poolName, String cfName) {
+		return left.getEstimate(poolName, cfName);
+	}
+
+	@Override
+	public void addColumns(Set<Bytes> columns) {
+		left.addColumns(columns);
+		filter.addColumns(columns);
+	}
+
+	@Override
+	public void explain(StringBuilder plan, String indent) {
+		plan.append(indent).append("FILTER").append(describeEstimate())
+				.append("\n");
+		left.explain(plan, indent + "  ");
+		plan.append(indent).append("  MATCH IN MEMORY\n");
+		filter.explain(plan, indent + "    ");
+	}
+
+}
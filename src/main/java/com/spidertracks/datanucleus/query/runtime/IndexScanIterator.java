@@ -0,0 +1,70 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.IndexClause;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.datanucleus.exceptions.NucleusException;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+
+import com.spidertracks.datanucleus.client.Consistency;
+
+/**
+ * Pages through all rows matching a secondary index clause with
+ * get_indexed_slices
+ *
+ * @author Todd Nine
+ *
+ */
+public class IndexScanIterator extends ScanIterator {
+
+	private String poolName;
+	private String cfName;
+	private IndexClause clause;
+	private SlicePredicate predicate;
+
+	public IndexScanIterator(String poolName, String cfName,
+			IndexClause clause, SlicePredicate predicate, int pageSize) {
+		super(pageSize);
+		this.poolName = poolName;
+		this.cfName = cfName;
+		this.clause = clause;
+		this.predicate = predicate;
+	}
+
+	@Override
+	protected Map<Bytes, List<Column>> fetchPage(Bytes startKey, int count) {
+		IndexClause page = clause.deepCopy();
+		page.setStart_key(startKey == null ? new byte[] {} : startKey
+				.toByteArray());
+		page.setCount(count);
+
+		try {
+			return Pelops.createSelector(poolName).getIndexedColumns(cfName,
+					page, predicate, Consistency.get());
+		} catch (Exception e) {
+			throw new NucleusException("Error processing secondary index", e);
+		}
+	}
+
+}
@@ -18,10 +18,18 @@ Contributors :
 package com.spidertracks.datanucleus.query.runtime;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.datanucleus.exceptions.NucleusException;
 import org.scale7.cassandra.pelops.Bytes;
 
+import com.spidertracks.datanucleus.client.Consistency;
+
 /**
  * Class that represents an || or && operation. Each will have a left and a
  * right. This is used to Thread && queries to allow for more efficient unions
@@ -40,6 +48,21 @@ public abstract class Operand {
 
 	protected Set<Columns> candidateKeys;
 
+	/**
+	 * Set when the result of this operand is no longer required
+	 */
+	protected volatile boolean cancelled = false;
+
+	/**
+	 * Set once this operand has signaled its parent
+	 */
+	protected boolean completed = false;
+
+	/**
+	 * The estimated number of matching rows, -1 if not yet estimated
+	 */
+	private long estimate = -1;
+
 	/**
 	 * Called by the child when it has completed it's operation to signal to the
 	 * parent it is done
@@ -49,10 +72,15 @@ public abstract class Operand {
 	public abstract void complete(Operand child);
 
 	/**
-	 * Will run the query.
+	 * Will run the query. Child operands may be run on the executor
+	 * 
+	 * @param poolName
+	 * @param cfName
+	 * @param columns
+	 * @param executor
 	 */
 	public abstract void performQuery(String poolName, String cfName,
-			Bytes[] columns);
+			Bytes[] columns, ExecutorService executor);
 
 	/**
 	 * Optimize the query tree for CFS that have descriminators
@@ -63,6 +91,168 @@ public abstract class Operand {
 	public abstract Operand optimizeDescriminator(Bytes descriminatorColumnValue,
 			List<Bytes> possibleValues);
 
+	/**
+	 * Returns true if the columns read for the row satisfy this operand
+	 * 
+	 * @param row
+	 * @param comparators
+	 *            The comparator to use for each column. Columns without one
+	 *            are compared as bytes
+	 * @return
+	 */
+	public abstract boolean matches(Columns row,
+			Map<Bytes, ColumnValueComparator> comparators);
+
+	/**
+	 * Choose how this operand and its children will be executed. Returns the
+	 * operand to execute in place of this one
+	 * 
+	 * @param poolName
+	 * @param cfName
+	 * @param comparators
+	 * @return
+	 */
+	public abstract Operand plan(String poolName, String cfName,
+			Map<Bytes, ColumnValueComparator> comparators);
+
+	/**
+	 * Estimate the number of rows this operand will read
+	 * 
+	 * @param poolName
+	 * @param cfName
+	 * @return
+	 */
+	protected abstract long estimateRows(String poolName, String cfName);
+
+	/**
+	 * Add every column this operand needs to evaluate a row in memory
+	 * 
+	 * @param columns
+	 */
+	public abstract void addColumns(Set<Bytes> columns);
+
+	/**
+	 * Append a description of this operand and its children to the plan
+	 * 
+	 * @param plan
+	 * @param indent
+	 */
+	public abstract void explain(StringBuilder plan, String indent);
+
+	/**
+	 * Get the estimated number of rows this operand will read. The estimate is
+	 * only calculated once
+	 * 
+	 * @param poolName
+	 * @param cfName
+	 * @return
+	 */
+	public long getEstimate(String poolName, String cfName) {
+		if (estimate < 0) {
+			estimate = estimateRows(poolName, cfName);
+		}
+
+		return estimate;
+	}
+
+	/**
+	 * @return the estimate for the explain output
+	 */
+	protected String describeEstimate() {
+		if (estimate < 0) {
+			return "";
+		}
+
+		return " (estimated rows: " + estimate + ")";
+	}
+
+	/**
+	 * Signal this operand and all its children that their results are no
+	 * longer needed. Scans in progress stop at the next page, we never
+	 * interrupt the thread since that would break the thrift connection
+	 */
+	public void cancel() {
+		cancelled = true;
+
+		if (left != null) {
+			left.cancel();
+		}
+
+		if (right != null) {
+			right.cancel();
+		}
+	}
+
+	/**
+	 * @return true if the result of this operand is no longer needed
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Run the left child on the executor and the right child on this thread.
+	 * Returns once both have completed, or the left child has been cancelled
+	 * 
+	 * @param poolName
+	 * @param cfName
+	 * @param columns
+	 * @param executor
+	 */
+	protected void performChildren(final String poolName, final String cfName,
+			final Bytes[] columns, final ExecutorService executor) {
+
+		// consistency is per thread, run the child with the caller's level
+		final ConsistencyLevel level = Consistency.get();
+
+		Future<?> leftResult = executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				Consistency.set(level);
+				left.performQuery(poolName, cfName, columns, executor);
+			}
+
+		});
+
+		try {
+			right.performQuery(poolName, cfName, columns, executor);
+		} catch (RuntimeException e) {
+			left.cancel();
+			throw e;
+		}
+
+		// our result is already known, don't wait for the other side
+		if (left.isCancelled()) {
+			return;
+		}
+
+		try {
+			leftResult.get();
+		} catch (InterruptedException e) {
+			left.cancel();
+			Thread.currentThread().interrupt();
+			throw new NucleusException("Interrupted while running query", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+
+			throw new NucleusException("Error running query", e.getCause());
+		}
+	}
+
+	/**
+	 * Mark this operand as complete and signal the parent
+	 */
+	protected void signalParent() {
+		completed = true;
+
+		if (parent != null) {
+			parent.complete(this);
+		}
+	}
+
 	public Set<Columns> getCandidateKeys() {
 		return candidateKeys;
 	}
@@ -18,6 +18,9 @@ Contributors :
 package com.spidertracks.datanucleus.query.runtime;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import org.scale7.cassandra.pelops.Bytes;
 
@@ -32,7 +35,11 @@ public class OrOperand extends Operand {
 	 */
 	@Override
 	public synchronized void complete(Operand child) {
-		//by default && should union the results from left and right
+		//by default || should union the results from left and right
+		
+		if(completed){
+			return;
+		}
 		
 		//first child to call
 		if(candidateKeys == null){
@@ -43,17 +50,15 @@ public class OrOperand extends Operand {
 		//second child to call
 		candidateKeys.addAll(child.getCandidateKeys());
 		
-		if(parent != null){
-			parent.complete(this);
-		}
+		signalParent();
 	
 	}
 
 	@Override
-	public void performQuery(String poolName, String cfName, Bytes[] columns) {
+	public void performQuery(String poolName, String cfName, Bytes[] columns,
+			ExecutorService executor) {
 		
-		left.performQuery(poolName, cfName, columns);
-		right.performQuery(poolName, cfName, columns);
+		performChildren(poolName, cfName, columns, executor);
 		
 	}
 
@@ -67,4 +72,40 @@ public class OrOperand extends Operand {
 		
 	}
 
+	@Override
+	public boolean matches(Columns row,
+			Map<Bytes, ColumnValueComparator> comparators) {
+		return left.matches(row, comparators)
+				|| right.matches(row, comparators);
+	}
+
+	@Override
+	public Operand plan(String poolName, String cfName,
+			Map<Bytes, ColumnValueComparator> comparators) {
+		setLeft(left.plan(poolName, cfName, comparators));
+		setRight(right.plan(poolName, cfName, comparators));
+
+		return this;
+	}
+
+	@Override
+	protected long estimateRows(String poolName, String cfName) {
+		return left.getEstimate(poolName, cfName)
+				+ right.getEstimate(poolName, cfName);
+	}
+
+	@Override
+	public void addColumns(Set<Bytes> columns) {
+		left.addColumns(columns);
+		right.addColumns(columns);
+	}
+
+	@Override
+	public void explain(StringBuilder plan, String indent) {
+		plan.append(indent).append("UNION").append(describeEstimate())
+				.append("\n");
+		left.explain(plan, indent + "  ");
+		right.explain(plan, indent + "  ");
+	}
+
 }
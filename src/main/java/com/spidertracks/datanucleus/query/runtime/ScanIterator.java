@@ -0,0 +1,138 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import org.apache.cassandra.thrift.Column;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Iterates over the rows returned by a scan one page at a time. Each page is
+ * requested from the last key of the previous page, so only a single page of
+ * rows is held in memory at any time. Rows with no columns (deleted rows) are
+ * skipped.
+ *
+ * @author Todd Nine
+ *
+ */
+public abstract class ScanIterator implements Iterator<Columns> {
+
+	private int pageSize;
+
+	private Bytes lastKey;
+
+	private boolean exhausted = false;
+
+	private LinkedList<Columns> page = new LinkedList<Columns>();
+
+	/**
+	 *
+	 * @param pageSize
+	 *            The maximum number of rows to request per call
+	 */
+	protected ScanIterator(int pageSize) {
+		// we always need at least 2 rows, the start key is inclusive
+		this.pageSize = Math.max(pageSize, 2);
+	}
+
+	/**
+	 * Fetch the page of rows starting at the given key (inclusive).
+	 * Implementations must return the rows in the order they were returned
+	 * from Cassandra
+	 *
+	 * @param startKey
+	 *            The key to start from. Null for the first page
+	 * @param count
+	 *            The maximum number of rows to return
+	 * @return
+	 */
+	protected abstract Map<Bytes, List<Column>> fetchPage(Bytes startKey,
+			int count);
+
+	@Override
+	public boolean hasNext() {
+		while (page.isEmpty() && !exhausted) {
+			nextPage();
+		}
+
+		return !page.isEmpty();
+	}
+
+	@Override
+	public Columns next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException("No rows left");
+		}
+
+		return page.removeFirst();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Read the next page of rows from cassandra
+	 */
+	private void nextPage() {
+
+		Map<Bytes, List<Column>> results = fetchPage(lastKey, pageSize);
+
+		// we've run off the end
+		if (results.size() < pageSize) {
+			exhausted = true;
+		}
+
+		Columns cols;
+
+		for (Entry<Bytes, List<Column>> entry : results.entrySet()) {
+
+			// the start key is inclusive, we've already returned it
+			if (lastKey != null && lastKey.equals(entry.getKey())) {
+				continue;
+			}
+
+			lastKey = entry.getKey();
+
+			if (entry.getValue().size() == 0) {
+				continue;
+			}
+
+			cols = new Columns(entry.getKey());
+
+			for (Column currentCol : entry.getValue()) {
+				cols.addResult(currentCol);
+			}
+
+			page.add(cols);
+		}
+
+		// only the start key was returned, nothing left to read
+		if (results.size() <= 1 && page.isEmpty()) {
+			exhausted = true;
+		}
+	}
+
+}
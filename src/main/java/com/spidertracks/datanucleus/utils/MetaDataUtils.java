@@ -19,7 +19,9 @@ package com.spidertracks.datanucleus.utils;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -381,6 +383,112 @@ public class MetaDataUtils {
 		return Selector.newColumnsPredicate(fieldNames);
 	}
 
+	/**
+	 * Get the names of the columns for the fields
+	 * 
+	 * @param metaData
+	 * @param fieldNumbers
+	 * @return
+	 */
+	public static List<Bytes> getColumnNames(AbstractClassMetaData metaData,
+			int[] fieldNumbers) {
+
+		List<Bytes> names = new ArrayList<Bytes>(fieldNumbers.length);
+
+		for (int fieldNumber : fieldNumbers) {
+			names.add(getColumnName(metaData, fieldNumber));
+		}
+
+		return names;
+	}
+
+	/**
+	 * Get the field numbers in the execution context's current fetch plan for
+	 * the given class. The primary key fields are always included so a
+	 * missing row can be detected.
+	 *
+	 * @param ec
+	 * @param metaData
+	 * @return
+	 */
+	public static int[] getFetchPlanFields(ExecutionContext ec,
+			AbstractClassMetaData metaData) {
+
+		int[] fetchFields = ec.getFetchPlan().getFetchPlanForClass(metaData)
+				.getMemberNumbers();
+
+		int[] pkFields = metaData.getPKMemberPositions();
+
+		Set<Integer> fields = new LinkedHashSet<Integer>();
+
+		for (int pkField : pkFields) {
+			fields.add(pkField);
+		}
+
+		for (int fetchField : fetchFields) {
+			fields.add(fetchField);
+		}
+
+		int[] result = new int[fields.size()];
+		int index = 0;
+
+		for (Integer field : fields) {
+			result[index++] = field;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Get the column names of all fields in the execution context's current
+	 * fetch plan for the given class
+	 * 
+	 * @param ec
+	 * @param metaData
+	 * @return
+	 */
+	public static List<Bytes> getFetchPlanColumns(ExecutionContext ec,
+			AbstractClassMetaData metaData) {
+		return getColumnNames(metaData, getFetchPlanFields(ec, metaData));
+	}
+
+	/**
+	 * Get the column names of all fields in the execution context's current
+	 * fetch plan for the given class and every subclass stored in the same
+	 * column family
+	 * 
+	 * @param ec
+	 * @param metaData
+	 * @param clr
+	 * @return
+	 */
+	public static Set<Bytes> getFetchPlanColumns(ExecutionContext ec,
+			AbstractClassMetaData metaData, ClassLoaderResolver clr) {
+
+		Set<Bytes> columns = new LinkedHashSet<Bytes>(getFetchPlanColumns(ec,
+				metaData));
+
+		String[] subclassNames = ec.getMetaDataManager()
+				.getSubclassesForClass(metaData.getFullClassName(), true);
+
+		if (subclassNames == null) {
+			return columns;
+		}
+
+		String columnFamily = getColumnFamily(metaData);
+
+		for (String subclassName : subclassNames) {
+			AbstractClassMetaData subclassMetaData = ec.getMetaDataManager()
+					.getMetaDataForClass(subclassName, clr);
+
+			if (columnFamily.equals(getColumnFamily(subclassMetaData))) {
+				columns.addAll(getFetchPlanColumns(ec, subclassMetaData));
+			}
+		}
+
+		return columns;
+	}
+
 	/**
 	 * Create a slice predicate that will retreive the discriminator column if
 	 * one doesn't exist, null is returned
@@ -404,5 +512,41 @@ public class MetaDataUtils {
 		return Selector.newColumnsPredicate(columnName);
 	}
 
+	/**
+	 * Returns true if the class has any field whose values are deleted when an
+	 * instance is deleted
+	 * 
+	 * @param metaData
+	 * @return
+	 */
+	public static boolean hasDependentFields(AbstractClassMetaData metaData) {
+
+		for (int field : metaData.getAllMemberPositions()) {
+			AbstractMemberMetaData memberMetaData = metaData
+					.getMetaDataForManagedMemberAtAbsolutePosition(field);
+
+			if (memberMetaData.isDependent()) {
+				return true;
+			}
+
+			if (memberMetaData.hasCollection()
+					&& memberMetaData.getCollection().isDependentElement()) {
+				return true;
+			}
+
+			if (memberMetaData.hasArray()
+					&& memberMetaData.getArray().isDependentElement()) {
+				return true;
+			}
+
+			if (memberMetaData.hasMap()
+					&& (memberMetaData.getMap().isDependentKey() || memberMetaData
+							.getMap().isDependentValue())) {
+				return true;
+			}
+		}
+
+		return false;
+	}
 
 }
@@ -0,0 +1,112 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.basic;
+
+import static org.junit.Assert.assertEquals;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Transaction;
+
+import org.junit.Test;
+
+import com.eaio.uuid.UUID;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+
+/**
+ * Updates only write the fields that changed
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class DirtyFieldTest extends CassandraTest {
+
+	/**
+	 * Two managers update different fields of the same object. Neither
+	 * update may overwrite the field changed by the other
+	 */
+	@Test
+	public void testOnlyDirtyFieldsWritten() {
+		PrimitiveObject object = new PrimitiveObject();
+		object.setTestString("original");
+		object.setTestInt(1);
+		object.setTestLong(1);
+
+		pmf.getPersistenceManager().makePersistent(object);
+
+		UUID id = object.getId();
+
+		PersistenceManager first = pmf.getPersistenceManager();
+		Transaction firstTx = first.currentTransaction();
+		firstTx.begin();
+
+		PrimitiveObject firstCopy = first.getObjectById(PrimitiveObject.class,
+				id);
+
+		// load the fields before the other manager changes them
+		assertEquals("original", firstCopy.getTestString());
+		assertEquals(1, firstCopy.getTestInt());
+
+		PersistenceManager second = pmf.getPersistenceManager();
+		Transaction secondTx = second.currentTransaction();
+		secondTx.begin();
+
+		second.getObjectById(PrimitiveObject.class, id).setTestInt(2);
+
+		secondTx.commit();
+
+		firstCopy.setTestString("updated");
+
+		firstTx.commit();
+
+		PrimitiveObject loaded = pmf.getPersistenceManager().getObjectById(
+				PrimitiveObject.class, id);
+
+		assertEquals("updated", loaded.getTestString());
+		assertEquals(2, loaded.getTestInt());
+		assertEquals(1, loaded.getTestLong());
+	}
+
+	/**
+	 * Setting a field to null removes only that column
+	 */
+	@Test
+	public void testNullField() {
+		PrimitiveObject object = new PrimitiveObject();
+		object.setTestString("original");
+		object.setTestInt(1);
+
+		pmf.getPersistenceManager().makePersistent(object);
+
+		UUID id = object.getId();
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		pm.getObjectById(PrimitiveObject.class, id).setTestString(null);
+
+		tx.commit();
+
+		PrimitiveObject loaded = pmf.getPersistenceManager().getObjectById(
+				PrimitiveObject.class, id);
+
+		assertEquals(null, loaded.getTestString());
+		assertEquals(1, loaded.getTestInt());
+	}
+}
@@ -0,0 +1,170 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.basic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+
+import org.junit.Test;
+
+import com.eaio.uuid.UUID;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.InvitationToken;
+
+/**
+ * Inserts objects whose key is already stored
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class InsertTest extends CassandraTest {
+
+	/**
+	 * A new object with the key of a row deleted in the same context must not
+	 * pick up the columns of the fields it leaves null
+	 */
+	@Test
+	public void testInsertAfterDelete() {
+		String key = new UUID().toString();
+
+		InvitationToken original = new InvitationToken();
+		original.setToken(key);
+		original.setTestString("original");
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+		pm.makePersistent(original);
+		tx.commit();
+
+		tx.begin();
+		pm.deletePersistent(original);
+		tx.commit();
+
+		InvitationToken replacement = new InvitationToken();
+		replacement.setToken(key);
+
+		tx.begin();
+		pm.makePersistent(replacement);
+		tx.commit();
+		pm.close();
+
+		InvitationToken loaded = pmf.getPersistenceManager().getObjectById(
+				InvitationToken.class, key);
+
+		assertEquals(key, loaded.getToken());
+		assertNull(loaded.getTestString());
+	}
+
+	/**
+	 * By default a new object with the key of a live row writes no deletes,
+	 * so the columns of the fields it leaves null are kept
+	 */
+	@Test
+	public void testInsertOverExistingRow() {
+		String key = insertTwice(pmf);
+
+		InvitationToken loaded = pmf.getPersistenceManager().getObjectById(
+				InvitationToken.class, key);
+
+		assertEquals(key, loaded.getToken());
+		assertEquals("original", loaded.getTestString());
+	}
+
+	/**
+	 * With insert overwrite a new object with the key of a live row deletes
+	 * the columns of the fields it leaves null
+	 */
+	@Test
+	public void testInsertOverwrite() {
+		PersistenceManagerFactory overwritePmf = JDOHelper
+				.getPersistenceManagerFactory("InsertOverwrite");
+
+		String key = insertTwice(overwritePmf);
+
+		InvitationToken loaded = pmf.getPersistenceManager().getObjectById(
+				InvitationToken.class, key);
+
+		assertEquals(key, loaded.getToken());
+		assertNull(loaded.getTestString());
+	}
+
+	/**
+	 * Every field of the new object is written over the stored row
+	 */
+	@Test
+	public void testInsertOverwritesFields() {
+		String key = new UUID().toString();
+
+		InvitationToken original = new InvitationToken();
+		original.setToken(key);
+		original.setTestString("original");
+
+		pmf.getPersistenceManager().makePersistent(original);
+
+		InvitationToken replacement = new InvitationToken();
+		replacement.setToken(key);
+		replacement.setTestString("replacement");
+
+		pmf.getPersistenceManager().makePersistent(replacement);
+
+		InvitationToken loaded = pmf.getPersistenceManager().getObjectById(
+				InvitationToken.class, key);
+
+		assertEquals("replacement", loaded.getTestString());
+	}
+
+	/**
+	 * Persist a token with a string, then a new token with the same key and
+	 * no string, each with its own persistence manager
+	 * 
+	 * @param factory
+	 * @return The key
+	 */
+	private String insertTwice(PersistenceManagerFactory factory) {
+		String key = new UUID().toString();
+
+		InvitationToken original = new InvitationToken();
+		original.setToken(key);
+		original.setTestString("original");
+
+		PersistenceManager pm = factory.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+		pm.makePersistent(original);
+		tx.commit();
+		pm.close();
+
+		InvitationToken replacement = new InvitationToken();
+		replacement.setToken(key);
+
+		pm = factory.getPersistenceManager();
+		tx = pm.currentTransaction();
+		tx.begin();
+		pm.makePersistent(replacement);
+		tx.commit();
+		pm.close();
+
+		return key;
+	}
+}
@@ -19,16 +19,32 @@ package com.spidertracks.datanucleus.basic.inheritance;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.jdo.JDOException;
+import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
 import javax.jdo.Query;
 import javax.jdo.Transaction;
 
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+import org.datanucleus.jdo.JDOPersistenceManagerFactory;
 import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
 
+import com.eaio.uuid.UUID;
+import com.spidertracks.datanucleus.CassandraStoreManager;
 import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.cache.ClassNameCache;
 import com.spidertracks.datanucleus.basic.inheritance.caseone.Child;
 import com.spidertracks.datanucleus.basic.inheritance.caseone.GrandChildOne;
 import com.spidertracks.datanucleus.basic.inheritance.caseone.GrandChildTwo;
@@ -288,5 +304,107 @@ public class InheritanceTest extends CassandraTest {
 
 	}
 
+	/**
+	 * Objects requested as a superclass are found in the column families of
+	 * their subclasses, which are read concurrently
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentSubclassLookup() throws Exception {
+
+		final List<ChildTwo> stored = new ArrayList<ChildTwo>();
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		for (int i = 0; i < 10; i++) {
+			ChildTwo child = i % 2 == 0 ? new GrandChildTwoOne()
+					: new GrandChildTwoTwo();
+			child.setChildField("cf-lookup-" + i);
+
+			pm.makePersistent(child);
+
+			stored.add(child);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+		for (int i = 0; i < 4; i++) {
+			results.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					PersistenceManager reader = pmf.getPersistenceManager();
+
+					for (ChildTwo child : stored) {
+						ChildTwo returned = reader.getObjectById(
+								ChildTwo.class, child.getId());
+
+						assertEquals(child.getClass(), returned.getClass());
+						assertEquals(child.getChildField(), returned
+								.getChildField());
+					}
+
+					reader.close();
+
+					return null;
+				}
+			}));
+		}
+
+		for (Future<Void> result : results) {
+			result.get();
+		}
+
+		executor.shutdown();
+
+		// a row that isn't in any column family
+		try {
+			pmf.getPersistenceManager().getObjectById(ChildTwo.class,
+					new UUID());
+			fail("No object should be found");
+		} catch (JDOException e) {
+			assertTrue(e instanceof JDOObjectNotFoundException
+					|| e.getCause() instanceof NucleusObjectNotFoundException);
+		}
+	}
+
+	/**
+	 * The class of a row is remembered once found, and forgotten when the
+	 * object is deleted
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testClassCache() throws Exception {
+		CassandraStoreManager manager = (CassandraStoreManager) ((JDOPersistenceManagerFactory) pmf)
+				.getOMFContext().getStoreManager();
+
+		ClassNameCache cache = manager.getClassNameCache();
+
+		GrandChildTwoOne child = new GrandChildTwoOne();
+		child.setChildField("cf-cache");
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.makePersistent(child);
+
+		Bytes key = manager.getByteConverterContext().getRowKeyForId(
+				pm.getObjectId(child));
+
+		pm = pmf.getPersistenceManager();
+
+		ChildTwo returned = pm.getObjectById(ChildTwo.class, child.getId());
+
+		assertEquals(GrandChildTwoOne.class, returned.getClass());
+
+		assertEquals(GrandChildTwoOne.class.getName(), cache.get(
+				ChildTwo.class.getName(), key));
+
+		pm.deletePersistent(returned);
+
+		assertNull(cache.get(ChildTwo.class.getName(), key));
+	}
 
 }
@@ -0,0 +1,133 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jdo.PersistenceManager;
+
+import org.datanucleus.jdo.JDOPersistenceManagerFactory;
+import org.datanucleus.util.NucleusLogger;
+import org.junit.Test;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+import com.spidertracks.datanucleus.collection.model.Deck;
+import com.spidertracks.datanucleus.collection.model.Pack;
+
+/**
+ * Loads objects with the bulk loader and reads them back through a
+ * PersistenceManager
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class BulkLoaderTest extends CassandraTest {
+
+	@Test
+	public void testLoad() throws Exception {
+		CassandraStoreManager manager = (CassandraStoreManager) ((JDOPersistenceManagerFactory) pmf)
+				.getOMFContext().getStoreManager();
+
+		List<PrimitiveObject> objects = new ArrayList<PrimitiveObject>();
+
+		for (int i = 0; i < 1000; i++) {
+			PrimitiveObject object = new PrimitiveObject();
+			object.setTestInt(i);
+			object.setTestString("bulk");
+
+			objects.add(object);
+		}
+
+		final List<BatchResult> batches = new ArrayList<BatchResult>();
+
+		BulkLoader loader = new BulkLoader(manager, 4, 100);
+
+		BulkLoadResult result = loader.load(objects.iterator(),
+				new BulkLoadListener() {
+
+					@Override
+					public void batchComplete(BatchResult batch) {
+						batches.add(batch);
+					}
+				});
+
+		loader.close();
+
+		NucleusLogger.GENERAL.info(result);
+
+		assertEquals(1000, result.getObjects());
+		assertEquals(0, result.getFailedObjects());
+		assertEquals(10, result.getBatches());
+		assertEquals(10, batches.size());
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		for (PrimitiveObject object : objects) {
+			assertNotNull(object.getId());
+
+			PrimitiveObject stored = pm.getObjectById(PrimitiveObject.class,
+					object.getId());
+
+			assertEquals(object.getTestInt(), stored.getTestInt());
+			assertEquals("bulk", stored.getTestString());
+		}
+
+		pm.close();
+	}
+
+	/**
+	 * A null element of a collection is skipped rather than failing the batch
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testNullElement() throws Exception {
+		CassandraStoreManager manager = (CassandraStoreManager) ((JDOPersistenceManagerFactory) pmf)
+				.getOMFContext().getStoreManager();
+
+		Pack pack = new Pack();
+
+		Deck deck = new Deck();
+		deck.addPack(pack);
+		deck.addPack(null);
+
+		BulkLoader loader = new BulkLoader(manager, 1, 10);
+
+		BulkLoadResult result = loader.load(Arrays.<Object> asList(pack, deck));
+
+		loader.close();
+
+		assertEquals(2, result.getObjects());
+		assertEquals(0, result.getFailedObjects());
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		Deck stored = pm.getObjectById(Deck.class, deck.getId());
+
+		assertEquals(1, stored.getPacks().size());
+
+		pm.close();
+	}
+}
@@ -0,0 +1,87 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * @author Todd Nine
+ * 
+ */
+public class ClassNameCacheTest {
+
+	private static final String PARENT = "Parent";
+	private static final String CHILD = "Child";
+
+	@Test
+	public void testHitAndMiss() {
+		ClassNameCache cache = new ClassNameCache(10, 60000);
+
+		Bytes key = Bytes.fromUTF8("row1");
+
+		assertNull(cache.get(PARENT, key));
+
+		cache.put(PARENT, key, CHILD);
+
+		assertEquals(CHILD, cache.get(PARENT, key));
+
+		// the same row requested as another class is a miss
+		assertNull(cache.get(CHILD, key));
+
+		cache.remove(PARENT, key);
+
+		assertNull(cache.get(PARENT, key));
+	}
+
+	@Test
+	public void testEviction() {
+		ClassNameCache cache = new ClassNameCache(2, 60000);
+
+		Bytes first = Bytes.fromUTF8("row0");
+
+		cache.put(PARENT, first, CHILD);
+		cache.put(PARENT, Bytes.fromUTF8("row1"), CHILD);
+
+		// the first row is now the most recently used
+		cache.get(PARENT, first);
+
+		cache.put(PARENT, Bytes.fromUTF8("row2"), CHILD);
+
+		assertEquals(2, cache.size());
+		assertEquals(CHILD, cache.get(PARENT, first));
+		assertNull(cache.get(PARENT, Bytes.fromUTF8("row1")));
+	}
+
+	@Test
+	public void testExpiry() throws InterruptedException {
+		ClassNameCache cache = new ClassNameCache(10, 10);
+
+		Bytes key = Bytes.fromUTF8("row1");
+
+		cache.put(PARENT, key, CHILD);
+
+		Thread.sleep(50);
+
+		assertNull(cache.get(PARENT, key));
+		assertEquals(0, cache.size());
+	}
+}
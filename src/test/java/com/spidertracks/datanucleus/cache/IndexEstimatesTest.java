@@ -0,0 +1,91 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.cassandra.thrift.IndexExpression;
+import org.apache.cassandra.thrift.IndexOperator;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Selector;
+
+/**
+ * @author Todd Nine
+ * 
+ */
+public class IndexEstimatesTest {
+
+	@Test
+	public void testKeptPerValue() {
+		IndexEstimates estimates = new IndexEstimates(10, 60000);
+
+		estimates.put("cf", clause("a", IndexOperator.EQ, "first"), 42);
+
+		assertEquals(42, estimates.get("cf",
+				clause("a", IndexOperator.EQ, "first")));
+
+		// a skewed index may match many more rows for another value
+		assertEquals(-1, estimates.get("cf",
+				clause("a", IndexOperator.EQ, "second")));
+
+		// other operators, columns and column families don't
+		assertEquals(-1, estimates.get("cf",
+				clause("a", IndexOperator.GT, "first")));
+		assertEquals(-1, estimates.get("cf",
+				clause("b", IndexOperator.EQ, "first")));
+		assertEquals(-1, estimates.get("other",
+				clause("a", IndexOperator.EQ, "first")));
+	}
+
+	@Test
+	public void testEviction() {
+		IndexEstimates estimates = new IndexEstimates(2, 60000);
+
+		estimates.put("cf", clause("a", IndexOperator.EQ, "value"), 1);
+		estimates.put("cf", clause("b", IndexOperator.EQ, "value"), 2);
+		estimates.put("cf", clause("c", IndexOperator.EQ, "value"), 3);
+
+		assertEquals(2, estimates.size());
+		assertEquals(-1, estimates.get("cf",
+				clause("a", IndexOperator.EQ, "value")));
+	}
+
+	@Test
+	public void testExpiry() throws InterruptedException {
+		IndexEstimates estimates = new IndexEstimates(10, 10);
+
+		estimates.put("cf", clause("a", IndexOperator.EQ, "value"), 1);
+
+		Thread.sleep(50);
+
+		assertEquals(-1, estimates.get("cf",
+				clause("a", IndexOperator.EQ, "value")));
+		assertEquals(0, estimates.size());
+	}
+
+	private static List<IndexExpression> clause(String column,
+			IndexOperator op, String value) {
+		return Arrays.asList(Selector.newIndexExpression(
+				Bytes.fromUTF8(column), op, Bytes.fromUTF8(value)));
+	}
+
+}
@@ -0,0 +1,173 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.cassandra.thrift.Column;
+import org.datanucleus.store.ExecutionContext;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * @author Todd Nine
+ * 
+ */
+public class PrefetchedRowsTest {
+
+	private static final String CF = "TestCF";
+
+	private static final Bytes NAME = Bytes.fromUTF8("name");
+
+	private static final Bytes KEY = Bytes.fromUTF8("row1");
+
+	@Test
+	public void testTake() {
+		PrefetchedRows rows = new PrefetchedRows();
+
+		ExecutionContext ec = newContext();
+
+		rows.put(ec, CF, KEY, Arrays.asList(NAME), columns(NAME, "todd"));
+
+		Map<Bytes, Bytes> values = rows.take(ec, CF, KEY, Arrays.asList(NAME));
+
+		assertEquals("todd", values.get(NAME).toUTF8());
+
+		// only taken once
+		assertNull(rows.take(ec, CF, KEY, Arrays.asList(NAME)));
+	}
+
+	@Test
+	public void testOtherContext() {
+		PrefetchedRows rows = new PrefetchedRows();
+
+		ExecutionContext ec = newContext();
+
+		rows.put(ec, CF, KEY, Arrays.asList(NAME), columns(NAME, "todd"));
+
+		assertNull(rows.take(newContext(), CF, KEY, Arrays.asList(NAME)));
+
+		// the row is still held for the context that read it
+		assertNotNull(rows.take(ec, CF, KEY, Arrays.asList(NAME)));
+	}
+
+	@Test
+	public void testInvalidate() {
+		PrefetchedRows rows = new PrefetchedRows();
+
+		ExecutionContext ec = newContext();
+
+		rows.put(ec, CF, KEY, Arrays.asList(NAME), columns(NAME, "todd"));
+
+		// writes of other rows and other contexts leave the row
+		rows.invalidate(ec, CF, Bytes.fromUTF8("row2"));
+		rows.invalidate(newContext(), CF, KEY);
+
+		assertNotNull(rows.take(ec, CF, KEY, Arrays.asList(NAME)));
+
+		rows.put(ec, CF, KEY, Arrays.asList(NAME), columns(NAME, "todd"));
+
+		rows.invalidate(ec, CF, KEY);
+
+		assertNull(rows.take(ec, CF, KEY, Arrays.asList(NAME)));
+	}
+
+	@Test
+	public void testOtherThread() throws Exception {
+		final PrefetchedRows rows = new PrefetchedRows();
+
+		final ExecutionContext ec = newContext();
+
+		rows.put(ec, CF, KEY, Arrays.asList(NAME), columns(NAME, "todd"));
+
+		Callable<Map<Bytes, Bytes>> take = new Callable<Map<Bytes, Bytes>>() {
+
+			@Override
+			public Map<Bytes, Bytes> call() throws Exception {
+				return rows.take(ec, CF, KEY, Arrays.asList(NAME));
+			}
+
+		};
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try {
+			assertNull(executor.submit(take).get());
+		} finally {
+			executor.shutdown();
+		}
+
+		assertNotNull(rows.take(ec, CF, KEY, Arrays.asList(NAME)));
+	}
+
+	/**
+	 * Contexts are only compared by identity
+	 * 
+	 * @return
+	 */
+	private static ExecutionContext newContext() {
+		return (ExecutionContext) Proxy.newProxyInstance(
+				PrefetchedRowsTest.class.getClassLoader(),
+				new Class<?>[] { ExecutionContext.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if ("hashCode".equals(method.getName())) {
+							return System.identityHashCode(proxy);
+						}
+
+						if ("equals".equals(method.getName())) {
+							return proxy == args[0];
+						}
+
+						throw new UnsupportedOperationException(method
+								.getName());
+					}
+
+				});
+	}
+
+	private static List<Column> columns(Bytes name, String value) {
+		List<Column> columns = new ArrayList<Column>();
+
+		Column column = new Column();
+		column.setName(name.toByteArray());
+		column.setValue(Bytes.fromUTF8(value).toByteArray());
+		column.setTimestamp(0);
+
+		columns.add(column);
+
+		return columns;
+	}
+
+}
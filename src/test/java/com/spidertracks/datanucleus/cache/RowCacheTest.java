@@ -0,0 +1,227 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.Column;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * @author Todd Nine
+ * 
+ */
+public class RowCacheTest {
+
+	private static final String CF = "TestCF";
+
+	private static final Bytes NAME = Bytes.fromUTF8("name");
+	private static final Bytes EMAIL = Bytes.fromUTF8("email");
+
+	@Test
+	public void testHitAndMiss() {
+		RowCache cache = new RowCache(10, 1024 * 1024, 60000);
+
+		Bytes key = Bytes.fromUTF8("row1");
+
+		assertNull(cache.get(CF, key, Arrays.asList(NAME, EMAIL)));
+
+		// email has no value but is known to be empty
+		cache.put(CF, key, Arrays.asList(NAME, EMAIL),
+				columns(NAME, "todd"), cache.getStamp());
+
+		Map<Bytes, Bytes> values = cache.get(CF, key,
+				Arrays.asList(NAME, EMAIL));
+
+		assertEquals(1, values.size());
+		assertEquals("todd", values.get(NAME).toUTF8());
+
+		// reading the value must not change the cached copy
+		values.get(NAME).getBytes().position(2);
+
+		assertEquals("todd", cache.get(CF, key, Arrays.asList(NAME))
+				.get(NAME).toUTF8());
+
+		// a column we never read is a miss
+		assertNull(cache.get(CF, key, Arrays.asList(Bytes.fromUTF8("other"))));
+
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testInvalidate() {
+		RowCache cache = new RowCache(10, 1024 * 1024, 60000);
+
+		Bytes key = Bytes.fromUTF8("row1");
+
+		long stamp = cache.getStamp();
+
+		cache.put(CF, key, Arrays.asList(NAME), columns(NAME, "todd"), stamp);
+
+		cache.invalidate(CF, key);
+
+		assertNull(cache.get(CF, key, Arrays.asList(NAME)));
+
+		// read before the invalidation, must not be cached
+		cache.put(CF, key, Arrays.asList(NAME), columns(NAME, "todd"), stamp);
+
+		assertNull(cache.get(CF, key, Arrays.asList(NAME)));
+		assertEquals(0, cache.getRows());
+	}
+
+	@Test
+	public void testInvalidateOtherRow() {
+		RowCache cache = new RowCache(10, 1024 * 1024, 60000);
+
+		Bytes key = Bytes.fromUTF8("row1");
+
+		long stamp = cache.getStamp();
+
+		// a write to another row doesn't stop this read being cached
+		cache.invalidate(CF, Bytes.fromUTF8("row2"));
+		cache.invalidate("OtherCF", key);
+
+		cache.put(CF, key, Arrays.asList(NAME), columns(NAME, "todd"), stamp);
+
+		assertEquals("todd", cache.get(CF, key, Arrays.asList(NAME)).get(NAME)
+				.toUTF8());
+	}
+
+	@Test
+	public void testReadAfterInvalidate() {
+		RowCache cache = new RowCache(10, 1024 * 1024, 60000);
+
+		Bytes key = Bytes.fromUTF8("row1");
+
+		cache.invalidate(CF, key);
+
+		// read after the write, can be cached
+		cache.put(CF, key, Arrays.asList(NAME), columns(NAME, "todd"),
+				cache.getStamp());
+
+		assertEquals(1, cache.getRows());
+	}
+
+	@Test
+	public void testClear() {
+		RowCache cache = new RowCache(10, 1024 * 1024, 60000);
+
+		Bytes key = Bytes.fromUTF8("row1");
+
+		long stamp = cache.getStamp();
+
+		cache.clear();
+
+		// read before every row was invalidated, must not be cached
+		cache.put(CF, key, Arrays.asList(NAME), columns(NAME, "todd"), stamp);
+
+		assertEquals(0, cache.getRows());
+
+		cache.put(CF, key, Arrays.asList(NAME), columns(NAME, "todd"),
+				cache.getStamp());
+
+		assertEquals(1, cache.getRows());
+	}
+
+	@Test
+	public void testEviction() {
+		RowCache cache = new RowCache(2, 1024 * 1024, 60000);
+
+		for (int i = 0; i < 3; i++) {
+			cache.put(CF, Bytes.fromUTF8("row" + i), Arrays.asList(NAME),
+					columns(NAME, "todd"), cache.getStamp());
+		}
+
+		assertEquals(2, cache.getRows());
+		assertEquals(1, cache.getEvictions());
+
+		// the least recently used row was removed
+		assertNull(cache.get(CF, Bytes.fromUTF8("row0"), Arrays.asList(NAME)));
+	}
+
+	/**
+	 * Large caches are split into segments that behave as one cache
+	 */
+	@Test
+	public void testSegments() {
+		RowCache cache = new RowCache(10000, 64 * 1024 * 1024, 60000);
+
+		assertEquals(16, cache.getSegments());
+
+		for (int i = 0; i < 1000; i++) {
+			cache.put(CF, Bytes.fromUTF8("row" + i), Arrays.asList(NAME),
+					columns(NAME, "todd"), cache.getStamp());
+		}
+
+		assertEquals(1000, cache.getRows());
+
+		cache.invalidate(CF, Bytes.fromUTF8("row0"));
+
+		assertNull(cache.get(CF, Bytes.fromUTF8("row0"), Arrays.asList(NAME)));
+
+		for (int i = 1; i < 1000; i++) {
+			assertNotNull(cache.get(CF, Bytes.fromUTF8("row" + i),
+					Arrays.asList(NAME)));
+		}
+
+		assertEquals(999, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		cache.clear();
+
+		assertEquals(0, cache.getRows());
+		assertEquals(0, cache.getBytes());
+	}
+
+	@Test
+	public void testExpiry() throws InterruptedException {
+		RowCache cache = new RowCache(10, 1024 * 1024, 10);
+
+		Bytes key = Bytes.fromUTF8("row1");
+
+		cache.put(CF, key, Arrays.asList(NAME), columns(NAME, "todd"),
+				cache.getStamp());
+
+		Thread.sleep(50);
+
+		assertNull(cache.get(CF, key, Arrays.asList(NAME)));
+		assertEquals(0, cache.getBytes());
+	}
+
+	private static List<Column> columns(Bytes name, String value) {
+		List<Column> columns = new ArrayList<Column>();
+
+		Column column = new Column();
+		column.setName(name.toByteArray());
+		column.setValue(Bytes.fromUTF8(value).toByteArray());
+		column.setTimestamp(0);
+
+		columns.add(column);
+
+		return columns;
+	}
+}
@@ -0,0 +1,195 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.datanucleus.jdo.JDOPersistenceManagerFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
+
+/**
+ * Routes rows to the node that owns their token
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class TokenRouterTest extends CassandraTest {
+
+	private static final Bytes KEY = Bytes.fromUTF8("routed");
+
+	private CassandraStoreManager manager;
+
+	private BigInteger token;
+
+	@Before
+	public void setupManager() {
+		manager = (CassandraStoreManager) ((JDOPersistenceManagerFactory) pmf)
+				.getOMFContext().getStoreManager();
+
+		token = TokenRouter.getToken(KEY);
+	}
+
+	@Test
+	public void testEmptyRing() {
+		TokenRouter router = new TokenRouter("default",
+				new HashMap<BigInteger, String>());
+
+		assertEquals("default", router.getPoolName(KEY));
+	}
+
+	@Test
+	public void testRangeEndingAtToken() {
+		Map<BigInteger, String> ring = new HashMap<BigInteger, String>();
+		ring.put(token.subtract(BigInteger.ONE), "before");
+		ring.put(token, "owner");
+		ring.put(token.add(BigInteger.ONE), "after");
+
+		// ranges include their end token
+		assertEquals("owner", new TokenRouter("default", ring)
+				.getPoolName(KEY));
+	}
+
+	@Test
+	public void testRangeEndingAfterToken() {
+		Map<BigInteger, String> ring = new HashMap<BigInteger, String>();
+		ring.put(token.subtract(BigInteger.ONE), "before");
+		ring.put(token.add(BigInteger.TEN), "owner");
+
+		assertEquals("owner", new TokenRouter("default", ring)
+				.getPoolName(KEY));
+	}
+
+	@Test
+	public void testWrapAround() {
+		Map<BigInteger, String> ring = new HashMap<BigInteger, String>();
+		ring.put(token.subtract(BigInteger.TEN), "first");
+		ring.put(token.subtract(BigInteger.ONE), "last");
+
+		// the token is after the last range so it belongs to the first
+		assertEquals("first", new TokenRouter("default", ring)
+				.getPoolName(KEY));
+	}
+
+	/**
+	 * A batch routed to a node without a pool is retried on the default pool
+	 */
+	@Test
+	public void testFallbackToDefaultPool() {
+		// creates the column family
+		pmf.getPersistenceManager().makePersistent(new PrimitiveObject());
+
+		Map<BigInteger, String> ring = new HashMap<BigInteger, String>();
+		ring.put(token, manager.getPoolName() + ":missing");
+
+		TokenRouter router = new TokenRouter(manager.getPoolName(), ring);
+
+		BatchMutator mutator = new BatchMutator(manager.getPoolName(), router,
+				System.nanoTime() / 1000, manager.getBatchLimits());
+
+		mutator.writeColumn("PrimitiveObject", KEY, mutator.newColumn(
+				Bytes.fromUTF8("name"), "value"));
+
+		mutator.execute(ConsistencyLevel.QUORUM);
+
+		Selector selector = Pelops.createSelector(manager.getPoolName());
+
+		List<Column> columns = selector.getColumnsFromRow("PrimitiveObject",
+				KEY, Selector.newColumnsPredicate(Bytes.fromUTF8("name")),
+				ConsistencyLevel.QUORUM);
+
+		assertEquals(1, columns.size());
+		assertEquals("value", Bytes.fromByteBuffer(columns.get(0).value)
+				.toUTF8());
+
+		// the node is skipped until the ring is read again
+		assertEquals(manager.getPoolName(), router.getPoolName(KEY));
+	}
+
+	/**
+	 * A read routed to a node without a pool is retried on the default pool
+	 */
+	@Test
+	public void testReadFallbackToDefaultPool() {
+		// creates the column family
+		pmf.getPersistenceManager().makePersistent(new PrimitiveObject());
+
+		BatchMutator mutator = new BatchMutator(manager.getPoolName(), null,
+				System.nanoTime() / 1000, manager.getBatchLimits());
+
+		mutator.writeColumn("PrimitiveObject", KEY, mutator.newColumn(
+				Bytes.fromUTF8("name"), "read"));
+
+		mutator.execute(ConsistencyLevel.QUORUM);
+
+		Map<BigInteger, String> ring = new HashMap<BigInteger, String>();
+		ring.put(token, manager.getPoolName() + ":missing");
+
+		TokenRouter router = new TokenRouter(manager.getPoolName(), ring);
+
+		RowPool pool = new RowPool(router, manager.getPoolName(), KEY);
+
+		assertEquals(manager.getPoolName() + ":missing", pool.getPoolName());
+
+		List<Column> columns = pool.read(new RowPool.Read<List<Column>>() {
+
+			@Override
+			public List<Column> execute(String poolName) {
+				return Pelops.createSelector(poolName).getColumnsFromRow(
+						"PrimitiveObject", KEY,
+						Selector.newColumnsPredicate(Bytes.fromUTF8("name")),
+						ConsistencyLevel.QUORUM);
+			}
+		});
+
+		assertEquals(1, columns.size());
+		assertEquals("read", Bytes.fromByteBuffer(columns.get(0).value)
+				.toUTF8());
+
+		// later reads of the row and other rows on the node skip it
+		assertEquals(manager.getPoolName(), pool.getPoolName());
+		assertEquals(manager.getPoolName(), router.getPoolName(KEY));
+	}
+
+	@Test
+	public void testClose() {
+		Map<BigInteger, String> ring = new HashMap<BigInteger, String>();
+		ring.put(token, "owner");
+
+		TokenRouter router = new TokenRouter("default", ring);
+
+		router.close();
+
+		assertEquals("default", router.getPoolName(KEY));
+	}
+}
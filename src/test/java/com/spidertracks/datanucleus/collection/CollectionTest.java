@@ -24,7 +24,9 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.jdo.JDODataStoreException;
 import javax.jdo.PersistenceManager;
@@ -37,6 +39,7 @@ import org.junit.Test;
 import com.eaio.uuid.UUID;
 import com.spidertracks.datanucleus.CassandraTest;
 import com.spidertracks.datanucleus.collection.model.Card;
+import com.spidertracks.datanucleus.collection.model.LazyPack;
 import com.spidertracks.datanucleus.collection.model.Pack;
 
 /**
@@ -317,4 +320,297 @@ public class CollectionTest extends CassandraTest {
 		deleted = false;
 	}
 
+	/**
+	 * Collections larger than a single page of columns are read in full
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLargeCollection() throws Exception {
+
+		Pack pack = new Pack();
+
+		for (int i = 0; i < 250; i++) {
+			Card card = new Card();
+			card.setName("Card " + i);
+			pack.addCard(card);
+		}
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.getFetchPlan().setFetchSize(100);
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		assertEquals(250, saved.getCards().size());
+
+		for (Card card : pack.getCards()) {
+			assertTrue(saved.getCards().contains(card));
+		}
+	}
+
+	/**
+	 * Reassigning a lazy collection that was never read removes the stored
+	 * elements that are no longer in it
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testReassignLazyCollection() throws Exception {
+
+		LazyPack pack = new LazyPack();
+
+		Card aceSpades = new Card();
+		aceSpades.setName("Ace of Spades");
+		pack.addCard(aceSpades);
+
+		Card jackHearts = new Card();
+		jackHearts.setName("Jack of Hearts");
+		pack.addCard(jackHearts);
+
+		Card tenClubs = new Card();
+		tenClubs.setName("Ten of Clubs");
+		pack.addCard(tenClubs);
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		LazyPack saved = pm.getObjectById(LazyPack.class, pack.getId());
+
+		Set<Card> cards = new HashSet<Card>();
+		cards.add(pm.getObjectById(Card.class, aceSpades.getId()));
+		saved.setCards(cards);
+
+		trans.commit();
+
+		pm = pmf.getPersistenceManager();
+		pm.evictAll();
+
+		saved = pm.getObjectById(LazyPack.class, pack.getId());
+
+		assertEquals(1, saved.getCards().size());
+
+		assertTrue(saved.getCards().contains(aceSpades));
+
+		assertFalse(saved.getCards().contains(jackHearts));
+
+		assertFalse(saved.getCards().contains(tenClubs));
+	}
+
+	/**
+	 * Each write of a collection within a transaction is compared to the
+	 * columns the previous write left, so elements added by one flush and
+	 * removed by the next aren't left behind
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testRewriteInSameTransaction() throws Exception {
+
+		Pack pack = new Pack();
+
+		Card aceSpades = new Card();
+		aceSpades.setName("Ace of Spades");
+		pack.addCard(aceSpades);
+
+		Card jackHearts = new Card();
+		jackHearts.setName("Jack of Hearts");
+		pack.addCard(jackHearts);
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		Card tenClubs = new Card();
+		tenClubs.setName("Ten of Clubs");
+		saved.addCard(tenClubs);
+		saved.getCards().remove(pm.getObjectById(Card.class,
+				jackHearts.getId()));
+
+		pm.flush();
+
+		saved.getCards().remove(pm.getObjectById(Card.class,
+				tenClubs.getId()));
+		saved.getCards().add(pm.getObjectById(Card.class,
+				jackHearts.getId()));
+
+		pm.flush();
+
+		trans.commit();
+
+		pm = pmf.getPersistenceManager();
+		pm.evictAll();
+
+		saved = pm.getObjectById(Pack.class, pack.getId());
+
+		assertEquals(2, saved.getCards().size());
+
+		assertTrue(saved.getCards().contains(aceSpades));
+
+		assertTrue(saved.getCards().contains(jackHearts));
+
+		assertFalse(saved.getCards().contains(tenClubs));
+	}
+
+	/**
+	 * Snapshots don't outlive their transaction, so a collection loaded in
+	 * one transaction and changed in the next reads its stored columns and
+	 * deletes the removed element
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testRemoveInLaterTransaction() throws Exception {
+
+		Pack pack = new Pack();
+
+		Card aceSpades = new Card();
+		aceSpades.setName("Ace of Spades");
+		pack.addCard(aceSpades);
+
+		Card jackHearts = new Card();
+		jackHearts.setName("Jack of Hearts");
+		pack.addCard(jackHearts);
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		assertEquals(2, saved.getCards().size());
+
+		trans.commit();
+
+		trans.begin();
+
+		saved.getCards().remove(pm.getObjectById(Card.class,
+				jackHearts.getId()));
+
+		trans.commit();
+
+		pm = pmf.getPersistenceManager();
+		pm.evictAll();
+
+		saved = pm.getObjectById(Pack.class, pack.getId());
+
+		assertEquals(1, saved.getCards().size());
+
+		assertTrue(saved.getCards().contains(aceSpades));
+
+		assertFalse(saved.getCards().contains(jackHearts));
+	}
+
+	/**
+	 * A lazy collection assigned to another owner is written to that owner's
+	 * columns, and the first owner keeps its elements
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testAssignLazyCollectionToOtherOwner() throws Exception {
+
+		LazyPack pack = new LazyPack();
+
+		Card aceSpades = new Card();
+		aceSpades.setName("Ace of Spades");
+		pack.addCard(aceSpades);
+
+		Card jackHearts = new Card();
+		jackHearts.setName("Jack of Hearts");
+		pack.addCard(jackHearts);
+
+		LazyPack other = new LazyPack();
+
+		Card tenClubs = new Card();
+		tenClubs.setName("Ten of Clubs");
+		other.addCard(tenClubs);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.makePersistent(pack);
+		pm.makePersistent(other);
+
+		pm = pmf.getPersistenceManager();
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		LazyPack saved = pm.getObjectById(LazyPack.class, pack.getId());
+		LazyPack savedOther = pm.getObjectById(LazyPack.class, other.getId());
+
+		savedOther.setCards(saved.getCards());
+
+		trans.commit();
+
+		pm = pmf.getPersistenceManager();
+		pm.evictAll();
+
+		savedOther = pm.getObjectById(LazyPack.class, other.getId());
+
+		assertEquals(2, savedOther.getCards().size());
+
+		assertTrue(savedOther.getCards().contains(aceSpades));
+
+		assertTrue(savedOther.getCards().contains(jackHearts));
+
+		assertFalse(savedOther.getCards().contains(tenClubs));
+
+		saved = pm.getObjectById(LazyPack.class, pack.getId());
+
+		assertEquals(2, saved.getCards().size());
+	}
+
+	/**
+	 * The column of a deleted element is skipped and not counted
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLazyCollectionSkipsDeleted() throws Exception {
+
+		LazyPack pack = new LazyPack();
+
+		Card aceSpades = new Card();
+		aceSpades.setName("Ace of Spades");
+		pack.addCard(aceSpades);
+
+		Card jackHearts = new Card();
+		jackHearts.setName("Jack of Hearts");
+		pack.addCard(jackHearts);
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.deletePersistent(pm.getObjectById(Card.class, jackHearts.getId()));
+
+		pm = pmf.getPersistenceManager();
+		pm.evictAll();
+
+		LazyPack saved = pm.getObjectById(LazyPack.class, pack.getId());
+
+		assertEquals(1, saved.getCards().size());
+
+		assertTrue(saved.getCards().contains(aceSpades));
+
+		assertFalse(saved.getCards().contains(jackHearts));
+
+		int iterated = 0;
+
+		for (Card card : saved.getCards()) {
+			assertEquals(aceSpades, card);
+			iterated++;
+		}
+
+		assertEquals(1, iterated);
+	}
+
 }
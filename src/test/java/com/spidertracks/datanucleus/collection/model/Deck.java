@@ -0,0 +1,66 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection.model;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.Inheritance;
+import javax.jdo.annotations.InheritanceStrategy;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+
+import com.spidertracks.datanucleus.model.BaseEntity;
+
+/**
+ * An object with a collection of objects that have collections themselves
+ * 
+ * @author Todd Nine
+ */
+@PersistenceCapable(table = "Deck", identityType = IdentityType.APPLICATION, detachable = "true")
+@Inheritance(strategy = InheritanceStrategy.NEW_TABLE)
+public class Deck extends BaseEntity {
+
+	@Persistent
+	private Set<Pack> packs;
+
+	/**
+	 * @return the packs
+	 */
+	public Set<Pack> getPacks() {
+		return packs;
+	}
+
+	/**
+	 * @param packs
+	 *            the packs to set
+	 */
+	public void setPacks(Set<Pack> packs) {
+		this.packs = packs;
+	}
+
+	public void addPack(Pack pack) {
+		if (this.packs == null) {
+			packs = new HashSet<Pack>();
+		}
+
+		this.packs.add(pack);
+	}
+
+}
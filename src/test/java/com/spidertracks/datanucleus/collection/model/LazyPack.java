@@ -0,0 +1,68 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection.model;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jdo.annotations.Extension;
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.Inheritance;
+import javax.jdo.annotations.InheritanceStrategy;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+
+import com.spidertracks.datanucleus.model.BaseEntity;
+
+/**
+ * An object with a set of cards that is never loaded into memory
+ * 
+ * @author Todd Nine
+ */
+@PersistenceCapable(table = "LazyPack", identityType = IdentityType.APPLICATION, detachable = "true")
+@Inheritance(strategy = InheritanceStrategy.NEW_TABLE)
+public class LazyPack extends BaseEntity {
+
+	@Persistent
+	@Extension(vendorName = "datanucleus", key = "com.spidertracks.cassandra.lazy", value = "true")
+	private Set<Card> cards;
+
+	/**
+	 * @return the cards
+	 */
+	public Set<Card> getCards() {
+		return cards;
+	}
+
+	/**
+	 * @param cards
+	 *            the cards to set
+	 */
+	public void setCards(Set<Card> cards) {
+		this.cards = cards;
+	}
+
+	public void addCard(Card card) {
+		if (this.cards == null) {
+			cards = new HashSet<Card>();
+		}
+
+		this.cards.add(card);
+	}
+
+}
@@ -0,0 +1,223 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import static org.junit.Assert.assertEquals;
+
+import javax.jdo.FetchPlan;
+import javax.jdo.JDOHelper;
+import javax.jdo.ObjectState;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Transaction;
+
+import org.junit.Test;
+
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.array.model.CardArray;
+import com.spidertracks.datanucleus.array.model.PackArray;
+import com.spidertracks.datanucleus.collection.model.Card;
+import com.spidertracks.datanucleus.collection.model.Deck;
+import com.spidertracks.datanucleus.collection.model.Pack;
+import com.spidertracks.datanucleus.map.model.CardMap;
+import com.spidertracks.datanucleus.map.model.PackMap;
+
+/**
+ * Elements of collections, maps and arrays are loaded with multiget_slice
+ * rather than a read each, up to the max fetch depth of the fetch plan
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class BulkFetchTest extends CassandraTest {
+
+	@Test
+	public void testLoadCollection() throws Exception {
+
+		Pack pack = new Pack();
+
+		for (int i = 0; i < 5; i++) {
+			Card card = new Card();
+			card.setName("Card " + i);
+			pack.addCard(card);
+		}
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.evictAll();
+
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		assertEquals(5, saved.getCards().size());
+
+		for (int i = 0; i < 5; i++) {
+			Card card = saved.getCards().get(i);
+
+			// loaded with the collection, not on first use
+			assertEquals(ObjectState.PERSISTENT_CLEAN, JDOHelper
+					.getObjectState(card));
+
+			assertEquals(pack.getCards().get(i), card);
+			assertEquals("Card " + i, card.getName());
+		}
+
+		trans.commit();
+	}
+
+	@Test
+	public void testLoadMap() throws Exception {
+
+		PackMap pack = new PackMap();
+
+		for (int i = 0; i < 5; i++) {
+			CardMap card = new CardMap();
+			card.setName("Card " + i);
+			pack.AddCard(card);
+		}
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.evictAll();
+
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		PackMap saved = pm.getObjectById(PackMap.class, pack.getId());
+
+		assertEquals(5, saved.getCards().size());
+
+		for (int i = 0; i < 5; i++) {
+			CardMap card = saved.getCards().get("Card " + i);
+
+			assertEquals(ObjectState.PERSISTENT_CLEAN, JDOHelper
+					.getObjectState(card));
+
+			assertEquals(pack.getCards().get("Card " + i), card);
+			assertEquals("Card " + i, card.getName());
+		}
+
+		trans.commit();
+	}
+
+	@Test
+	public void testLoadArray() throws Exception {
+
+		PackArray pack = new PackArray();
+
+		CardArray aceSpades = new CardArray();
+		aceSpades.setName("Ace of Spades");
+		pack.getCards()[0] = aceSpades;
+
+		CardArray jackHearts = new CardArray();
+		jackHearts.setName("Jack of Hearts");
+		pack.getCards()[1] = jackHearts;
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.evictAll();
+
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		PackArray saved = pm.getObjectById(PackArray.class, pack.getId());
+
+		CardArray[] cards = saved.getCards();
+
+		assertEquals(2, cards.length);
+
+		assertEquals(ObjectState.PERSISTENT_CLEAN, JDOHelper
+				.getObjectState(cards[0]));
+		assertEquals(ObjectState.PERSISTENT_CLEAN, JDOHelper
+				.getObjectState(cards[1]));
+
+		assertEquals(aceSpades, cards[0]);
+		assertEquals("Ace of Spades", cards[0].getName());
+
+		assertEquals(jackHearts, cards[1]);
+		assertEquals("Jack of Hearts", cards[1].getName());
+
+		trans.commit();
+	}
+
+	/**
+	 * Elements past the max fetch depth are left hollow until they're used
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testMaxFetchDepth() throws Exception {
+
+		Deck deck = new Deck();
+
+		Pack pack = new Pack();
+		deck.addPack(pack);
+
+		Card aceSpades = new Card();
+		aceSpades.setName("Ace of Spades");
+		pack.addCard(aceSpades);
+
+		pmf.getPersistenceManager().makePersistent(deck);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.evictAll();
+		pm.getFetchPlan().setGroup(FetchPlan.ALL);
+		pm.getFetchPlan().setMaxFetchDepth(1);
+
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		Deck saved = pm.getObjectById(Deck.class, deck.getId());
+
+		Pack savedPack = saved.getPacks().iterator().next();
+
+		assertEquals(ObjectState.PERSISTENT_CLEAN, JDOHelper
+				.getObjectState(savedPack));
+
+		Card savedCard = savedPack.getCards().get(0);
+
+		assertEquals(ObjectState.HOLLOW_PERSISTENT_NONTRANSACTIONAL,
+				JDOHelper.getObjectState(savedCard));
+
+		assertEquals("Ace of Spades", savedCard.getName());
+
+		trans.commit();
+
+		// without a limit every level is loaded
+		pm = pmf.getPersistenceManager();
+		pm.evictAll();
+		pm.getFetchPlan().setGroup(FetchPlan.ALL);
+		pm.getFetchPlan().setMaxFetchDepth(-1);
+
+		trans = pm.currentTransaction();
+		trans.begin();
+
+		saved = pm.getObjectById(Deck.class, deck.getId());
+
+		savedCard = saved.getPacks().iterator().next().getCards().get(0);
+
+		assertEquals(ObjectState.PERSISTENT_CLEAN, JDOHelper
+				.getObjectState(savedCard));
+
+		trans.commit();
+	}
+}
@@ -0,0 +1,149 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.datanucleus.jdo.JDOPersistenceManager;
+import org.datanucleus.store.ExecutionContext;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+
+/**
+ * Query candidates are hydrated with chunked multiget_slice calls rather than
+ * a get_slice per row
+ *
+ * @author Todd Nine
+ *
+ */
+public class BulkFetcherTest extends CassandraTest {
+
+	@Test
+	public void testChunkedMultiget() {
+		String value = "bulk fetcher " + System.nanoTime();
+
+		List<Object> ids = new ArrayList<Object>();
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		for (int i = 0; i < 5; i++) {
+			PrimitiveObject object = new PrimitiveObject();
+			object.setTestString(value);
+			object.setTestInt(i);
+
+			pm.makePersistent(object);
+
+			ids.add(JDOHelper.getObjectId(object));
+		}
+
+		pm = pmf.getPersistenceManager();
+
+		CountingFetcher fetcher = new CountingFetcher(
+				(ExecutionContext) ((JDOPersistenceManager) pm)
+						.getObjectManager(), 2);
+
+		for (Object id : ids) {
+			fetcher.add(id, PrimitiveObject.class);
+		}
+
+		List<Object> results = fetcher.execute();
+
+		assertEquals(5, results.size());
+
+		for (int i = 0; i < 5; i++) {
+			PrimitiveObject object = (PrimitiveObject) results.get(i);
+
+			assertEquals(ids.get(i), JDOHelper.getObjectId(object));
+			assertEquals(value, object.getTestString());
+			assertEquals(i, object.getTestInt());
+		}
+
+		// one call per chunk of 2 rows, not one per row
+		assertEquals(3, fetcher.calls.size());
+		assertEquals(2, (int) fetcher.calls.get(0));
+		assertEquals(2, (int) fetcher.calls.get(1));
+		assertEquals(1, (int) fetcher.calls.get(2));
+	}
+
+	@Test
+	public void testSingleCallPerChunk() {
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		List<Object> ids = new ArrayList<Object>();
+
+		for (int i = 0; i < 10; i++) {
+			PrimitiveObject object = new PrimitiveObject();
+			object.setTestInt(i);
+
+			pm.makePersistent(object);
+
+			ids.add(JDOHelper.getObjectId(object));
+		}
+
+		pm = pmf.getPersistenceManager();
+
+		CountingFetcher fetcher = new CountingFetcher(
+				(ExecutionContext) ((JDOPersistenceManager) pm)
+						.getObjectManager(), BulkFetcher.DEFAULT_CHUNK_SIZE);
+
+		for (Object id : ids) {
+			fetcher.add(id, PrimitiveObject.class);
+		}
+
+		assertEquals(10, fetcher.execute().size());
+
+		assertEquals(1, fetcher.calls.size());
+		assertEquals(10, (int) fetcher.calls.get(0));
+	}
+
+	/**
+	 * Records the number of rows of each multiget_slice
+	 *
+	 * @author Todd Nine
+	 *
+	 */
+	private static class CountingFetcher extends BulkFetcher {
+
+		private List<Integer> calls = new ArrayList<Integer>();
+
+		private CountingFetcher(ExecutionContext ec, int chunkSize) {
+			super(ec, chunkSize, true);
+		}
+
+		@Override
+		Map<Bytes, List<Column>> readRows(Selector selector,
+				String columnFamily, List<Bytes> keys, SlicePredicate predicate)
+				throws Exception {
+			calls.add(keys.size());
+			return super.readRows(selector, columnFamily, keys, predicate);
+		}
+	}
+}
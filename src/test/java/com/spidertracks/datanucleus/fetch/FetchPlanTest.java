@@ -0,0 +1,163 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jdo.FetchPlan;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Transaction;
+
+import org.junit.Test;
+
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.collection.model.Card;
+import com.spidertracks.datanucleus.collection.model.Deck;
+import com.spidertracks.datanucleus.collection.model.Pack;
+
+/**
+ * Loading an object by id only reads the fields in the fetch plan
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class FetchPlanTest extends CassandraTest {
+
+	/**
+	 * A collection outside the fetch plan is read on first access, so it sees
+	 * a card added after the pack was loaded
+	 */
+	@Test
+	public void testOutsideFetchPlanReadOnAccess() {
+		Pack pack = createPack();
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		addCard(pack);
+
+		assertEquals(3, saved.getCards().size());
+
+		pm.close();
+	}
+
+	/**
+	 * A collection in the fetch plan is read with the pack, so it doesn't see
+	 * a card added after the pack was loaded
+	 */
+	@Test
+	public void testInFetchPlanReadWithObject() {
+		Pack pack = createPack();
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.getFetchPlan().setGroup(FetchPlan.ALL);
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		addCard(pack);
+
+		assertEquals(2, saved.getCards().size());
+
+		pm.close();
+	}
+
+	/**
+	 * A collection outside the fetch plan that is replaced without being read
+	 * deletes the columns of the elements it no longer holds
+	 */
+	@Test
+	public void testOutsideFetchPlanReplaced() {
+		Deck deck = new Deck();
+		deck.addPack(new Pack());
+		deck.addPack(new Pack());
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.makePersistent(deck);
+		pm.close();
+
+		pm = pmf.getPersistenceManager();
+
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		Deck saved = pm.getObjectById(Deck.class, deck.getId());
+
+		Set<Pack> packs = new HashSet<Pack>();
+		packs.add(new Pack());
+
+		saved.setPacks(packs);
+
+		trans.commit();
+		pm.close();
+
+		pm = pmf.getPersistenceManager();
+		pm.getFetchPlan().setGroup(FetchPlan.ALL);
+
+		saved = pm.getObjectById(Deck.class, deck.getId());
+
+		assertEquals(1, saved.getPacks().size());
+
+		pm.close();
+	}
+
+	/**
+	 * Persist a pack with 2 cards
+	 * 
+	 * @return
+	 */
+	private Pack createPack() {
+		Pack pack = new Pack();
+
+		for (int i = 0; i < 2; i++) {
+			Card card = new Card();
+			card.setName("Card " + i);
+			pack.addCard(card);
+		}
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.makePersistent(pack);
+		pm.close();
+
+		return pack;
+	}
+
+	/**
+	 * Add a card to the stored pack with another persistence manager
+	 * 
+	 * @param pack
+	 */
+	private void addCard(Pack pack) {
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		Pack stored = pm.getObjectById(Pack.class, pack.getId());
+
+		Card card = new Card();
+		card.setName("Added");
+		stored.addCard(card);
+
+		trans.commit();
+		pm.close();
+	}
+}
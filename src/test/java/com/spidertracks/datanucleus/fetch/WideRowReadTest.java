@@ -0,0 +1,113 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.jdo.FetchPlan;
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.collection.model.Card;
+import com.spidertracks.datanucleus.collection.model.Pack;
+
+/**
+ * Reads an object and its relationship fields with a single call
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class WideRowReadTest extends CassandraTest {
+
+	private static PersistenceManagerFactory widePmf;
+
+	@BeforeClass
+	public static void setupWideRowRead() {
+		widePmf = JDOHelper.getPersistenceManagerFactory("WideRowRead");
+	}
+
+	/**
+	 * Every field is populated from the one read of the row
+	 */
+	@Test
+	public void testOneCallRead() {
+		Pack pack = createPack(10);
+
+		PersistenceManager pm = widePmf.getPersistenceManager();
+		pm.getFetchPlan().setGroup(FetchPlan.ALL);
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		assertEquals(pack, saved);
+
+		assertEquals(10, saved.getCards().size());
+
+		for (Card card : pack.getCards()) {
+			assertTrue(saved.getCards().contains(card));
+		}
+
+		pm.close();
+	}
+
+	/**
+	 * A row with more columns than the limit is read a field at a time
+	 */
+	@Test
+	public void testRowOverLimit() {
+		Pack pack = createPack(150);
+
+		PersistenceManager pm = widePmf.getPersistenceManager();
+		pm.getFetchPlan().setGroup(FetchPlan.ALL);
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		assertEquals(150, saved.getCards().size());
+
+		for (Card card : pack.getCards()) {
+			assertTrue(saved.getCards().contains(card));
+		}
+
+		pm.close();
+	}
+
+	/**
+	 * Persist a pack with the given number of cards
+	 * 
+	 * @param size
+	 * @return
+	 */
+	private Pack createPack(int size) {
+		Pack pack = new Pack();
+
+		for (int i = 0; i < size; i++) {
+			Card card = new Card();
+			card.setName("Card " + i);
+			pack.addCard(card);
+		}
+
+		widePmf.getPersistenceManager().makePersistent(pack);
+
+		return pack;
+	}
+}
@@ -0,0 +1,238 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.jdo.FetchPlan;
+import javax.jdo.JDODataStoreException;
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+import javax.jdo.Transaction;
+
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.eaio.uuid.UUID;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+import com.spidertracks.datanucleus.collection.model.Deck;
+import com.spidertracks.datanucleus.collection.model.Pack;
+
+/**
+ * Writes objects with batches sent on the writer threads
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class AsyncWriteTest extends CassandraTest {
+
+	private static PersistenceManagerFactory asyncPmf;
+
+	@BeforeClass
+	public static void setupAsync() {
+		asyncPmf = JDOHelper.getPersistenceManagerFactory("AsyncWrites");
+	}
+
+	/**
+	 * Every write is complete once the transaction commits
+	 */
+	@Test
+	public void testCommitWaits() {
+		PersistenceManager pm = asyncPmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		List<UUID> ids = new ArrayList<UUID>();
+
+		// more batches than the queue holds
+		for (int i = 0; i < 50; i++) {
+			PrimitiveObject object = new PrimitiveObject();
+			object.setTestInt(i);
+			object.setTestString("async");
+
+			pm.makePersistent(object);
+
+			ids.add(object.getId());
+		}
+
+		tx.commit();
+
+		PersistenceManager reader = pmf.getPersistenceManager();
+
+		for (int i = 0; i < ids.size(); i++) {
+			PrimitiveObject loaded = reader.getObjectById(
+					PrimitiveObject.class, ids.get(i));
+
+			assertEquals(i, loaded.getTestInt());
+			assertEquals("async", loaded.getTestString());
+		}
+	}
+
+	/**
+	 * A delete waits for the asynchronous writes of the context so it is
+	 * applied after them
+	 */
+	@Test
+	public void testDeleteAfterWrite() {
+		PersistenceManager pm = asyncPmf.getPersistenceManager();
+
+		PrimitiveObject object = new PrimitiveObject();
+		object.setTestString("deleted");
+
+		pm.makePersistent(object);
+
+		UUID id = object.getId();
+
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+		pm.deletePersistent(object);
+		tx.commit();
+
+		boolean deleted = false;
+
+		try {
+			pmf.getPersistenceManager().getObjectById(PrimitiveObject.class,
+					id);
+		} catch (JDODataStoreException e) {
+			deleted = e.getCause() instanceof NucleusObjectNotFoundException;
+		}
+
+		assertTrue(deleted);
+	}
+
+	/**
+	 * Writes made outside of a transaction belong to the context rather than
+	 * the thread, so a delete on another thread waits for them
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDeleteAfterWriteOnOtherThread() throws Exception {
+		final PersistenceManager pm = asyncPmf.getPersistenceManager();
+
+		final PrimitiveObject object = new PrimitiveObject();
+		object.setTestString("deleted");
+
+		pm.makePersistent(object);
+
+		UUID id = object.getId();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		executor.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				Transaction tx = pm.currentTransaction();
+				tx.begin();
+				pm.deletePersistent(object);
+				tx.commit();
+				return null;
+			}
+
+		}).get();
+
+		executor.shutdown();
+
+		boolean deleted = false;
+
+		try {
+			pmf.getPersistenceManager().getObjectById(PrimitiveObject.class,
+					id);
+		} catch (JDODataStoreException e) {
+			deleted = e.getCause() instanceof NucleusObjectNotFoundException;
+		}
+
+		assertTrue(deleted);
+	}
+
+	/**
+	 * A query waits for the writes the context made outside of a transaction,
+	 * so it finds the objects they persisted
+	 */
+	@SuppressWarnings("rawtypes")
+	@Test
+	public void testQueryAfterWrite() {
+		PersistenceManager pm = asyncPmf.getPersistenceManager();
+
+		String value = new UUID().toString();
+
+		for (int i = 0; i < 20; i++) {
+			PrimitiveObject object = new PrimitiveObject();
+			object.setTestInt(i);
+			object.setTestString(value);
+
+			pm.makePersistent(object);
+		}
+
+		Query query = pm.newQuery(PrimitiveObject.class);
+		query.setFilter("testString == :value");
+
+		Collection results = (Collection) query.execute(value);
+
+		assertEquals(20, results.size());
+
+		pm.close();
+	}
+
+	/**
+	 * A collection written again before the batch holding its first write
+	 * completes reads the columns of that batch, so the elements it no longer
+	 * holds are deleted
+	 */
+	@Test
+	public void testRewriteAfterWrite() {
+		PersistenceManager pm = asyncPmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		Deck deck = new Deck();
+		deck.addPack(new Pack());
+		deck.addPack(new Pack());
+
+		pm.makePersistent(deck);
+
+		Set<Pack> packs = new HashSet<Pack>();
+		packs.add(new Pack());
+
+		deck.setPacks(packs);
+
+		tx.commit();
+
+		PersistenceManager reader = pmf.getPersistenceManager();
+		reader.getFetchPlan().setGroup(FetchPlan.ALL);
+
+		Deck loaded = reader.getObjectById(Deck.class, deck.getId());
+
+		assertEquals(1, loaded.getPacks().size());
+	}
+}
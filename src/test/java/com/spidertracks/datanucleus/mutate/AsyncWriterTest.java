@@ -0,0 +1,131 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.datanucleus.store.ExecutionContext;
+import org.junit.Test;
+
+/**
+ * Reports the failures of batches sent on the writer threads
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class AsyncWriterTest {
+
+	@Test
+	public void testFailureReported() throws Exception {
+		final Exception error = new IllegalStateException("unavailable");
+
+		final List<Exception> failures = new ArrayList<Exception>();
+
+		WriteFailureListener listener = new WriteFailureListener() {
+
+			@Override
+			public void writeFailed(ExecutionContext context, Exception cause) {
+				failures.add(cause);
+			}
+
+		};
+
+		final CountDownLatch completed = new CountDownLatch(1);
+
+		AsyncWriter writer = new AsyncWriter(1, 1);
+
+		Future<?> future = writer.submit(new FailingMutate(error), listener,
+				new Runnable() {
+
+					@Override
+					public void run() {
+						completed.countDown();
+					}
+
+				});
+
+		assertTrue(completed.await(10, TimeUnit.SECONDS));
+
+		// still thrown to whoever waits for the write
+		boolean thrown = false;
+
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			thrown = e.getCause() == error;
+		}
+
+		assertTrue(thrown);
+
+		assertEquals(1, failures.size());
+		assertSame(error, failures.get(0));
+
+		writer.close();
+	}
+
+	@Test
+	public void testNoListener() throws Exception {
+		AsyncWriter writer = new AsyncWriter(1, 1);
+
+		final CountDownLatch completed = new CountDownLatch(1);
+
+		Future<?> future = writer.submit(new FailingMutate(
+				new IllegalStateException()), null, new Runnable() {
+
+			@Override
+			public void run() {
+				completed.countDown();
+			}
+
+		});
+
+		assertTrue(completed.await(10, TimeUnit.SECONDS));
+		assertTrue(future.isDone());
+
+		writer.close();
+	}
+
+	/**
+	 * A batch that fails when it's written
+	 */
+	private static class FailingMutate extends ExecutionContextMutate {
+
+		private Exception error;
+
+		private FailingMutate(Exception error) {
+			super(null, null);
+			this.error = error;
+		}
+
+		@Override
+		public void execute() throws Exception {
+			throw error;
+		}
+
+	}
+
+}
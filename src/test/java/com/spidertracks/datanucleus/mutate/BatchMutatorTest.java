@@ -0,0 +1,178 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.jdo.JDOPersistenceManagerFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+
+/**
+ * @author Todd Nine
+ * 
+ */
+public class BatchMutatorTest extends CassandraTest {
+
+	private static final String CF = "PrimitiveObject";
+
+	private static final Bytes NAME = Bytes.fromUTF8("name");
+
+	private CassandraStoreManager manager;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setupManager() {
+		manager = (CassandraStoreManager) ((JDOPersistenceManagerFactory) pmf)
+				.getOMFContext().getStoreManager();
+
+		executor = Executors.newFixedThreadPool(2);
+
+		// creates the column family
+		pmf.getPersistenceManager().makePersistent(new PrimitiveObject());
+	}
+
+	@After
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void testSplitOnMutations() {
+		BatchMutator mutator = new BatchMutator("MissingPool", 0,
+				new BatchLimits(2, Long.MAX_VALUE, Integer.MAX_VALUE, executor));
+
+		writeRows(mutator, 5, 1);
+
+		// 2 rows of a single column fit in each call
+		assertFailures(mutator, 3);
+	}
+
+	@Test
+	public void testSplitOnRows() {
+		BatchMutator mutator = new BatchMutator("MissingPool", 0,
+				new BatchLimits(Integer.MAX_VALUE, Long.MAX_VALUE, 2, executor));
+
+		writeRows(mutator, 4, 3);
+
+		assertFailures(mutator, 2);
+	}
+
+	@Test
+	public void testSplitOnBytes() {
+		BatchMutator mutator = new BatchMutator("MissingPool", 0,
+				new BatchLimits(Integer.MAX_VALUE, 1, Integer.MAX_VALUE,
+						executor));
+
+		writeRows(mutator, 3, 2);
+
+		// every row exceeds the size on its own
+		assertFailures(mutator, 3);
+	}
+
+	@Test
+	public void testRowNotSplit() {
+		BatchMutator mutator = new BatchMutator("MissingPool", 0,
+				new BatchLimits(2, Long.MAX_VALUE, Integer.MAX_VALUE, executor));
+
+		// each row exceeds the limit but is sent in a single call
+		writeRows(mutator, 2, 3);
+
+		assertFailures(mutator, 2);
+	}
+
+	@Test
+	public void testSplitWrite() {
+		BatchMutator mutator = new BatchMutator(manager.getPoolName(),
+				System.nanoTime() / 1000, new BatchLimits(2, Long.MAX_VALUE,
+						Integer.MAX_VALUE, executor));
+
+		writeRows(mutator, 5, 3);
+
+		mutator.execute(ConsistencyLevel.QUORUM);
+
+		assertEquals(0, mutator.size());
+
+		Selector selector = Pelops.createSelector(manager.getPoolName());
+
+		for (int i = 0; i < 5; i++) {
+			assertEquals(3, selector.getColumnsFromRow(CF,
+					Bytes.fromUTF8("split" + i),
+					Selector.newColumnsPredicateAll(false, 10),
+					ConsistencyLevel.QUORUM).size());
+		}
+	}
+
+	/**
+	 * Write the columns to each row
+	 * 
+	 * @param mutator
+	 * @param rows
+	 * @param columns
+	 */
+	private void writeRows(BatchMutator mutator, int rows, int columns) {
+		for (int i = 0; i < rows; i++) {
+			for (int j = 0; j < columns; j++) {
+				mutator.writeColumn(CF, Bytes.fromUTF8("split" + i), mutator
+						.newColumn(Bytes.fromUTF8("column" + j), "value"));
+			}
+		}
+	}
+
+	/**
+	 * Execute the batch and check every call failed and was reported
+	 * 
+	 * @param mutator
+	 * @param calls
+	 *            The number of calls the batch is split into
+	 */
+	private void assertFailures(BatchMutator mutator, int calls) {
+		NucleusDataStoreException failure = null;
+
+		try {
+			mutator.execute(ConsistencyLevel.QUORUM);
+		} catch (NucleusDataStoreException e) {
+			failure = e;
+		}
+
+		assertNotNull(failure);
+		assertEquals(String.format("%d of %d batch mutations failed", calls,
+				calls), failure.getMessage());
+		assertEquals(calls, failure.getNestedExceptions().length);
+	}
+
+	private BatchMutator newMutator(String poolName) {
+		return new BatchMutator(poolName, System.nanoTime() / 1000, manager
+				.getBatchLimits());
+	}
+}
@@ -0,0 +1,228 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+
+import org.datanucleus.util.NucleusLogger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.eaio.uuid.UUID;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+
+/**
+ * Persists objects from several threads at once. Every thread uses its own
+ * persistence manager, all of them share the factory's persistence handler.
+ * The throughput for each number of threads is logged along with its ratio to
+ * the throughput of a single thread. Only a collapse of that ratio is
+ * asserted, the exact scaling depends on the machine.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class ConcurrentWriteTest extends CassandraTest {
+
+	private static final int THREADS = 4;
+
+	private static final int OBJECTS_PER_THREAD = 20;
+
+	// objects each thread writes when measuring throughput
+	private static final int THROUGHPUT_OBJECTS_PER_THREAD = 200;
+
+	// the lowest ratio to the throughput of one thread allowed for more
+	// threads. Below this the threads are serialised on shared state
+	private static final double MIN_SCALING = 0.5;
+
+	private static PersistenceManagerFactory asyncPmf;
+
+	@BeforeClass
+	public static void setupAsync() {
+		asyncPmf = JDOHelper.getPersistenceManagerFactory("AsyncWrites");
+	}
+
+	@Test
+	public void testConcurrentWrites() throws Exception {
+		List<UUID> ids = writeObjects(pmf, THREADS, OBJECTS_PER_THREAD);
+
+		assertEquals(THREADS * OBJECTS_PER_THREAD, ids.size());
+
+		verify(ids);
+	}
+
+	@Test
+	public void testConcurrentAsyncWrites() throws Exception {
+		List<UUID> ids = writeObjects(asyncPmf, THREADS, OBJECTS_PER_THREAD);
+
+		assertEquals(THREADS * OBJECTS_PER_THREAD, ids.size());
+
+		verify(ids);
+	}
+
+	@Test
+	public void testThroughput() throws Exception {
+		measureScaling(pmf);
+	}
+
+	@Test
+	public void testAsyncThroughput() throws Exception {
+		measureScaling(asyncPmf);
+	}
+
+	/**
+	 * Write with 1, 2, 4... threads up to the number of cores and log the
+	 * throughput of each and its ratio to the throughput of one thread
+	 * 
+	 * @param factory
+	 * @throws Exception
+	 */
+	private void measureScaling(PersistenceManagerFactory factory)
+			throws Exception {
+		int cores = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+
+		// warm up the connections and metadata
+		writeObjects(factory, 1, OBJECTS_PER_THREAD);
+
+		double single = 0;
+
+		for (int threads = 1; threads <= cores; threads *= 2) {
+			long start = System.nanoTime();
+
+			List<UUID> ids = writeObjects(factory, threads,
+					THROUGHPUT_OBJECTS_PER_THREAD);
+
+			long elapsed = System.nanoTime() - start;
+
+			assertEquals(threads * THROUGHPUT_OBJECTS_PER_THREAD, ids.size());
+
+			double throughput = ids.size() / (elapsed / 1000000000.0);
+
+			if (threads == 1) {
+				single = throughput;
+			}
+
+			double scaling = throughput / single;
+
+			NucleusLogger.GENERAL.info(String.format(
+					"%d threads wrote %d objects in %d ms, %.0f objects/second, %.2fx one thread",
+					threads, ids.size(), elapsed / 1000000, throughput,
+					scaling));
+
+			assertTrue(String.format(
+					"%d threads wrote at %.2fx the rate of one thread",
+					threads, scaling), scaling >= MIN_SCALING);
+
+			verify(ids);
+		}
+	}
+
+	/**
+	 * Make sure nothing was lost
+	 * 
+	 * @param ids
+	 */
+	private void verify(List<UUID> ids) {
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		for (UUID id : ids) {
+			PrimitiveObject stored = pm.getObjectById(PrimitiveObject.class,
+					id);
+
+			assertEquals(id, stored.getId());
+			assertEquals("concurrent", stored.getTestString());
+		}
+
+		pm.close();
+	}
+
+	/**
+	 * Persist objects from the given number of threads, each in its own
+	 * transaction
+	 * 
+	 * @param factory
+	 * @param threads
+	 * @param objects
+	 *            The number of objects each thread persists
+	 * @return The ids of the persisted objects
+	 * @throws Exception
+	 */
+	private List<UUID> writeObjects(final PersistenceManagerFactory factory,
+			int threads, final int objects) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		List<Future<List<UUID>>> results = new ArrayList<Future<List<UUID>>>();
+
+		for (int i = 0; i < threads; i++) {
+			results.add(executor.submit(new Callable<List<UUID>>() {
+
+				@Override
+				public List<UUID> call() throws Exception {
+					List<UUID> ids = new ArrayList<UUID>();
+
+					PersistenceManager pm = factory.getPersistenceManager();
+
+					Transaction tx = pm.currentTransaction();
+
+					for (int j = 0; j < objects; j++) {
+						tx.begin();
+
+						PrimitiveObject object = new PrimitiveObject();
+						object.setTestInt(j);
+						object.setTestString("concurrent");
+
+						pm.makePersistent(object);
+
+						tx.commit();
+
+						ids.add(object.getId());
+					}
+
+					pm.close();
+
+					return ids;
+				}
+
+			}));
+		}
+
+		List<UUID> ids = new ArrayList<UUID>();
+
+		for (Future<List<UUID>> result : results) {
+			ids.addAll(result.get());
+		}
+
+		executor.shutdown();
+
+		return ids;
+	}
+
+}
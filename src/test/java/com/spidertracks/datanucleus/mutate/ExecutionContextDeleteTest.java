@@ -0,0 +1,209 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.JDODataStoreException;
+import javax.jdo.PersistenceManager;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+import org.datanucleus.jdo.JDOPersistenceManagerFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.collection.model.Card;
+import com.spidertracks.datanucleus.collection.model.Pack;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+
+/**
+ * Deletes an object with its dependent objects
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class ExecutionContextDeleteTest extends CassandraTest {
+
+	private CassandraStoreManager manager;
+
+	private ByteConverterContext byteContext;
+
+	@Before
+	public void setupManager() {
+		manager = (CassandraStoreManager) ((JDOPersistenceManagerFactory) pmf)
+				.getOMFContext().getStoreManager();
+
+		byteContext = manager.getByteConverterContext();
+	}
+
+	/**
+	 * Every row of the cascade is removed with a single batch mutation
+	 */
+	@Test
+	public void testSingleBatch() throws Exception {
+		Pack pack = newPack(3);
+
+		Bytes packKey = byteContext.getRowKey(pack);
+		List<Bytes> cardKeys = getCardKeys(pack);
+
+		CountingMutator mutator = new CountingMutator();
+
+		ExecutionContextDelete delete = new ExecutionContextDelete(null,
+				mutator);
+
+		delete.addDeletion(packKey, "Pack");
+
+		for (Bytes cardKey : cardKeys) {
+			delete.addDeletion(cardKey, "Card");
+		}
+
+		delete.execute();
+
+		assertEquals(1, mutator.calls);
+		assertEquals(4, mutator.mutations);
+
+		assertDeleted(packKey, cardKeys);
+	}
+
+	/**
+	 * Deleting the owner removes the dependent rows as well
+	 */
+	@Test
+	public void testCascade() throws Exception {
+		Pack pack = newPack(3);
+
+		Bytes packKey = byteContext.getRowKey(pack);
+		List<Bytes> cardKeys = getCardKeys(pack);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.currentTransaction().begin();
+
+		pm.deletePersistent(pm.getObjectById(Pack.class, pack.getId()));
+
+		pm.currentTransaction().commit();
+
+		assertDeleted(packKey, cardKeys);
+
+		boolean deleted = false;
+
+		try {
+			pmf.getPersistenceManager().getObjectById(Pack.class,
+					pack.getId());
+		} catch (JDODataStoreException e) {
+			deleted = e.getCause() instanceof NucleusObjectNotFoundException;
+		}
+
+		assertTrue(deleted);
+	}
+
+	/**
+	 * Persist a pack with the given number of cards
+	 * 
+	 * @param size
+	 * @return
+	 */
+	private Pack newPack(int size) {
+		Pack pack = new Pack();
+
+		for (int i = 0; i < size; i++) {
+			Card card = new Card();
+			card.setName("card" + i);
+			pack.addCard(card);
+		}
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.currentTransaction().begin();
+		pm.makePersistent(pack);
+		pm.currentTransaction().commit();
+
+		return pack;
+	}
+
+	/**
+	 * Get the row keys of the cards in the pack
+	 * 
+	 * @param pack
+	 * @return
+	 */
+	private List<Bytes> getCardKeys(Pack pack) {
+		List<Bytes> keys = new ArrayList<Bytes>();
+
+		for (Card card : pack.getCards()) {
+			keys.add(byteContext.getRowKey(card));
+		}
+
+		return keys;
+	}
+
+	/**
+	 * Check the rows of the pack and its cards are empty
+	 * 
+	 * @param packKey
+	 * @param cardKeys
+	 */
+	private void assertDeleted(Bytes packKey, List<Bytes> cardKeys) {
+		assertEquals(0, countColumns("Pack", packKey));
+
+		for (Bytes key : cardKeys) {
+			assertEquals(0, countColumns("Card", key));
+		}
+	}
+
+	private int countColumns(String columnFamily, Bytes key) {
+		Selector selector = Pelops.createSelector(manager.getPoolName());
+
+		return selector.getColumnsFromRow(columnFamily, key,
+				Selector.newColumnsPredicateAll(false, 100),
+				ConsistencyLevel.QUORUM).size();
+	}
+
+	/**
+	 * Counts the batch mutations sent
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private class CountingMutator extends BatchMutator {
+
+		private int calls;
+
+		private int mutations;
+
+		private CountingMutator() {
+			super(manager.getPoolName(), System.nanoTime() / 1000, manager
+					.getBatchLimits());
+		}
+
+		@Override
+		public void execute(ConsistencyLevel consistency) {
+			calls++;
+			mutations += size();
+			super.execute(consistency);
+		}
+	}
+}
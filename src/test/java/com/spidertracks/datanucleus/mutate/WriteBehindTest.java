@@ -0,0 +1,176 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.eaio.uuid.UUID;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+
+/**
+ * Writes objects with the writes of a transaction buffered until it commits
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class WriteBehindTest extends CassandraTest {
+
+	private static PersistenceManagerFactory writeBehindPmf;
+
+	@BeforeClass
+	public static void setupWriteBehind() {
+		writeBehindPmf = JDOHelper.getPersistenceManagerFactory("WriteBehind");
+	}
+
+	/**
+	 * Every write of the transaction has the same timestamp, the last value
+	 * written must be kept
+	 */
+	@Test
+	public void testUpdateTwice() {
+		PrimitiveObject object = new PrimitiveObject();
+		object.setTestString("original");
+
+		PersistenceManager pm = writeBehindPmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+		pm.makePersistent(object);
+		tx.commit();
+
+		UUID id = object.getId();
+
+		pm = writeBehindPmf.getPersistenceManager();
+		tx = pm.currentTransaction();
+		tx.begin();
+
+		PrimitiveObject saved = pm.getObjectById(PrimitiveObject.class, id);
+		saved.setTestString("first");
+		saved.setTestInt(1);
+		saved.setTestString("second");
+		saved.setTestInt(2);
+
+		tx.commit();
+
+		PrimitiveObject loaded = pmf.getPersistenceManager().getObjectById(
+				PrimitiveObject.class, id);
+
+		assertEquals("second", loaded.getTestString());
+		assertEquals(2, loaded.getTestInt());
+	}
+
+	/**
+	 * The insert and the update of an object share the transaction's batch
+	 */
+	@Test
+	public void testPersistAndUpdate() {
+		PersistenceManager pm = writeBehindPmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		PrimitiveObject object = new PrimitiveObject();
+		object.setTestString("inserted");
+
+		pm.makePersistent(object);
+
+		object.setTestString("updated");
+
+		tx.commit();
+
+		PrimitiveObject loaded = pmf.getPersistenceManager().getObjectById(
+				PrimitiveObject.class, object.getId());
+
+		assertEquals("updated", loaded.getTestString());
+	}
+
+	/**
+	 * The buffer is stamped when the transaction commits, so it replaces a
+	 * value written after the transaction's first write
+	 */
+	@Test
+	public void testStampedAtCommit() {
+		PrimitiveObject object = new PrimitiveObject();
+		object.setTestString("original");
+
+		PersistenceManager pm = writeBehindPmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+		pm.makePersistent(object);
+		tx.commit();
+
+		UUID id = object.getId();
+
+		pm = writeBehindPmf.getPersistenceManager();
+		tx = pm.currentTransaction();
+		tx.begin();
+
+		pm.getObjectById(PrimitiveObject.class, id).setTestString("committed");
+
+		PersistenceManager other = pmf.getPersistenceManager();
+		Transaction otherTx = other.currentTransaction();
+		otherTx.begin();
+		other.getObjectById(PrimitiveObject.class, id).setTestString(
+				"written in between");
+		otherTx.commit();
+
+		tx.commit();
+
+		PrimitiveObject loaded = pmf.getPersistenceManager().getObjectById(
+				PrimitiveObject.class, id);
+
+		assertEquals("committed", loaded.getTestString());
+	}
+
+	/**
+	 * Nothing is written when the transaction rolls back
+	 */
+	@Test
+	public void testRollback() {
+		PrimitiveObject object = new PrimitiveObject();
+		object.setTestString("original");
+
+		PersistenceManager pm = writeBehindPmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+		pm.makePersistent(object);
+		tx.commit();
+
+		UUID id = object.getId();
+
+		pm = writeBehindPmf.getPersistenceManager();
+		tx = pm.currentTransaction();
+		tx.begin();
+
+		pm.getObjectById(PrimitiveObject.class, id).setTestString("rolled back");
+
+		tx.rollback();
+
+		PrimitiveObject loaded = pmf.getPersistenceManager().getObjectById(
+				PrimitiveObject.class, id);
+
+		assertEquals("original", loaded.getTestString());
+	}
+}
@@ -0,0 +1,187 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.inheritance.caseone.Child;
+import com.spidertracks.datanucleus.basic.inheritance.caseone.GrandChildOne;
+
+/**
+ * Queries that exclude subclasses only return instances of the candidate
+ * class
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class CandidateClassTest extends CassandraTest {
+
+	private List<Child> created = new ArrayList<Child>();
+
+	private GrandChildOne grandChild;
+	private Child first;
+	private Child second;
+
+	@Before
+	public void setUp() {
+		// sorts before the child fields stored by other tests
+		grandChild = new GrandChildOne();
+		grandChild.setChildField("0-a");
+		grandChild.setGrandChildOneField("gcf-candidate");
+
+		first = new Child();
+		first.setChildField("0-b");
+
+		second = new Child();
+		second.setChildField("0-c");
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		for (Child child : new Child[] { grandChild, first, second }) {
+			pm.makePersistent(child);
+			created.add(child);
+		}
+
+		pm.close();
+	}
+
+	@After
+	public void tearDown() {
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		for (Child child : created) {
+			pm.deletePersistent(pm.getObjectById(Child.class, child.getId()));
+		}
+
+		pm.close();
+	}
+
+	/**
+	 * The first rows kept for an ordered range are only of the candidate class
+	 * when subclasses are excluded
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testTopNExcludesSubclasses() {
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		Query query = pm.newQuery(pm.getExtent(Child.class, false));
+		query.setOrdering("childField ascending");
+		query.setRange(0, 2);
+
+		List<Child> results = (List<Child>) query.execute();
+
+		assertEquals(2, results.size());
+		assertEquals(first, results.get(0));
+		assertEquals(second, results.get(1));
+
+		pm.close();
+	}
+
+	/**
+	 * Subclasses take a place in the range when they're included
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testTopNIncludesSubclasses() {
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		Query query = pm.newQuery(pm.getExtent(Child.class, true));
+		query.setOrdering("childField ascending");
+		query.setRange(0, 2);
+
+		List<Child> results = (List<Child>) query.execute();
+
+		assertEquals(2, results.size());
+		assertEquals(grandChild, results.get(0));
+		assertEquals(first, results.get(1));
+
+		pm.close();
+	}
+
+	/**
+	 * Counting a query that excludes subclasses doesn't count the rows of
+	 * subclasses stored in the candidate's column family
+	 */
+	@Test
+	public void testCountExcludesSubclasses() {
+		long before = count(false);
+
+		persistChildren();
+
+		assertEquals(before + 1, count(false));
+	}
+
+	/**
+	 * Counting a query that includes subclasses counts the rows of the
+	 * candidate class and its subclasses
+	 */
+	@Test
+	public void testCountIncludesSubclasses() {
+		long before = count(true);
+
+		persistChildren();
+
+		assertEquals(before + 2, count(true));
+	}
+
+	/**
+	 * Store another child and another grand child
+	 */
+	private void persistChildren() {
+		GrandChildOne extraGrandChild = new GrandChildOne();
+		extraGrandChild.setChildField("cf-count");
+
+		Child extraChild = new Child();
+		extraChild.setChildField("cf-count");
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		for (Child child : new Child[] { extraGrandChild, extraChild }) {
+			pm.makePersistent(child);
+			created.add(child);
+		}
+
+		pm.close();
+	}
+
+	private long count(boolean subclasses) {
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		Query query = pm.newQuery(pm.getExtent(Child.class, subclasses));
+		query.setResult("count(this)");
+
+		long count = (Long) query.execute();
+
+		pm.close();
+
+		return count;
+	}
+
+}
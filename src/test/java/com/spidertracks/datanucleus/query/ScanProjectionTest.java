@@ -0,0 +1,156 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.ObjectState;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.Transaction;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.eaio.uuid.UUID;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.inheritance.caseone.Child;
+import com.spidertracks.datanucleus.basic.inheritance.caseone.GrandChildOne;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+
+/**
+ * Query candidates are populated from the fetch plan columns read by the
+ * index and range scans
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class ScanProjectionTest extends CassandraTest {
+
+	private List<Object> created = new ArrayList<Object>();
+
+	@After
+	public void tearDown() {
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		for (Object object : created) {
+			pm.deletePersistent(pm.getObjectById(pm.getObjectId(object)));
+		}
+
+		pm.close();
+	}
+
+	/**
+	 * Every fetch plan field of an index scan result is loaded when the query
+	 * returns
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testIndexScan() {
+		String value = new UUID().toString();
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		for (int i = 0; i < 3; i++) {
+			PrimitiveObject object = new PrimitiveObject();
+			object.setTestString(value);
+			object.setTestInt(i);
+			object.setTestLong(i * 10);
+
+			pm.makePersistent(object);
+
+			created.add(object);
+		}
+
+		pm = pmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		Query query = pm.newQuery(PrimitiveObject.class,
+				"testString == :value");
+
+		Collection<PrimitiveObject> results = (Collection<PrimitiveObject>) query
+				.execute(value);
+
+		assertEquals(3, results.size());
+
+		for (PrimitiveObject result : results) {
+			// populated from the scan, not hollow
+			assertEquals(ObjectState.PERSISTENT_CLEAN, JDOHelper
+					.getObjectState(result));
+
+			assertEquals(value, result.getTestString());
+			assertEquals(result.getTestInt() * 10, result.getTestLong());
+		}
+
+		tx.commit();
+	}
+
+	/**
+	 * The fetch plan columns of subclasses stored in the candidate's column
+	 * family are read by a range scan
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testRangeScanSubclass() {
+		GrandChildOne grandChild = new GrandChildOne();
+		grandChild.setChildField("cf-scan");
+		grandChild.setGrandChildOneField("gcf-scan");
+		grandChild.setParentField("pf-scan");
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.makePersistent(grandChild);
+
+		created.add(grandChild);
+
+		pm = pmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		Collection<Child> results = (Collection<Child>) pm.newQuery(
+				Child.class).execute();
+
+		boolean found = false;
+
+		for (Child result : results) {
+			if (!grandChild.equals(result)) {
+				continue;
+			}
+
+			found = true;
+
+			assertEquals(ObjectState.PERSISTENT_CLEAN, JDOHelper
+					.getObjectState(result));
+
+			assertTrue(result instanceof GrandChildOne);
+			assertEquals("cf-scan", result.getChildField());
+			assertEquals("gcf-scan", ((GrandChildOne) result)
+					.getGrandChildOneField());
+		}
+
+		assertTrue(found);
+
+		tx.commit();
+	}
+}
@@ -0,0 +1,198 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.cassandra.thrift.Column;
+import org.datanucleus.jdo.JDOPersistenceManagerFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.query.TopNRowCollector.Ordering;
+import com.spidertracks.datanucleus.query.runtime.Columns;
+
+/**
+ * Orders rows on their column values and keeps the first N
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class TopNRowCollectorTest extends CassandraTest {
+
+	private static final Bytes AGE = Bytes.fromUTF8("age");
+	private static final Bytes NAME = Bytes.fromUTF8("name");
+
+	private ByteConverterContext byteContext;
+
+	@Before
+	public void setupContext() {
+		CassandraStoreManager manager = (CassandraStoreManager) ((JDOPersistenceManagerFactory) pmf)
+				.getOMFContext().getStoreManager();
+
+		byteContext = manager.getByteConverterContext();
+	}
+
+	@Test
+	public void testTiesOrderedByKey() {
+		TopNRowCollector collector = new TopNRowCollector(
+				Arrays.asList(new Ordering(AGE, Integer.class, false)), 4,
+				byteContext);
+
+		// add in an order that doesn't match the keys
+		collector.add(row("e", 20, "e"));
+		collector.add(row("c", 10, "c"));
+		collector.add(row("d", 10, "d"));
+		collector.add(row("a", 10, "a"));
+		collector.add(row("b", 10, "b"));
+		collector.add(row("f", 30, "f"));
+
+		// the 4 rows tied on 10 are kept in key order
+		assertEquals(Arrays.asList("a", "b", "c", "d"),
+				keys(collector.getRows(0)));
+	}
+
+	@Test
+	public void testTiesStableForAnyInsertOrder() {
+		List<Columns> rows = new ArrayList<Columns>();
+
+		for (int i = 0; i < 10; i++) {
+			rows.add(row("key" + i, i % 3, "name" + i));
+		}
+
+		List<String> expected = null;
+
+		for (int i = 0; i < 5; i++) {
+			Collections.shuffle(rows);
+
+			TopNRowCollector collector = new TopNRowCollector(
+					Arrays.asList(new Ordering(AGE, Integer.class, true)), 5,
+					byteContext);
+
+			for (Columns row : rows) {
+				collector.add(row);
+			}
+
+			List<String> keys = keys(collector.getRows(0));
+
+			if (expected == null) {
+				expected = keys;
+			}
+
+			assertEquals(expected, keys);
+		}
+
+		// descending on age, ascending on key within a tie
+		assertEquals(Arrays.asList("key2", "key5", "key8", "key1", "key4"),
+				expected);
+	}
+
+	@Test
+	public void testSecondOrderingBreaksTie() {
+		TopNRowCollector collector = new TopNRowCollector(Arrays.asList(
+				new Ordering(AGE, Integer.class, false), new Ordering(NAME,
+						String.class, true)), 3, byteContext);
+
+		collector.add(row("a", 10, "x"));
+		collector.add(row("b", 10, "z"));
+		collector.add(row("c", 10, "y"));
+		collector.add(row("d", 5, "a"));
+
+		assertEquals(Arrays.asList("d", "b", "c"), keys(collector.getRows(0)));
+	}
+
+	@Test
+	public void testNullsFirst() {
+		TopNRowCollector collector = new TopNRowCollector(
+				Arrays.asList(new Ordering(AGE, Integer.class, false)), 3,
+				byteContext);
+
+		collector.add(row("a", 1, "a"));
+
+		Columns empty = new Columns(Bytes.fromUTF8("b"));
+		collector.add(empty);
+
+		collector.add(row("c", 0, "c"));
+
+		assertEquals(Arrays.asList("b", "c", "a"), keys(collector.getRows(0)));
+	}
+
+	@Test
+	public void testSkipAndLimit() {
+		TopNRowCollector collector = new TopNRowCollector(
+				Arrays.asList(new Ordering(AGE, Integer.class, false)), 4,
+				byteContext);
+
+		for (int i = 9; i >= 0; i--) {
+			collector.add(row("key" + i, i / 2, "name"));
+		}
+
+		// rows 0 to 3 are kept, the first 2 skipped
+		assertEquals(Arrays.asList("key2", "key3"), keys(collector.getRows(2)));
+
+		assertEquals(Collections.emptyList(), keys(collector.getRows(4)));
+	}
+
+	@Test
+	public void testZeroLimit() {
+		TopNRowCollector collector = new TopNRowCollector(
+				Arrays.asList(new Ordering(AGE, Integer.class, false)), 0,
+				byteContext);
+
+		collector.add(row("a", 1, "a"));
+
+		assertEquals(0, collector.getRows(0).size());
+	}
+
+	private Columns row(String key, int age, String name) {
+		Columns row = new Columns(Bytes.fromUTF8(key));
+
+		row.addResult(column(AGE, byteContext.getBytes(age)));
+		row.addResult(column(NAME, byteContext.getBytes(name)));
+
+		return row;
+	}
+
+	private static Column column(Bytes name, Bytes value) {
+		Column column = new Column();
+		column.setName(name.toByteArray());
+		column.setValue(value.toByteArray());
+		column.setTimestamp(0);
+
+		return column;
+	}
+
+	private static List<String> keys(List<Columns> rows) {
+		List<String> keys = new ArrayList<String>();
+
+		for (Columns row : rows) {
+			keys.add(row.getRowKey().toUTF8());
+		}
+
+		return keys;
+	}
+}
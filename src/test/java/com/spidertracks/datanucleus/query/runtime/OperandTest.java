@@ -0,0 +1,295 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.cassandra.thrift.IndexExpression;
+import org.apache.cassandra.thrift.IndexOperator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.cache.IndexEstimates;
+
+/**
+ * Runs and plans && and || trees of operands without Cassandra
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class OperandTest {
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testOrUnion() {
+		OrOperand or = new OrOperand();
+		or.setLeft(new StubOperand(false, "a", "b"));
+		or.setRight(new StubOperand(false, "b", "c"));
+
+		or.performQuery("pool", "cf", new Bytes[0], executor);
+
+		assertEquals(rows("a", "b", "c"), or.getCandidateKeys());
+	}
+
+	@Test
+	public void testAndIntersect() {
+		AndOperand and = new AndOperand();
+		and.setLeft(new StubOperand(false, "a", "b", "c"));
+		and.setRight(new StubOperand(false, "b", "c", "d"));
+
+		and.performQuery("pool", "cf", new Bytes[0], executor);
+
+		assertEquals(rows("b", "c"), and.getCandidateKeys());
+	}
+
+	/**
+	 * When one side of an && is empty the other side is cancelled and the
+	 * query returns without waiting for it
+	 */
+	@Test
+	public void testAndCancelled() {
+		StubOperand slow = new StubOperand(true, "a", "b");
+
+		AndOperand and = new AndOperand();
+		and.setLeft(slow);
+		and.setRight(new StubOperand(false));
+
+		long start = System.currentTimeMillis();
+
+		and.performQuery("pool", "cf", new Bytes[0], executor);
+
+		assertTrue(System.currentTimeMillis() - start < StubOperand.TIMEOUT);
+		assertTrue(slow.isCancelled());
+		assertTrue(and.getCandidateKeys().isEmpty());
+	}
+
+	/**
+	 * Nested operands are cancelled with their parent
+	 */
+	@Test
+	public void testNestedCancelled() {
+		StubOperand slowLeft = new StubOperand(true, "a");
+		StubOperand slowRight = new StubOperand(true, "b");
+
+		OrOperand or = new OrOperand();
+		or.setLeft(slowLeft);
+		or.setRight(slowRight);
+
+		AndOperand and = new AndOperand();
+		and.setLeft(or);
+		and.setRight(new StubOperand(false));
+
+		and.performQuery("pool", "cf", new Bytes[0], executor);
+
+		assertTrue(slowLeft.isCancelled());
+		assertTrue(slowRight.isCancelled());
+		assertTrue(and.getCandidateKeys().isEmpty());
+	}
+
+	/**
+	 * Index scans with similar estimates are intersected
+	 */
+	@Test
+	public void testPlanSimilar() {
+		IndexEstimates estimates = new IndexEstimates(10, 60000);
+
+		AndOperand and = new AndOperand();
+		and.setLeft(equality(estimates, "a", 40));
+		and.setRight(equality(estimates, "b", 60));
+
+		assertSame(and, and.plan("pool", "cf",
+				new HashMap<Bytes, ColumnValueComparator>()));
+	}
+
+	/**
+	 * An estimate at the probe size may be any number of rows, so the other
+	 * side is scanned even though the estimates are similar
+	 */
+	@Test
+	public void testPlanSaturated() {
+		IndexEstimates estimates = new IndexEstimates(10, 60000);
+
+		EqualityOperand saturated = equality(estimates, "a",
+				EqualityOperand.PROBE_SIZE);
+		EqualityOperand small = equality(estimates, "b", 60);
+
+		AndOperand and = new AndOperand();
+		and.setLeft(saturated);
+		and.setRight(small);
+
+		Operand planned = and.plan("pool", "cf",
+				new HashMap<Bytes, ColumnValueComparator>());
+
+		assertTrue(planned instanceof FilterOperand);
+		assertSame(small, planned.left);
+	}
+
+	/**
+	 * The estimate of one value of a skewed index doesn't decide the plan for
+	 * another value
+	 */
+	@Test
+	public void testPlanSkewedValues() {
+		IndexEstimates estimates = new IndexEstimates(10, 60000);
+
+		equality(estimates, "status", "deleted", EqualityOperand.PROBE_SIZE);
+
+		EqualityOperand active = equality(estimates, "status", "active", 3);
+		EqualityOperand owner = equality(estimates, "owner", "value", 50);
+
+		AndOperand and = new AndOperand();
+		and.setLeft(owner);
+		and.setRight(active);
+
+		Operand planned = and.plan("pool", "cf",
+				new HashMap<Bytes, ColumnValueComparator>());
+
+		assertTrue(planned instanceof FilterOperand);
+		assertSame(active, planned.left);
+	}
+
+	private static EqualityOperand equality(IndexEstimates estimates,
+			String column, long rows) {
+		return equality(estimates, column, "value", rows);
+	}
+
+	private static EqualityOperand equality(IndexEstimates estimates,
+			String column, String value, long rows) {
+		IndexExpression expression = Selector.newIndexExpression(
+				Bytes.fromUTF8(column), IndexOperator.EQ,
+				Bytes.fromUTF8(value));
+
+		estimates.put("cf", Arrays.asList(expression), rows);
+
+		EqualityOperand operand = new EqualityOperand(10, estimates);
+		operand.addExpression(expression);
+
+		return operand;
+	}
+
+	private static Set<Columns> rows(String... keys) {
+		Set<Columns> rows = new LinkedHashSet<Columns>();
+
+		for (String key : keys) {
+			rows.add(new Columns(Bytes.fromUTF8(key)));
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Returns fixed rows, optionally blocking until it's cancelled
+	 * 
+	 * @author Todd Nine
+	 * 
+	 */
+	private static class StubOperand extends Operand {
+
+		private static final long TIMEOUT = 10000;
+
+		private boolean block;
+
+		private List<String> keys;
+
+		private StubOperand(boolean block, String... keys) {
+			this.block = block;
+			this.keys = Arrays.asList(keys);
+		}
+
+		@Override
+		public void complete(Operand child) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void performQuery(String poolName, String cfName,
+				Bytes[] columns, ExecutorService executor) {
+
+			long end = System.currentTimeMillis() + TIMEOUT;
+
+			while (block && !cancelled && System.currentTimeMillis() < end) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+
+			candidateKeys = rows(keys.toArray(new String[keys.size()]));
+
+			signalParent();
+		}
+
+		@Override
+		public Operand optimizeDescriminator(Bytes descriminatorColumnValue,
+				List<Bytes> possibleValues) {
+			return this;
+		}
+
+		@Override
+		public boolean matches(Columns row,
+				Map<Bytes, ColumnValueComparator> comparators) {
+			return false;
+		}
+
+		@Override
+		public Operand plan(String poolName, String cfName,
+				Map<Bytes, ColumnValueComparator> comparators) {
+			return this;
+		}
+
+		@Override
+		protected long estimateRows(String poolName, String cfName) {
+			return keys.size();
+		}
+
+		@Override
+		public void addColumns(Set<Bytes> columns) {
+		}
+
+		@Override
+		public void explain(StringBuilder plan, String indent) {
+		}
+	}
+}